@@ -0,0 +1,151 @@
+package com.sym.benchmark;
+
+import com.sym.annotation.DistributedLock;
+import com.sym.annotation.LockPrefixName;
+import com.sym.aspect.LockAspect;
+import com.sym.benchmark.support.EmbeddedServers;
+import com.sym.benchmark.support.NoopLockFactory;
+import com.sym.idempotent.Idempotent;
+import com.sym.idempotent.aspect.IdempotentAspect;
+import com.sym.idempotent.service.impl.DefaultIdempotentInterceptor;
+import com.sym.lock.ILockFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableAspectJAutoProxy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 注解{@link DistributedLock}、{@link Idempotent}切面的开销.
+ * <p>
+ * 同一个方法分别以直接调用、经过切面使用空锁({@link NoopLockFactory})、经过切面使用内嵌redis三种方式调用:
+ * 空锁与直接调用的差值是切面本身(代理、加锁计划查找、key拼接)的开销, redis与空锁的差值是加锁、解锁的开销.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 11:10
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class AspectOverheadBenchmark {
+
+    /**
+     * noop-切面+空锁, redis-切面+内嵌redis
+     */
+    @Param({"noop", "redis"})
+    private String backend;
+
+    private AnnotationConfigApplicationContext context;
+    private LockedService proxied;
+    private LockedService direct;
+    private int id;
+
+    @Setup
+    public void setup() {
+        context = new AnnotationConfigApplicationContext();
+        context.register("noop".equals(backend) ? NoopConfig.class : RedisConfig.class);
+        context.refresh();
+        proxied = context.getBean(LockedService.class);
+        direct = new LockedService();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int direct() {
+        return direct.locked(id++);
+    }
+
+    @Benchmark
+    public int distributedLock() {
+        return proxied.locked(id++);
+    }
+
+    /**
+     * redisson实现的幂等切面, 只在redis后端下经过切面; noop后端下是直接调用, 作为对照
+     */
+    @Benchmark
+    public int idempotent() {
+        return "redis".equals(backend) ? proxied.idempotent(id++) : direct.idempotent(id++);
+    }
+
+    public static class LockedService {
+
+        @DistributedLock(prefix = "bench:aop:", waitTime = 0)
+        public int locked(@LockPrefixName int id) {
+            return id + 1;
+        }
+
+        @Idempotent(key = "bench:idempotent")
+        public int idempotent(int id) {
+            return id + 1;
+        }
+    }
+
+    @Configuration
+    @EnableAspectJAutoProxy(proxyTargetClass = true)
+    public static class NoopConfig {
+
+        @Bean
+        public ILockFactory lockFactory() {
+            return new NoopLockFactory();
+        }
+
+        @Bean
+        public LockAspect lockAspect(ILockFactory lockFactory) {
+            return new LockAspect(lockFactory);
+        }
+
+        @Bean
+        public LockedService lockedService() {
+            return new LockedService();
+        }
+    }
+
+    @Configuration
+    @EnableAspectJAutoProxy(proxyTargetClass = true)
+    public static class RedisConfig {
+
+        @Bean
+        public ILockFactory lockFactory() {
+            return EmbeddedServers.redisLockFactory();
+        }
+
+        @Bean
+        public LockAspect lockAspect(ILockFactory lockFactory) {
+            return new LockAspect(lockFactory);
+        }
+
+        @Bean
+        public IdempotentAspect idempotentAspect() {
+            return new IdempotentAspect(new DefaultIdempotentInterceptor(EmbeddedServers.redissonClient()));
+        }
+
+        @Bean
+        public LockedService lockedService() {
+            return new LockedService();
+        }
+    }
+}
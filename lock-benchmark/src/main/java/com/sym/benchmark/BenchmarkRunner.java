@@ -0,0 +1,42 @@
+package com.sym.benchmark;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 基准测试入口: java -jar target/benchmarks.jar [JMH参数]
+ * <p>
+ * 不带参数时运行全部基准, 其中热点key竞争依次使用1、4、16、64、256个线程;
+ * 带参数时与JMH自带的入口相同, 比如只运行某一个基准: java -jar target/benchmarks.jar UncontendedBenchmark -p strategy=redis
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 11:30
+ */
+public class BenchmarkRunner {
+
+    private final static int[] CONTENTION_THREADS = {1, 4, 16, 64, 256};
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        if (args.length > 0) {
+            new Runner(new CommandLineOptions(args)).run();
+            return;
+        }
+        Options others = new OptionsBuilder()
+                .include(BenchmarkRunner.class.getPackage().getName() + ".*")
+                .exclude(HotKeyContentionBenchmark.class.getSimpleName())
+                .build();
+        new Runner(others).run();
+        for (int threads : CONTENTION_THREADS) {
+            Options contention = new OptionsBuilder()
+                    .include(HotKeyContentionBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(contention).run();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.sym.benchmark;
+
+import com.sym.benchmark.support.EmbeddedServers;
+import com.sym.lock.AbstractLock;
+import com.sym.lock.ILock;
+import com.sym.lock.redis.RedisLock;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 热点key竞争: 所有线程争抢同一个key. 线程数用 -t 指定, {@link BenchmarkRunner}会依次使用1~256个线程.
+ * <p>
+ * 同时统计每次加锁平均访问redis的命令数: 只唤醒队头等待者时, 一次释放只引起一次重试, 该值应当接近2(加锁+解锁),
+ * 不随线程数增长; 如果出现惊群, 它会随线程数线性增长.
+ * </p>
+ * <p>
+ * wake参数对比两种唤醒方式: {@link #WAKE_HEAD}是默认的只唤醒队头; {@link #WAKE_ALL}在每次解锁后额外唤醒所有等待者,
+ * 即只唤醒队头之前的做法, 等待者由本类自己登记, 不依赖锁实现内部的等待队列.
+ * 非公平模式下被唤醒的线程都会去抢锁, 两者每次加锁的命令数之差就是惊群的开销;
+ * 公平模式下非队头线程醒来后直接重新挂起, 不访问redis.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 10:30
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotKeyContentionBenchmark {
+
+    @Param({EmbeddedServers.REDIS, EmbeddedServers.ZOOKEEPER})
+    private String strategy;
+
+    /**
+     * 是否公平, 只对redis有效, zookeeper锁本身就按节点序号排队
+     */
+    @Param({"false", "true"})
+    private boolean fair;
+
+    public final static String WAKE_HEAD = "head";
+    public final static String WAKE_ALL = "all";
+
+    /**
+     * 解锁时唤醒哪些等待者
+     */
+    @Param({WAKE_HEAD, WAKE_ALL})
+    private String wake;
+
+    private boolean wakeAll;
+
+    /**
+     * 正在lock()里等待的线程, 只在{@link #WAKE_ALL}模式下登记
+     */
+    private final Set<Thread> waiting = ConcurrentHashMap.newKeySet();
+
+    private ILock lock;
+
+    /**
+     * 本轮迭代的加锁次数和起始的redis命令数
+     */
+    private final LongAdder acquisitions = new LongAdder();
+    private long commandsBefore;
+
+    @Setup
+    public void setup() {
+        wakeAll = WAKE_ALL.equals(wake);
+        if (fair && EmbeddedServers.REDIS.equals(strategy)) {
+            EmbeddedServers.redisLockFactory();
+            lock = new RedisLock("bench:hot", AbstractLock.RENEW_WHILE_HELD, TimeUnit.MILLISECONDS, true);
+        } else {
+            lock = EmbeddedServers.lockFactory(strategy).getLock("bench:hot");
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void beforeIteration() {
+        acquisitions.reset();
+        if (EmbeddedServers.REDIS.equals(strategy)) {
+            commandsBefore = EmbeddedServers.redisCommandsProcessed();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void afterIteration() {
+        long count = acquisitions.sum();
+        if (EmbeddedServers.REDIS.equals(strategy) && count > 0) {
+            // 扣除本方法自己的一次INFO命令
+            long commands = EmbeddedServers.redisCommandsProcessed() - commandsBefore - 1;
+            System.out.printf("%n[wake=%s, fair=%s] 加锁%d次, redis命令%d条, 每次加锁%.2f条%n",
+                    wake, fair, count, commands, (double) commands / count);
+        }
+    }
+
+    @Benchmark
+    public void lockUnlock(Counters counters) throws InterruptedException {
+        if (wakeAll) {
+            Thread current = Thread.currentThread();
+            waiting.add(current);
+            try {
+                lock.lock();
+            } finally {
+                waiting.remove(current);
+            }
+        } else {
+            lock.lock();
+        }
+        try {
+            counters.acquisitions++;
+            acquisitions.increment();
+        } finally {
+            lock.unlock();
+        }
+        if (wakeAll) {
+            // 锁实现已经唤醒了队头, 这里再唤醒其余等待者; 醒来的线程与被队头唤醒一样重新抢锁
+            waiting.forEach(LockSupport::unpark);
+        }
+    }
+
+    /**
+     * 每个线程的加锁次数, 作为附加指标输出
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long acquisitions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            acquisitions = 0;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.sym.benchmark;
+
+import com.sym.benchmark.support.EmbeddedServers;
+import com.sym.lock.ILock;
+import com.sym.lock.ILockFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * key基数扫描: 多个线程随机加锁、解锁指定个数的key中的一个, 衡量锁工厂的实例缓存、本地等待队列、
+ * 释放通道订阅等按key维护的结构随key数量增长的开销. key越多竞争越少, 吞吐量应当上升而不是下降
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 10:40
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class KeyCardinalityBenchmark {
+
+    @Param({EmbeddedServers.REDIS, EmbeddedServers.ZOOKEEPER})
+    private String strategy;
+
+    @Param({"1", "100", "10000", "1000000"})
+    private int keys;
+
+    private ILockFactory lockFactory;
+    private String[] keyNames;
+
+    @Setup
+    public void setup() {
+        lockFactory = EmbeddedServers.lockFactory(strategy);
+        keyNames = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = "bench:card:" + i;
+        }
+    }
+
+    @Benchmark
+    public void lockUnlockRandomKey() throws InterruptedException {
+        ILock lock = lockFactory.getLock(keyNames[ThreadLocalRandom.current().nextInt(keys)]);
+        lock.lock();
+        lock.unlock();
+    }
+}
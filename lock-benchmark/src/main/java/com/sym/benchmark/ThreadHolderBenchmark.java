@@ -0,0 +1,83 @@
+package com.sym.benchmark;
+
+import com.sym.holder.ThreadHolder;
+import com.sym.holder.ThreadHolder.Waiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本地等待队列{@link ThreadHolder}的入队、出队、唤醒开销, 不访问任何中间件.
+ * <p>
+ * 在最多10^6个key上随机入队再出队: 最后一个等待者离开时key被移除, 注册表的大小只与当前有等待者的key数量有关,
+ * 吞吐量不应随key总数下降, 堆内存也不应随之增长.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 10:50
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ThreadHolderBenchmark {
+
+    private final static ThreadHolder HOLDER = ThreadHolder.INSTANCE;
+
+    @Param({"1", "1000", "1000000"})
+    private int keys;
+
+    private String[] keyNames;
+
+    @Setup
+    public void setup() {
+        keyNames = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = "bench:holder:" + i;
+        }
+    }
+
+    @Benchmark
+    public boolean putRemove() {
+        String key = keyNames[ThreadLocalRandom.current().nextInt(keys)];
+        Waiter waiter = new Waiter(Thread.currentThread());
+        HOLDER.put(key, waiter);
+        return HOLDER.remove(key, waiter);
+    }
+
+    /**
+     * 唤醒只计数, 不unpark, 避免给其它基准线程留下许可; 衡量的是查找队头的开销
+     */
+    @Benchmark
+    public boolean putSignalRemove() {
+        String key = keyNames[ThreadLocalRandom.current().nextInt(keys)];
+        CountingWaiter waiter = new CountingWaiter();
+        HOLDER.put(key, waiter);
+        HOLDER.signal(key);
+        return HOLDER.remove(key, waiter);
+    }
+
+    private static class CountingWaiter extends Waiter {
+        private int signals;
+
+        @Override
+        public void signal() {
+            signals++;
+        }
+    }
+}
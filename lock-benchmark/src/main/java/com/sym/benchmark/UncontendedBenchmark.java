@@ -0,0 +1,65 @@
+package com.sym.benchmark;
+
+import com.sym.benchmark.support.EmbeddedServers;
+import com.sym.lock.ILock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 无竞争的加锁、解锁: 单线程反复加锁、解锁同一个key, 衡量一次加锁+解锁的网络往返和本地开销
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 10:20
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class UncontendedBenchmark {
+
+    @Param({EmbeddedServers.REDIS, EmbeddedServers.ZOOKEEPER})
+    private String strategy;
+
+    /**
+     * 租期: -1为持有期间自动续期, 否则为固定租期(毫秒)
+     */
+    @Param({"-1", "30000"})
+    private long keepTime;
+
+    private ILock lock;
+
+    @Setup
+    public void setup() {
+        lock = EmbeddedServers.lockFactory(strategy).getLock("bench:uncontended", keepTime, TimeUnit.MILLISECONDS);
+    }
+
+    @Benchmark
+    public void lockUnlock() throws InterruptedException {
+        lock.lock();
+        lock.unlock();
+    }
+
+    @Benchmark
+    public boolean tryLockUnlock() {
+        boolean locked = lock.tryLock();
+        if (locked) {
+            lock.unlock();
+        }
+        return locked;
+    }
+}
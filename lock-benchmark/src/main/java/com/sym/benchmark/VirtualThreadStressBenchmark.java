@@ -0,0 +1,106 @@
+package com.sym.benchmark;
+
+import com.sym.benchmark.support.EmbeddedServers;
+import com.sym.lock.ILock;
+import com.sym.lock.ILockFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 压力测试: 10万个任务同时在1000个key上加锁、解锁, 记录全部完成的耗时.
+ * <p>
+ * 运行在JDK 21+上时每个任务一个虚拟线程, 阻塞等待锁的任务只占内存、不占载体线程; 低版本JDK上退化为固定大小的平台线程池.
+ * 项目按JDK 8编译, 虚拟线程的执行器通过反射获取.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 11:20
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class VirtualThreadStressBenchmark {
+
+    /**
+     * 低版本JDK上平台线程池的大小
+     */
+    private final static int PLATFORM_THREADS = 256;
+
+    @Param({EmbeddedServers.REDIS, EmbeddedServers.ZOOKEEPER})
+    private String strategy;
+
+    @Param({"100000"})
+    private int tasks;
+
+    @Param({"1000"})
+    private int keys;
+
+    private ILockFactory lockFactory;
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() {
+        lockFactory = EmbeddedServers.lockFactory(strategy);
+        executor = newExecutor();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int lockUnlockAll() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(tasks);
+        AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < tasks; i++) {
+            String key = "bench:stress:" + (i % keys);
+            executor.execute(() -> {
+                ILock lock = lockFactory.getLock(key);
+                try {
+                    lock.lock();
+                    lock.unlock();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        return failed.get();
+    }
+
+    /**
+     * JDK 21+使用每任务一个虚拟线程的执行器, 否则使用固定大小的平台线程池
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            System.out.println("使用虚拟线程");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            System.out.println("当前JDK不支持虚拟线程, 使用" + PLATFORM_THREADS + "个平台线程");
+            return Executors.newFixedThreadPool(PLATFORM_THREADS);
+        }
+    }
+}
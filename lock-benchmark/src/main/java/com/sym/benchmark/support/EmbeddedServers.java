@@ -0,0 +1,186 @@
+package com.sym.benchmark.support;
+
+import com.sym.bus.MessageBus;
+import com.sym.enums.MessageTypeEnum;
+import com.sym.lock.ILockFactory;
+import com.sym.lock.redis.RedisChannelSubscriber;
+import com.sym.lock.redis.RedisLockFactory;
+import com.sym.lock.zookeeper.ZookeeperLockFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+/**
+ * 基准测试使用的内嵌redis、zookeeper, 第一次使用时在随机端口上启动, JVM退出时关闭.
+ * <p>
+ * JMH每个基准默认在单独fork出来的JVM里运行, 每个fork各自启动一份, 相互之间没有残留数据.
+ * redis锁的释放消息与正式环境一样, 经分片通道、{@link MessageBus}唤醒本地等待线程.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 10:00
+ */
+@Slf4j
+public class EmbeddedServers {
+
+    public final static String REDIS = "redis";
+    public final static String ZOOKEEPER = "zookeeper";
+
+    private static RedisServer redisServer;
+    private static int redisPort;
+    private static LettuceConnectionFactory connectionFactory;
+    private static StringRedisTemplate redisTemplate;
+    private static RedisMessageListenerContainer listenerContainer;
+    private static RedisLockFactory redisLockFactory;
+    private static RedissonClient redissonClient;
+
+    private static TestingServer zkServer;
+    private static CuratorFramework curator;
+    private static ZookeeperLockFactory zookeeperLockFactory;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(EmbeddedServers::shutdown));
+    }
+
+    private EmbeddedServers() {
+    }
+
+    /**
+     * 按加锁策略获取锁工厂
+     *
+     * @param strategy {@link #REDIS}或{@link #ZOOKEEPER}
+     */
+    public static ILockFactory lockFactory(String strategy) {
+        switch (strategy) {
+            case REDIS:
+                return redisLockFactory();
+            case ZOOKEEPER:
+                return zookeeperLockFactory();
+            default:
+                throw new IllegalArgumentException("unknown strategy: " + strategy);
+        }
+    }
+
+    /**
+     * redis锁工厂, 同时订阅锁释放通道
+     */
+    public synchronized static RedisLockFactory redisLockFactory() {
+        if (redisLockFactory == null) {
+            StringRedisTemplate template = redisTemplate();
+            redisLockFactory = new RedisLockFactory(template);
+            MessageBus.start();
+            listenerContainer = new RedisMessageListenerContainer();
+            listenerContainer.setConnectionFactory(connectionFactory);
+            listenerContainer.afterPropertiesSet();
+            listenerContainer.start();
+            new RedisChannelSubscriber(listenerContainer, (message, pattern) -> MessageBus.publish(
+                    new MessageBus.Message(MessageTypeEnum.RELEASE_LOCK, new String(message.getBody(), StandardCharsets.UTF_8))));
+        }
+        return redisLockFactory;
+    }
+
+    public synchronized static StringRedisTemplate redisTemplate() {
+        if (redisTemplate == null) {
+            redisPort = freePort();
+            redisServer = RedisServer.builder().port(redisPort).setting("maxmemory 512mb").build();
+            redisServer.start();
+            connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", redisPort));
+            connectionFactory.afterPropertiesSet();
+            redisTemplate = new StringRedisTemplate(connectionFactory);
+            log.info("内嵌redis已启动, 端口[{}]", redisPort);
+        }
+        return redisTemplate;
+    }
+
+    /**
+     * 连接内嵌redis的redisson客户端, 给{@code @Idempotent}切面使用
+     */
+    public synchronized static RedissonClient redissonClient() {
+        if (redissonClient == null) {
+            redisTemplate();
+            Config config = new Config();
+            config.useSingleServer().setAddress("redis://127.0.0.1:" + redisPort);
+            redissonClient = Redisson.create(config);
+        }
+        return redissonClient;
+    }
+
+    public synchronized static ZookeeperLockFactory zookeeperLockFactory() {
+        if (zookeeperLockFactory == null) {
+            zookeeperLockFactory = new ZookeeperLockFactory(curator());
+        }
+        return zookeeperLockFactory;
+    }
+
+    public synchronized static CuratorFramework curator() {
+        if (curator == null) {
+            try {
+                zkServer = new TestingServer(freePort(), true);
+            } catch (Exception e) {
+                throw new IllegalStateException("启动内嵌zookeeper失败", e);
+            }
+            curator = CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new ExponentialBackoffRetry(1000, 3));
+            curator.start();
+            log.info("内嵌zookeeper已启动, 地址[{}]", zkServer.getConnectString());
+        }
+        return curator;
+    }
+
+    /**
+     * redis服务端启动以来处理过的命令总数, 用来计算每次加锁平均访问redis的次数
+     */
+    public static long redisCommandsProcessed() {
+        Properties info = redisTemplate().execute((RedisCallback<Properties>) conn -> conn.info("stats"));
+        return info == null ? 0L : Long.parseLong(info.getProperty("total_commands_processed", "0"));
+    }
+
+    private synchronized static void shutdown() {
+        if (redissonClient != null) {
+            redissonClient.shutdown();
+        }
+        if (listenerContainer != null) {
+            listenerContainer.stop();
+        }
+        if (connectionFactory != null) {
+            connectionFactory.destroy();
+        }
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+        if (curator != null) {
+            curator.close();
+        }
+        if (zkServer != null) {
+            try {
+                zkServer.close();
+            } catch (IOException e) {
+                log.warn("关闭内嵌zookeeper异常, ", e);
+            }
+        }
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
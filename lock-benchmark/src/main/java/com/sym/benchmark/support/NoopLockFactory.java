@@ -0,0 +1,60 @@
+package com.sym.benchmark.support;
+
+import com.sym.enums.LockStrategy;
+import com.sym.lock.AbstractLockFactory;
+import com.sym.lock.ILock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 总是加锁成功、不访问任何中间件的锁工厂, 用来单独衡量切面本身的开销
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 11:00
+ */
+public class NoopLockFactory extends AbstractLockFactory {
+
+    @Override
+    protected ILock createLock(String key, long leaseMillis) {
+        return new NoopLock();
+    }
+
+    /**
+     * 锁工厂的开销与redis锁工厂相同, 加锁策略也按redis报告
+     */
+    @Override
+    public LockStrategy strategy() {
+        return LockStrategy.REDIS;
+    }
+
+    private static class NoopLock implements ILock {
+
+        @Override
+        public void lock() {
+        }
+
+        @Override
+        public boolean tryLock() {
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit timeUnit) {
+            return true;
+        }
+
+        @Override
+        public long lockWithToken() {
+            return 1L;
+        }
+
+        @Override
+        public long tryLockWithToken(long time, TimeUnit timeUnit) {
+            return 1L;
+        }
+
+        @Override
+        public void unlock() {
+        }
+    }
+}
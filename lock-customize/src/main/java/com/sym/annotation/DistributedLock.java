@@ -27,11 +27,17 @@ public @interface DistributedLock {
     String prefix() default "";
 
     /**
-     * 持有锁的时间.
+     * 持有锁的时间, 单位秒.
      * 若为-1, 表示程序运行多久, 就持有锁多久, 会自动延长锁
      */
     int keepTime() default -1;
 
+    /**
+     * 等待锁的时间.
+     * 若为-1, 表示一直等待直到获取到锁; 若为0, 表示只尝试一次, 不等待
+     */
+    long waitTime() default -1;
+
     /**
      * 等待锁的时间单位
      */
@@ -43,7 +49,8 @@ public @interface DistributedLock {
     String messageIfLockFail() default "lock fail";
 
     /**
-     * 获取锁失败的降级方法
+     * 获取锁失败的降级方法, 与被标注的方法在同一个类中, 且参数列表相同.
+     * 未指定时, 获取锁失败会抛出携带{@link #messageIfLockFail()}的异常
      */
     String fallbackMethodIfLockFail() default "";
 }
@@ -1,18 +1,191 @@
 package com.sym.aspect;
 
 import com.sym.annotation.DistributedLock;
+import com.sym.enums.LockEnum;
+import com.sym.exception.LockFailException;
+import com.sym.exception.ReflectionException;
+import com.sym.lock.AbstractLock;
+import com.sym.lock.ILock;
+import com.sym.lock.ILockFactory;
+import com.sym.lock.ReactiveLockFactory;
+import com.sym.util.ReflectionUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
-import org.springframework.stereotype.Component;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.core.MethodClassKey;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.StringUtils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
- * 注解{@link DistributedLock}切面
+ * 注解{@link DistributedLock}切面.
+ * <p>
+ * 每个被拦截的方法第一次调用时解析注解, 生成{@link LockPlan}缓存起来: key拼接计划、租期、等待时间、降级方法都预先算好,
+ * 之后的调用只需拼接key、加锁、执行、解锁, 不再读取注解和反射查找方法.
+ * </p>
+ * <p>
+ * 返回{@code Mono}、{@code Flux}的方法不会阻塞调用线程, 改为在返回的发布者被订阅时使用响应式锁加锁, 见{@link ReactiveLockSupport}.
+ * 需要锁工厂实现{@link ReactiveLockFactory}.
+ * </p>
  *
  * @author shenyanming
  * Created on 2020/8/13 17:47
  */
+@Slf4j
 @Aspect
-@Component
 public class LockAspect {
 
+    private final static boolean REACTOR_PRESENT = ClassUtils.isPresent("reactor.core.publisher.Mono", LockAspect.class.getClassLoader());
+
+    /**
+     * 按加锁策略装配的锁工厂
+     */
+    private final ILockFactory lockFactory;
+
+    /**
+     * 每个被拦截方法的加锁计划. 同一个接口方法可能被多个实现类拦截, 注解和降级方法取决于目标类, 按方法+目标类缓存
+     */
+    private final Map<MethodClassKey, LockPlan> lockPlans = new ConcurrentHashMap<>();
+
+    public LockAspect(ILockFactory lockFactory) {
+        this.lockFactory = lockFactory;
+    }
+
+    @Around("@annotation(com.sym.annotation.DistributedLock)")
+    public Object around(ProceedingJoinPoint joinPoint) throws Throwable {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        Class<?> targetClass = joinPoint.getTarget().getClass();
+        MethodClassKey cacheKey = new MethodClassKey(method, targetClass);
+        LockPlan plan = lockPlans.get(cacheKey);
+        if (plan == null) {
+            plan = lockPlans.computeIfAbsent(cacheKey, k -> new LockPlan(method, targetClass));
+        }
+        Object[] args = joinPoint.getArgs();
+        String key = plan.keyPlan.build(args);
+        if (plan.reactive) {
+            return aroundReactive(joinPoint, plan, key, args);
+        }
+        ILock lock = lockFactory.getLock(key, plan.leaseMillis, TimeUnit.MILLISECONDS);
+        if (!acquire(lock, plan)) {
+            return fallback(joinPoint.getTarget(), args, plan);
+        }
+        try {
+            return joinPoint.proceed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 响应式方法: 立即返回包装后的发布者, 订阅时才加锁
+     */
+    private Object aroundReactive(ProceedingJoinPoint joinPoint, LockPlan plan, String key, Object[] args) {
+        if (!(lockFactory instanceof ReactiveLockFactory)) {
+            throw new IllegalStateException("加锁策略[" + lockFactory.strategy() + "]不支持响应式方法");
+        }
+        Object target = joinPoint.getTarget();
+        return ReactiveLockSupport.around(plan.returnType,
+                ((ReactiveLockFactory) lockFactory).getReactiveLock(key, plan.leaseMillis, TimeUnit.MILLISECONDS),
+                plan.waitTime, plan.waitTimeUnit, joinPoint::proceed, () -> fallback(target, args, plan));
+    }
+
+    /**
+     * 按注解指定的等待时间加锁
+     *
+     * @return true-加锁成功
+     */
+    private boolean acquire(ILock lock, LockPlan plan) {
+        try {
+            if (plan.waitTime < 0) {
+                lock.lock();
+                return true;
+            }
+            if (plan.waitTime == 0) {
+                return lock.tryLock();
+            }
+            return lock.tryLock(plan.waitTime, plan.waitTimeUnit);
+        } catch (InterruptedException e) {
+            // 保留中断状态, 当做加锁失败处理
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 加锁失败: 有降级方法就调用降级方法, 否则抛出异常
+     */
+    private Object fallback(Object target, Object[] args, LockPlan plan) throws Throwable {
+        if (plan.fallbackMethod == null) {
+            throw new LockFailException(plan.messageIfLockFail);
+        }
+        try {
+            return plan.fallbackMethod.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    /**
+     * 一个方法预先解析好的加锁计划
+     */
+    private static class LockPlan {
+
+        private final ReflectionUtil.KeyPlan keyPlan;
+        private final long leaseMillis;
+        private final long waitTime;
+        private final TimeUnit waitTimeUnit;
+        private final String messageIfLockFail;
+
+        /**
+         * 被拦截方法的返回值类型, 以及它是否为Mono、Flux
+         */
+        private final Class<?> returnType;
+        private final boolean reactive;
+
+        /**
+         * 降级方法, 未指定时为null
+         */
+        private final Method fallbackMethod;
+
+        private LockPlan(Method method, Class<?> targetClass) {
+            // 注解可能标注在实现类上, 而拦截到的是接口方法
+            Method specific = AopUtils.getMostSpecificMethod(method, targetClass);
+            DistributedLock distributedLock = specific.getAnnotation(DistributedLock.class);
+            if (distributedLock == null) {
+                specific = method;
+                distributedLock = method.getAnnotation(DistributedLock.class);
+            }
+            this.keyPlan = ReflectionUtil.getKeyPlan(specific);
+            this.leaseMillis = distributedLock.keepTime() <= 0 ? AbstractLock.RENEW_WHILE_HELD
+                    : TimeUnit.SECONDS.toMillis(distributedLock.keepTime());
+            this.waitTime = distributedLock.waitTime();
+            this.waitTimeUnit = distributedLock.waitTimeUnit();
+            this.messageIfLockFail = distributedLock.messageIfLockFail();
+            this.returnType = method.getReturnType();
+            this.reactive = REACTOR_PRESENT && ReactiveLockSupport.isReactive(returnType);
+            this.fallbackMethod = findFallback(specific, targetClass, distributedLock.fallbackMethodIfLockFail());
+        }
 
+        private static Method findFallback(Method method, Class<?> targetClass, String name) {
+            if (!StringUtils.hasText(name)) {
+                return null;
+            }
+            Method fallback = ReflectionUtils.findMethod(targetClass, name, method.getParameterTypes());
+            if (fallback == null) {
+                log.error("方法[{}]的降级方法[{}]不存在", method, name);
+                throw new ReflectionException(LockEnum.FALLBACK_METHOD_NOT_FOUND);
+            }
+            ReflectionUtils.makeAccessible(fallback);
+            return fallback;
+        }
+    }
 }
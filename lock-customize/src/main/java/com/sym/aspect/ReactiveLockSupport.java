@@ -0,0 +1,82 @@
+package com.sym.aspect;
+
+import com.sym.lock.LockHandle;
+import com.sym.lock.ReactiveLock;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 切面对返回{@link Mono}、{@link Flux}的方法的支持: 不阻塞调用线程, 返回一个新的发布者,
+ * 订阅时才加锁, 加锁成功后订阅原方法返回的发布者, 在doFinally里释放锁(正常完成、异常、取消都会释放).
+ * <p>
+ * 单独放在一个类里, 没有reactor依赖时{@link LockAspect}不会加载它.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/22 11:00
+ */
+@Slf4j
+class ReactiveLockSupport {
+
+    private ReactiveLockSupport() {
+    }
+
+    /**
+     * 返回值类型是否为{@link Mono}或{@link Flux}
+     */
+    static boolean isReactive(Class<?> returnType) {
+        return Mono.class.isAssignableFrom(returnType) || Flux.class.isAssignableFrom(returnType);
+    }
+
+    /**
+     * @param returnType 被拦截方法的返回值类型
+     * @param lock       本次调用的响应式锁
+     * @param waitTime   等待时间, 小于0一直等待
+     * @param unit       等待时间单位
+     * @param body       原方法
+     * @param fallback   加锁失败时的处理
+     */
+    static Object around(Class<?> returnType, ReactiveLock lock, long waitTime, TimeUnit unit,
+                         Invocation body, Invocation fallback) {
+        Mono<Optional<LockHandle>> acquire = (waitTime < 0 ? lock.lock() : lock.tryLock(waitTime, unit))
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty());
+        if (Mono.class.isAssignableFrom(returnType)) {
+            return acquire.flatMap(handle -> handle.isPresent()
+                    ? Mono.from(publisher(body)).doFinally(signal -> release(handle.get()))
+                    : Mono.from(publisher(fallback)));
+        }
+        return acquire.flatMapMany(handle -> handle.isPresent()
+                ? Flux.from(publisher(body)).doFinally(signal -> release(handle.get()))
+                : Flux.from(publisher(fallback)));
+    }
+
+    /**
+     * 调用方法得到发布者, 调用抛出的异常转成错误信号
+     */
+    private static Publisher<?> publisher(Invocation invocation) {
+        Object result;
+        try {
+            result = invocation.invoke();
+        } catch (Throwable e) {
+            return Mono.error(e);
+        }
+        return result == null ? Mono.empty() : (Publisher<?>) result;
+    }
+
+    private static void release(LockHandle handle) {
+        handle.release().subscribe(null, e -> log.warn("释放锁[{}]异常, ", handle.getKey(), e));
+    }
+
+    /**
+     * 一次方法调用
+     */
+    interface Invocation {
+        Object invoke() throws Throwable;
+    }
+}
@@ -2,44 +2,88 @@ package com.sym.bus;
 
 import com.sym.enums.MessageTypeEnum;
 import com.sym.holder.ThreadHolder;
+import com.sym.metrics.LockMetricsHolder;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.LockSupport;
 
 /**
- * 消息总线,
+ * 消息总线.
+ * <p>
+ * 按消息key的哈希值分片, 每个分片一个有界的{@link MpscRingBuffer}和一个工作线程, 工作线程批量取出消息处理.
+ * 同一个key的消息总是落在同一个分片上, 保证了顺序; 不同key的消息可以并行处理.
+ * 分片队列满了的时候, 由发布消息的线程直接处理, 不会丢消息.
+ * </p>
  *
  * @author shenyanming
  * Created on 2020/8/13 18:28
  */
 public class MessageBus {
 
-    private static BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
-    private static Thread thread;
+    /**
+     * 每个分片队列的容量
+     */
+    public final static int SHARD_CAPACITY = 4096;
+
+    /**
+     * 工作线程每批最多处理的消息数
+     */
+    private final static int DRAIN_BATCH = 256;
+
+    /**
+     * 工作线程空闲时单次挂起的最长时间, 兜底防止错过唤醒
+     */
+    private final static long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static Shard[] shards;
     private static ThreadHolder threadHolder = ThreadHolder.INSTANCE;
 
     private static volatile boolean isRunning = true;
     private static volatile boolean isStarted = false;
 
+    /**
+     * 统计: 已处理消息数、队列满时由发布线程直接处理的消息数、分发总耗时、最大分发耗时
+     */
+    private static LongAdder dispatched = new LongAdder();
+    private static LongAdder overflowed = new LongAdder();
+    private static LongAdder totalLatencyNanos = new LongAdder();
+    private static AtomicLong maxLatencyNanos = new AtomicLong();
+
     private MessageBus() {
 
     }
 
+    /**
+     * 开启消息总线, 分片数取CPU核数
+     */
+    public static void start() {
+        start(Runtime.getRuntime().availableProcessors());
+    }
+
     /**
      * 开启消息总线
+     *
+     * @param shardCount 分片数, 会向上取整为2的幂
      */
-    public synchronized static void start() {
+    public synchronized static void start(int shardCount) {
         if (isStarted) {
             return;
         }
+        int count = shardCount <= 1 ? 1 : Integer.highestOneBit(shardCount - 1) << 1;
+        Shard[] created = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            created[i] = new Shard(i);
+        }
+        shards = created;
         isStarted = true;
-        thread = new Thread(new Worker(), "messageBus-work");
-        thread.start();
+        for (Shard shard : created) {
+            shard.thread.start();
+        }
     }
 
     /**
@@ -50,7 +94,9 @@ public class MessageBus {
             return;
         }
         isRunning = false;
-        thread.interrupt();
+        for (Shard shard : shards) {
+            shard.thread.interrupt();
+        }
     }
 
     /**
@@ -59,19 +105,66 @@ public class MessageBus {
      * @param message 具体消息
      */
     public static void publish(Message message) {
-        queue.offer(message);
+        Shard[] current = shards;
+        Envelope envelope = new Envelope(message, System.nanoTime());
+        if (current == null || !isRunning) {
+            // 总线未启动, 直接处理
+            dispatch(envelope);
+            return;
+        }
+        Shard shard = current[spread(message.getDate().hashCode()) & (current.length - 1)];
+        if (!shard.queue.offer(envelope)) {
+            overflowed.increment();
+            dispatch(envelope);
+            return;
+        }
+        if (shard.sleeping) {
+            LockSupport.unpark(shard.thread);
+        }
+    }
+
+    /**
+     * 获取消息总线的统计数据
+     */
+    public static Stats stats() {
+        long depth = 0;
+        Shard[] current = shards;
+        if (current != null) {
+            for (Shard shard : current) {
+                depth += shard.queue.size();
+            }
+        }
+        return new Stats(current == null ? 0 : current.length, depth, dispatched.sum(), overflowed.sum(),
+                totalLatencyNanos.sum(), maxLatencyNanos.get());
     }
 
     /**
-     * 消费消息, 会单独跑在一个线程里.这边逻辑很简单, 就是唤醒处于阻塞状态的线程
+     * 消费消息, 会单独跑在一个线程里.这边逻辑很简单, 就是唤醒等待队列队头的线程
      */
     private static void consume(Message message) {
         if (message.getTypeEnum() != MessageTypeEnum.RELEASE_LOCK) {
             return;
         }
         String key = message.getDate().toString();
-        Set<Thread> threads = threadHolder.get(key);
-        threads.forEach(LockSupport::unpark);
+        LockMetricsHolder.get().signalled(key, true, threadHolder.signal(key));
+    }
+
+    /**
+     * 分发消息, 并统计从发布到处理的耗时
+     */
+    private static void dispatch(Envelope envelope) {
+        consume(envelope.message);
+        long latency = System.nanoTime() - envelope.publishNanos;
+        dispatched.increment();
+        totalLatencyNanos.add(latency);
+        long max;
+        while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency)) {
+            // 更新最大耗时
+        }
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
     }
 
     @Data
@@ -82,22 +175,102 @@ public class MessageBus {
         private Object date;
     }
 
+    /**
+     * 消息总线统计数据
+     */
+    @Data
+    @AllArgsConstructor
+    public static class Stats {
+        /**
+         * 分片数
+         */
+        private int shards;
+        /**
+         * 所有分片队列中积压的消息数
+         */
+        private long queueDepth;
+        /**
+         * 已处理的消息数
+         */
+        private long dispatched;
+        /**
+         * 队列满时由发布线程直接处理的消息数
+         */
+        private long overflowed;
+        /**
+         * 消息从发布到处理完成的总耗时(纳秒)
+         */
+        private long totalLatencyNanos;
+        /**
+         * 消息从发布到处理完成的最大耗时(纳秒)
+         */
+        private long maxLatencyNanos;
+    }
+
+    /**
+     * 消息+发布时间
+     */
+    private static class Envelope {
+        private final Message message;
+        private final long publishNanos;
+
+        private Envelope(Message message, long publishNanos) {
+            this.message = message;
+            this.publishNanos = publishNanos;
+        }
+    }
+
+    /**
+     * 一个分片: 一个队列+一个工作线程
+     */
+    private static class Shard {
+        private final MpscRingBuffer<Envelope> queue = new MpscRingBuffer<>(SHARD_CAPACITY);
+        private final Thread thread;
+
+        /**
+         * 工作线程是否准备挂起, 发布消息时据此决定要不要唤醒它
+         */
+        private volatile boolean sleeping;
+
+        private Shard(int index) {
+            this.thread = new Thread(new Worker(this), "messageBus-work-" + index);
+            this.thread.setDaemon(true);
+        }
+    }
+
     /**
      * 实际工作线程
      */
     private static class Worker implements Runnable {
+
+        private final Shard shard;
+
+        private Worker(Shard shard) {
+            this.shard = shard;
+        }
+
         @Override
         public void run() {
+            MpscRingBuffer<Envelope> queue = shard.queue;
             while (isRunning) {
-                // 获取队列中的消息
-                try {
-                    consume(queue.take());
-                } catch (InterruptedException e) {
-                    // 如果线程被中断, 判断当前消息总线是否被暂停了
-                    if (!isRunning) {
-                        break;
-                    }
-                    // 如果未停止, 中断状态会被清除, 继续运行
+                // 批量获取队列中的消息
+                if (queue.drain(MessageBus::dispatch, DRAIN_BATCH) > 0) {
+                    continue;
+                }
+                if (!queue.isEmpty()) {
+                    // 生产者占了槽位还没写入, 稍等即可
+                    Thread.yield();
+                    continue;
+                }
+                shard.sleeping = true;
+                // 先标记再检查一次, 避免与发布线程错过唤醒
+                if (queue.isEmpty()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                shard.sleeping = false;
+                // 如果线程被中断, 判断当前消息总线是否被暂停了; 如果未停止, 清除中断状态继续运行
+                if (Thread.interrupted() && !isRunning) {
+                    break;
                 }
             }
         }
@@ -0,0 +1,101 @@
+package com.sym.bus;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 有界的多生产者-单消费者环形队列.
+ * 生产者通过CAS抢占槽位, 不加锁; 消费者只有一个线程, 批量取出元素, 不需要任何同步.
+ *
+ * @author shenyanming
+ * Created on 2020/8/19 09:40
+ */
+public class MpscRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int capacity;
+    private final int mask;
+
+    /**
+     * 下一个待写入的位置, 多个生产者竞争
+     */
+    private final AtomicLong producerIndex = new AtomicLong();
+
+    /**
+     * 下一个待读取的位置, 只有消费者线程会修改
+     */
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    /**
+     * @param capacity 容量, 会向上取整为2的幂
+     */
+    public MpscRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.buffer = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    /**
+     * 生产者写入元素, 可以被多个线程并发调用
+     *
+     * @return false-队列已满
+     */
+    public boolean offer(E e) {
+        Objects.requireNonNull(e);
+        for (; ; ) {
+            long p = producerIndex.get();
+            if (p - consumerIndex.get() >= capacity) {
+                return false;
+            }
+            if (producerIndex.compareAndSet(p, p + 1)) {
+                buffer.lazySet((int) p & mask, e);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 消费者批量取出元素, 只能由同一个线程调用
+     *
+     * @param consumer 元素处理器
+     * @param limit    本批最多取出的个数
+     * @return 实际取出的个数
+     */
+    public int drain(Consumer<E> consumer, int limit) {
+        long c = consumerIndex.get();
+        int i = 0;
+        for (; i < limit; i++) {
+            int index = (int) (c + i) & mask;
+            E e = buffer.get(index);
+            if (e == null) {
+                // 队列为空, 或者生产者已经占了槽位但还没写入
+                break;
+            }
+            buffer.lazySet(index, null);
+            consumerIndex.lazySet(c + i + 1);
+            consumer.accept(e);
+        }
+        return i;
+    }
+
+    /**
+     * 队列中的元素个数(近似值)
+     */
+    public int size() {
+        long size = producerIndex.get() - consumerIndex.get();
+        return (int) Math.max(0L, Math.min(size, capacity));
+    }
+
+    public boolean isEmpty() {
+        return producerIndex.get() == consumerIndex.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
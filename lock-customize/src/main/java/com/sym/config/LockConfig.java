@@ -1,68 +1,174 @@
 package com.sym.config;
 
+import com.sym.aspect.LockAspect;
 import com.sym.bus.MessageBus;
 import com.sym.constant.LockConstants;
 import com.sym.enums.MessageTypeEnum;
+import com.sym.lock.ILockFactory;
+import com.sym.lock.mysql.MysqlLockFactory;
+import com.sym.lock.mysql.MysqlLockRepository;
+import com.sym.lock.redis.RedisChannelSubscriber;
+import com.sym.lock.redis.RedisLockChannel;
+import com.sym.lock.redis.RedisLockFactory;
+import com.sym.lock.redis.RedisNegativeCache;
+import com.sym.lock.zookeeper.ZookeeperLockFactory;
+import com.sym.metrics.ContentionProfiler;
+import com.sym.metrics.LockContentionEndpoint;
+import com.sym.metrics.LockMetrics;
+import com.sym.metrics.LockMetricsHolder;
+import com.sym.metrics.MicrometerLockMetrics;
+import com.sym.util.SpringContextUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.listener.PatternTopic;
 import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.listener.adapter.MessageListenerAdapter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.util.StringUtils;
 
 import javax.annotation.PostConstruct;
+import java.util.stream.Collectors;
 
 /**
- * 分布式锁的配置类
+ * 分布式锁的配置类, 通过 META-INF/spring.factories 自动装配.
+ * 按配置项 lock.strategy(redis、zookeeper、mysql, 默认redis) 装配对应的{@link ILockFactory}
  *
  * @author shenyanming
  * Created on 2020/8/14 09:27
  */
 @Configuration
+@Import({SpringContextUtil.class, LockAspect.class})
 public class LockConfig {
 
+    /**
+     * 消息总线的分片数, 小于等于0时取CPU核数
+     */
+    @Value("${" + LockConstants.MESSAGE_BUS_SHARDS_PROPERTIES + ":0}")
+    private int messageBusShards;
+
+    /**
+     * 锁的监控实现, 可以有多个, 使用方也可以自己提供, 比如接入链路追踪
+     */
+    @Autowired
+    private ObjectProvider<LockMetrics> lockMetrics;
+
     /**
      * 启动时需要运行的方法
      */
     @PostConstruct
     public void initWhenStart() {
+        installMetrics();
         startMessageBus();
     }
 
+    /**
+     * 把容器中的所有监控实现组合后安装
+     */
+    private void installMetrics() {
+        LockMetricsHolder.set(LockMetrics.of(lockMetrics.orderedStream().collect(Collectors.toList())));
+    }
+
     /**
      * 启动消息总线
      */
     private void startMessageBus() {
-        MessageBus.start();
+        if (messageBusShards > 0) {
+            MessageBus.start(messageBusShards);
+        } else {
+            MessageBus.start();
+        }
     }
 
     /**
      * redis配置类
      */
     @Configuration
-    @ConditionalOnProperty(prefix = "lock.strategy", havingValue = "redis")
+    @ConditionalOnProperty(prefix = "lock", name = "strategy", havingValue = "redis", matchIfMissing = true)
     static class RedisConfig {
 
         /**
-         * 配置 redis 监听容器
+         * redis分布式锁工厂, 同时提供异步锁; 容器里有{@link ReactiveStringRedisTemplate}时还提供响应式锁
+         *
+         * @param cluster 是否为redis集群, 不配置时按连接工厂自动判断
+         */
+        @Bean
+        @ConditionalOnMissingBean(ILockFactory.class)
+        public RedisLockFactory redisLockFactory(StringRedisTemplate stringRedisTemplate,
+                                                 ObjectProvider<ReactiveStringRedisTemplate> reactiveStringRedisTemplate,
+                                                 @Value("${" + LockConstants.REDIS_CLUSTER_PROPERTIES + ":}") String cluster) {
+            boolean isCluster = StringUtils.hasText(cluster) ? Boolean.parseBoolean(cluster)
+                    : isClusterAware(stringRedisTemplate.getConnectionFactory());
+            return new RedisLockFactory(stringRedisTemplate, reactiveStringRedisTemplate.getIfAvailable(), isCluster);
+        }
+
+        /**
+         * 连接工厂是否配置成了集群模式(spring.redis.cluster.nodes), 只识别lettuce
+         */
+        private static boolean isClusterAware(RedisConnectionFactory connectionFactory) {
+            if (connectionFactory instanceof LettuceConnectionFactory) {
+                return ((LettuceConnectionFactory) connectionFactory).isClusterAware();
+            }
+            return false;
+        }
+
+        /**
+         * 配置 redis 监听容器. 锁释放通道按需订阅, 见{@link RedisChannelSubscriber}
+         *
+         * @param listenExpired 是否监听key过期事件, 需要redis服务端开启 notify-keyspace-events Ex
          */
         @Bean
         public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory redisConnectionFactory,
-                                                                           MessageListenerAdapter messageListenerAdapter) {
+                                                                           MessageListenerAdapter messageListenerAdapter,
+                                                                           @Value("${" + LockConstants.REDIS_LISTEN_EXPIRED_PROPERTIES + ":false}") boolean listenExpired) {
             RedisMessageListenerContainer container = new RedisMessageListenerContainer();
             container.setConnectionFactory(redisConnectionFactory);
-            // 表示监听 _$redis_$lock 这个通道, 用 messageListenerAdapter 这个适配器去处理通道的消息
-            container.addMessageListener(messageListenerAdapter, new PatternTopic(LockConstants.REDIS_LOCK_CHANNEL));
-            /*
-             * 这里还可以添加多个监听通道, 全部加到监听容器里 RedisMessageListenerContainer
-             * container.addMessageListener(messageListenerAdapter,new PatternTopic("__keyevent@0__:expired"));
-             * container.addMessageListener(messageListenerAdapter,new PatternTopic("__keyevent@0__:del"));
-             */
+            if (listenExpired) {
+                // 锁过期时没有释放消息, 监听所有库的过期事件, 消息内容就是过期的key
+                container.addMessageListener(messageListenerAdapter, new PatternTopic(LockConstants.REDIS_KEY_EXPIRED_CHANNEL));
+            }
             return container;
         }
 
+        /**
+         * 只订阅本地有等待线程的分片通道, 用 messageListenerAdapter 这个适配器去处理通道的消息.
+         * 开启了否定缓存时订阅所有分片, 见{@link RedisNegativeCache}
+         *
+         * @param shards        锁释放通道的分片数, 集群内所有节点必须一致
+         * @param negativeCache 是否开启否定缓存
+         * @param maxEntries    否定缓存最多缓存的key个数
+         */
+        @Bean
+        public RedisChannelSubscriber redisChannelSubscriber(RedisMessageListenerContainer redisMessageListenerContainer,
+                                                             MessageListenerAdapter messageListenerAdapter,
+                                                             @Value("${" + LockConstants.REDIS_CHANNEL_SHARDS_PROPERTIES + ":" + RedisLockChannel.DEFAULT_SHARDS + "}") int shards,
+                                                             @Value("${" + LockConstants.REDIS_NEGATIVE_CACHE_PROPERTIES + ":false}") boolean negativeCache,
+                                                             @Value("${" + LockConstants.REDIS_NEGATIVE_CACHE_MAX_ENTRIES_PROPERTIES + ":" + RedisNegativeCache.DEFAULT_MAX_ENTRIES + "}") int maxEntries) {
+            RedisLockChannel.setShards(shards);
+            RedisChannelSubscriber subscriber = new RedisChannelSubscriber(redisMessageListenerContainer, messageListenerAdapter);
+            if (negativeCache) {
+                subscriber.subscribeAll();
+                RedisNegativeCache.enable(maxEntries);
+            }
+            return subscriber;
+        }
+
         /**
          * redis消息处理器
          */
@@ -78,9 +184,128 @@ public class LockConfig {
      * zookeeper配置类
      */
     @Configuration
-    @ConditionalOnProperty(prefix = "lock.strategy", havingValue = "zookeeper")
+    @ConditionalOnProperty(prefix = "lock", name = "strategy", havingValue = "zookeeper")
     static class ZookeeperConfig {
 
+        /**
+         * 所有zookeeper锁共用的客户端, 原生的zk客户端不好用, 使用Curator替代
+         *
+         * @param zkHost zookeeper地址
+         */
+        @Bean(destroyMethod = "close")
+        @ConditionalOnMissingBean
+        public CuratorFramework curatorFramework(@Value("${" + LockConstants.ZOOKEEPER_HOST_PROPERTIES + ":localhost:2181}") String zkHost) {
+            CuratorFramework framework = CuratorFrameworkFactory.builder()
+                    .connectString(zkHost)
+                    // zk客户端与zk服务端的会话超时, 单位毫秒
+                    .sessionTimeoutMs(60 * 1000)
+                    // zk客户端与zk服务端的连接超时, 单位毫秒
+                    .connectionTimeoutMs(30 * 1000)
+                    // 重试策略
+                    .retryPolicy(new ExponentialBackoffRetry(1000, 3))
+                    .build();
+            framework.start();
+            return framework;
+        }
+
+        /**
+         * zookeeper分布式锁工厂
+         */
+        @Bean
+        @ConditionalOnMissingBean
+        public ILockFactory zookeeperLockFactory(CuratorFramework curatorFramework) {
+            return new ZookeeperLockFactory(curatorFramework);
+        }
+    }
+
+    /**
+     * mysql配置类, 需要使用方引入数据源和驱动, 并执行 sql/mysql-lock.sql 建表
+     */
+    @Configuration
+    @ConditionalOnProperty(prefix = "lock", name = "strategy", havingValue = "mysql")
+    static class MysqlConfig {
+
+        /**
+         * 所有mysql锁共用的租约表操作
+         *
+         * @param table      租约表名
+         * @param skipLocked 是否使用 SELECT ... FOR UPDATE SKIP LOCKED 加锁(需要mysql 8.0+)
+         * @param pollMillis 抢锁失败后重试的最长间隔(毫秒)
+         */
+        @Bean
+        public MysqlLockRepository mysqlLockRepository(JdbcTemplate jdbcTemplate,
+                                                       PlatformTransactionManager transactionManager,
+                                                       @Value("${" + LockConstants.MYSQL_TABLE_PROPERTIES + ":" + MysqlLockRepository.DEFAULT_TABLE + "}") String table,
+                                                       @Value("${" + LockConstants.MYSQL_SKIP_LOCKED_PROPERTIES + ":false}") boolean skipLocked,
+                                                       @Value("${" + LockConstants.MYSQL_POLL_MILLIS_PROPERTIES + ":" + MysqlLockRepository.DEFAULT_POLL_MILLIS + "}") long pollMillis) {
+            return new MysqlLockRepository(jdbcTemplate, transactionManager, table, skipLocked, pollMillis);
+        }
+
+        /**
+         * mysql分布式锁工厂
+         */
+        @Bean
+        @ConditionalOnMissingBean
+        public ILockFactory mysqlLockFactory(MysqlLockRepository mysqlLockRepository) {
+            return new MysqlLockFactory(mysqlLockRepository);
+        }
+    }
+
+    /**
+     * 监控指标配置类, 引入了micrometer才生效
+     */
+    @Configuration
+    @ConditionalOnClass(MeterRegistry.class)
+    @ConditionalOnProperty(prefix = "lock.metrics", name = "enabled", havingValue = "true", matchIfMissing = true)
+    static class MetricsConfig {
+
+        /**
+         * 基于micrometer的监控实现. 不用@ConditionalOnBean判断注册中心, 它可能在本配置类之后才注册
+         *
+         * @param maxPrefixes 最多区分的key前缀个数
+         */
+        @Bean
+        @ConditionalOnMissingBean(MicrometerLockMetrics.class)
+        public LockMetrics micrometerLockMetrics(ObjectProvider<MeterRegistry> meterRegistry,
+                                                 @Value("${" + LockConstants.METRICS_MAX_PREFIXES_PROPERTIES + ":" + MicrometerLockMetrics.DEFAULT_MAX_PREFIXES + "}") int maxPrefixes) {
+            MeterRegistry registry = meterRegistry.getIfAvailable();
+            return registry == null ? LockMetrics.NOOP : new MicrometerLockMetrics(registry, maxPrefixes);
+        }
+    }
+
+    /**
+     * 锁竞争分析配置类, 默认关闭, 配置 lock.profiler.enabled=true 开启
+     */
+    @Configuration
+    @ConditionalOnProperty(prefix = "lock.profiler", name = "enabled", havingValue = "true")
+    static class ProfilerConfig {
+
+        /**
+         * 锁竞争分析, 只记录发生了竞争的加锁
+         *
+         * @param keyCapacity    最多同时统计的key个数
+         * @param prefixCapacity 最多同时统计的key前缀个数
+         */
+        @Bean
+        @ConditionalOnMissingBean
+        public ContentionProfiler contentionProfiler(@Value("${" + LockConstants.PROFILER_KEY_CAPACITY_PROPERTIES + ":" + ContentionProfiler.DEFAULT_KEY_CAPACITY + "}") int keyCapacity,
+                                                     @Value("${" + LockConstants.PROFILER_PREFIX_CAPACITY_PROPERTIES + ":" + ContentionProfiler.DEFAULT_PREFIX_CAPACITY + "}") int prefixCapacity) {
+            return new ContentionProfiler(keyCapacity, prefixCapacity);
+        }
+
+        /**
+         * 引入了actuator时暴露端点
+         */
+        @Configuration
+        @ConditionalOnClass(Endpoint.class)
+        static class EndpointConfig {
+
+            @Bean
+            @ConditionalOnMissingBean
+            public LockContentionEndpoint lockContentionEndpoint(ContentionProfiler contentionProfiler) {
+                return new LockContentionEndpoint(contentionProfiler);
+            }
+        }
     }
 
     /**
@@ -88,12 +313,13 @@ public class LockConfig {
      */
     private static class RedisKeyResolver {
         /**
-         * 处理redis通道上的消息
+         * 处理redis通道上的消息: 先让否定缓存失效, 再唤醒本地等待线程
          *
          * @param key key
          */
         public void handleMessage(String key) {
             if (!StringUtils.isEmpty(key)) {
+                RedisNegativeCache.invalidate(key);
                 MessageBus.Message message = new MessageBus.Message(MessageTypeEnum.RELEASE_LOCK, key);
                 MessageBus.publish(message);
             }
@@ -7,10 +7,85 @@ package com.sym.constant;
 public class LockConstants {
 
     /**
-     * 使用Redis当做分布式锁, 当释放锁时, 会发布消息到此通道(自定义)
+     * 分布式锁的底层策略, 取值见{@link com.sym.enums.LockStrategy}
+     */
+    public final static String LOCK_STRATEGY_PROPERTIES = "lock.strategy";
+
+    /**
+     * 使用Redis当做分布式锁, 当释放锁时, 会发布消息到此通道(自定义)加上":分片号"的分片通道
      */
     public final static String REDIS_LOCK_CHANNEL = " _$redis_$lock";
 
+    /**
+     * redis所有库的key过期事件通道, 需要服务端开启 notify-keyspace-events Ex
+     */
+    public final static String REDIS_KEY_EXPIRED_CHANNEL = "__keyevent@*__:expired";
+
+    /**
+     * 是否监听redis的key过期事件, 用来唤醒等待过期锁的线程
+     */
+    public final static String REDIS_LISTEN_EXPIRED_PROPERTIES = "lock.redis.listen-expired";
+
+    /**
+     * redis锁释放通道的分片数, 集群内所有节点必须一致
+     */
+    public final static String REDIS_CHANNEL_SHARDS_PROPERTIES = "lock.redis.channel-shards";
+
+    /**
+     * 是否为redis集群, 开启后锁key会加上hash tag. 不配置时按连接工厂是否为集群模式自动判断
+     */
+    public final static String REDIS_CLUSTER_PROPERTIES = "lock.redis.cluster";
+
+    /**
+     * 是否开启redis锁的本地否定缓存, 已知被占用的key上的tryLock()直接在本地返回失败
+     */
+    public final static String REDIS_NEGATIVE_CACHE_PROPERTIES = "lock.redis.negative-cache.enabled";
+
+    /**
+     * 否定缓存最多缓存的key个数
+     */
+    public final static String REDIS_NEGATIVE_CACHE_MAX_ENTRIES_PROPERTIES = "lock.redis.negative-cache.max-entries";
+
+    /**
+     * 消息总线的分片数, 每个分片一个工作线程
+     */
+    public final static String MESSAGE_BUS_SHARDS_PROPERTIES = "lock.bus.shards";
+
+    /**
+     * 是否开启锁的监控指标, 需要引入micrometer
+     */
+    public final static String METRICS_ENABLED_PROPERTIES = "lock.metrics.enabled";
+
+    /**
+     * 监控指标最多区分的key前缀个数
+     */
+    public final static String METRICS_MAX_PREFIXES_PROPERTIES = "lock.metrics.max-prefixes";
+
+    /**
+     * 锁竞争分析最多同时统计的key个数
+     */
+    public final static String PROFILER_KEY_CAPACITY_PROPERTIES = "lock.profiler.key-capacity";
+
+    /**
+     * 锁竞争分析最多同时统计的key前缀个数
+     */
+    public final static String PROFILER_PREFIX_CAPACITY_PROPERTIES = "lock.profiler.prefix-capacity";
+
+    /**
+     * mysql锁的租约表名
+     */
+    public final static String MYSQL_TABLE_PROPERTIES = "lock.mysql.table";
+
+    /**
+     * mysql锁是否使用 SELECT ... FOR UPDATE SKIP LOCKED 加锁
+     */
+    public final static String MYSQL_SKIP_LOCKED_PROPERTIES = "lock.mysql.skip-locked";
+
+    /**
+     * mysql锁抢锁失败后重试的最长间隔(毫秒)
+     */
+    public final static String MYSQL_POLL_MILLIS_PROPERTIES = "lock.mysql.poll-millis";
+
     /**
      * zookeeper地址
      */
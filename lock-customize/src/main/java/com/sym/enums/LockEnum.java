@@ -6,7 +6,9 @@ package com.sym.enums;
  */
 public enum LockEnum {
 
-    METHOD_WITHOUT_ANNOTATION_LOCK(1001, "方法没有标注DistributedLock注解");
+    METHOD_WITHOUT_ANNOTATION_LOCK(1001, "方法没有标注DistributedLock注解"),
+    LOCK_FAIL(1002, "获取分布式锁失败"),
+    FALLBACK_METHOD_NOT_FOUND(1003, "获取锁失败的降级方法不存在");
 
     private int code;
     private String name;
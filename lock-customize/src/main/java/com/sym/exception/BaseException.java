@@ -18,7 +18,16 @@ public class BaseException extends RuntimeException implements Serializable {
     }
 
     public BaseException(int errorCode, String errorMessage) {
+        super(errorMessage);
         this.errorCode = errorCode;
         this.errorMessage = errorMessage;
     }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
 }
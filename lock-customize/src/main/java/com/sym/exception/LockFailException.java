@@ -0,0 +1,16 @@
+package com.sym.exception;
+
+import com.sym.enums.LockEnum;
+
+/**
+ * 获取分布式锁失败, 且没有指定降级方法时抛出
+ *
+ * @author shenyanming
+ * Created on 2020/8/20 14:05
+ */
+public class LockFailException extends BaseException {
+
+    public LockFailException(String message) {
+        super(LockEnum.LOCK_FAIL.getCode(), message);
+    }
+}
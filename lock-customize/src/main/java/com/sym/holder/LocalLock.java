@@ -0,0 +1,55 @@
+package com.sym.holder;
+
+import com.sym.lock.ILock;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 本地锁, 同一个JVM里争抢同一个key的线程共用一个.
+ * 除了{@link #lock}和{@link #departures}以外的字段, 都只能在持有{@link #lock}时读写
+ *
+ * @author shenyanming
+ * Created on 2020/8/18 14:20
+ */
+@Getter
+@Setter
+public class LocalLock {
+
+    /**
+     * 本地线程之间互斥
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 分布式锁, 由本地锁的持有者独占使用, 所以它的持有者标识是JVM+key维度的
+     */
+    private final ILock remote;
+
+    /**
+     * 分布式锁当前是否被本JVM持有
+     */
+    private boolean remoteHeld;
+
+    /**
+     * 持有分布式锁时拿到的防护令牌
+     */
+    private long token;
+
+    /**
+     * 分布式锁在本地线程之间连续交接的次数
+     */
+    private int handoffs;
+
+    /**
+     * 没有拿到本地锁就离开队列(超时、中断)的次数, 不需要持有{@link #lock}.
+     * 解锁时因为有线程排队而保留了分布式锁的持有者, 据此发现排队线程已经离开, 需要重新判断是否释放分布式锁
+     */
+    private final AtomicInteger departures = new AtomicInteger();
+
+    public LocalLock(ILock remote) {
+        this.remote = remote;
+    }
+}
@@ -0,0 +1,98 @@
+package com.sym.holder;
+
+import com.sym.lock.ILock;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 全局单例, 维护了key+本地锁的关联关系.
+ * 本地锁被弱引用持有, 没有线程再使用时会被GC回收并从这里移除;
+ * 登记的key数量有上限, 超过上限时返回一把不登记的本地锁, 此时同一个key的线程不再合并, 直接由分布式锁仲裁
+ *
+ * @author shenyanming
+ * Created on 2020/8/18 14:26
+ */
+public class LocalLockHolder {
+
+    public final static LocalLockHolder INSTANCE;
+
+    /**
+     * 最多登记的key数量
+     */
+    public final static int MAX_SIZE = 1 << 16;
+
+    private final static Map<String, LocalLockRef> LOCK_MAP;
+    private final static ReferenceQueue<LocalLock> REF_QUEUE;
+
+    static {
+        INSTANCE = new LocalLockHolder();
+        LOCK_MAP = new ConcurrentHashMap<>();
+        REF_QUEUE = new ReferenceQueue<>();
+    }
+
+    private LocalLockHolder() {
+    }
+
+    /**
+     * 获取分布式锁key对应的本地锁, 不存在则创建
+     *
+     * @param lockKey       分布式锁key
+     * @param remoteCreator 创建分布式锁的方法
+     * @return 本地锁
+     */
+    public LocalLock get(String lockKey, Function<String, ILock> remoteCreator) {
+        purge();
+        for (; ; ) {
+            LocalLockRef ref = LOCK_MAP.get(lockKey);
+            LocalLock localLock = Objects.isNull(ref) ? null : ref.get();
+            if (Objects.nonNull(localLock)) {
+                return localLock;
+            }
+            LocalLock created = new LocalLock(remoteCreator.apply(lockKey));
+            if (Objects.isNull(ref) && LOCK_MAP.size() >= MAX_SIZE) {
+                return created;
+            }
+            LocalLockRef newRef = new LocalLockRef(lockKey, created);
+            boolean registered = Objects.isNull(ref)
+                    ? LOCK_MAP.putIfAbsent(lockKey, newRef) == null
+                    : LOCK_MAP.replace(lockKey, ref, newRef);
+            if (registered) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * 当前登记的key数量
+     */
+    public int size() {
+        purge();
+        return LOCK_MAP.size();
+    }
+
+    /**
+     * 移除已经被GC回收的本地锁
+     */
+    private void purge() {
+        Reference<? extends LocalLock> ref;
+        while ((ref = REF_QUEUE.poll()) != null) {
+            LocalLockRef localLockRef = (LocalLockRef) ref;
+            LOCK_MAP.remove(localLockRef.lockKey, localLockRef);
+        }
+    }
+
+    private static class LocalLockRef extends WeakReference<LocalLock> {
+        private final String lockKey;
+
+        LocalLockRef(String lockKey, LocalLock referent) {
+            super(referent, REF_QUEUE);
+            this.lockKey = lockKey;
+        }
+    }
+}
@@ -1,15 +1,34 @@
 package com.sym.holder;
 
-import java.util.Collection;
-import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * 全局单例, 维护了key+thread的关联关系
+ * 全局单例, 维护了key+等待线程的关联关系.
+ * <p>
+ * 每个key对应一个先进先出的等待队列, 队列由无锁的{@link Waiter}节点组成, 锁释放时只唤醒队头线程,
+ * 避免所有等待线程同时去抢锁. 最后一个等待者离开时key会被移除, 不会随着key的数量无限增长,
+ * 也不会一直引用已经结束的线程.
+ * </p>
+ * <p>
+ * 入队和出队按key分段加{@link ReentrantLock}, 保证与key的移除互斥. 不使用synchronized(包括{@link ConcurrentHashMap#compute}内部的桶锁),
+ * 大量虚拟线程争抢同一段时会被卸载, 不会钉住载体线程. 唤醒只读取队头, 不加锁.
+ * </p>
+ * <p>
+ * 等待者数量不受平台线程数的限制, 可能成千上万: 非队头的等待者离开时只做标记, 不遍历队列,
+ * 被标记的节点在成为队头时批量出队, 出队、入队都是O(1).
+ * </p>
+ * <p>
+ * key的第一个等待者入队、最后一个等待者离开时会通知{@link KeyListener}, 比如只订阅本地有等待者的key的释放通道.
+ * </p>
  *
  * @author shenyanming
  * Created on 2020/6/23 17:11
@@ -17,50 +36,245 @@ import java.util.concurrent.CopyOnWriteArraySet;
 public class ThreadHolder {
 
     public final static ThreadHolder INSTANCE;
-    private final static Map<String, Set<Thread>> THREAD_MAP;
+    private final static Map<String, WaitQueue> THREAD_MAP;
+    private final static List<KeyListener> LISTENERS;
+
+    /**
+     * 入队、出队的分段锁, 个数为2的幂
+     */
+    private final static ReentrantLock[] STRIPES;
 
     static {
         INSTANCE = new ThreadHolder();
         THREAD_MAP = new ConcurrentHashMap<>();
+        LISTENERS = new CopyOnWriteArrayList<>();
+        STRIPES = new ReentrantLock[256];
+        for (int i = 0; i < STRIPES.length; i++) {
+            STRIPES[i] = new ReentrantLock();
+        }
     }
 
     private ThreadHolder() {
     }
 
     /**
-     * 关联分布式锁key和线程thread
+     * 等待者进入分布式锁key的等待队列(队尾)
+     *
+     * @param lockKey 分布式锁key
+     * @param waiter  等待者
+     * @return true-入队后该等待者处于队头
+     */
+    public boolean put(String lockKey, Waiter waiter) {
+        boolean isFirst = false;
+        WaitQueue queue;
+        ReentrantLock lock = stripe(lockKey);
+        lock.lock();
+        try {
+            queue = THREAD_MAP.get(lockKey);
+            if (Objects.isNull(queue)) {
+                queue = new WaitQueue();
+                THREAD_MAP.put(lockKey, queue);
+                isFirst = true;
+            }
+            queue.offer(waiter);
+        } finally {
+            lock.unlock();
+        }
+        // 在临界区外通知, 监听器可能有网络调用
+        if (isFirst) {
+            LISTENERS.forEach(listener -> listener.onFirstWaiter(lockKey));
+        }
+        return queue.head() == waiter;
+    }
+
+    /**
+     * 等待者离开分布式锁key的等待队列, 最后一个等待者离开时移除key
+     *
+     * @param lockKey 分布式锁key
+     * @param waiter  等待者
+     * @return true-离开前该等待者处于队头
+     */
+    public boolean remove(String lockKey, Waiter waiter) {
+        boolean isHead;
+        boolean isLast = false;
+        ReentrantLock lock = stripe(lockKey);
+        lock.lock();
+        try {
+            WaitQueue queue = THREAD_MAP.get(lockKey);
+            if (Objects.isNull(queue) || waiter.removed) {
+                return false;
+            }
+            isHead = queue.remove(waiter);
+            if (queue.size == 0) {
+                THREAD_MAP.remove(lockKey);
+                isLast = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (isLast) {
+            LISTENERS.forEach(listener -> listener.onLastWaiter(lockKey));
+        }
+        return isHead;
+    }
+
+    /**
+     * 判断等待者是否处于分布式锁key等待队列的队头
+     *
      * @param lockKey 分布式锁key
-     * @param thread 线程
+     * @param waiter  等待者
      */
-    public boolean put(String lockKey, Thread thread){
-        return put(lockKey, Collections.singleton(thread));
+    public boolean isHead(String lockKey, Waiter waiter) {
+        WaitQueue queue = THREAD_MAP.get(lockKey);
+        return Objects.nonNull(queue) && queue.head() == waiter;
     }
 
     /**
-     * 将分布式锁key和线程关联起来
+     * 分布式锁key是否有线程在等待
+     *
      * @param lockKey 分布式锁key
-     * @param threads 线程集
      */
-    public boolean put(String lockKey, Collection<Thread> threads) {
-        Set<Thread> threadList = THREAD_MAP.computeIfAbsent(lockKey, (key) -> new CopyOnWriteArraySet<>());
-        return threadList.addAll(threads);
+    public boolean hasWaiters(String lockKey) {
+        return THREAD_MAP.containsKey(lockKey);
     }
 
     /**
-     * 通过分布式锁key获取线程集合
+     * 唤醒分布式锁key等待队列的队头. 队头抢到锁或者放弃等待时才会出队
+     *
      * @param lockKey 分布式锁key
-     * @return 线程集
+     * @return true-唤醒了队头, false-没有等待者
      */
-    public Set<Thread> get(String lockKey){
-        Set<Thread> threadSet = THREAD_MAP.get(lockKey);
-        return Objects.isNull(threadSet) ? Collections.emptySet() : threadSet;
+    public boolean signal(String lockKey) {
+        WaitQueue queue = THREAD_MAP.get(lockKey);
+        if (Objects.isNull(queue)) {
+            return false;
+        }
+        Waiter head = queue.head();
+        if (Objects.nonNull(head)) {
+            head.signal();
+            return true;
+        }
+        return false;
     }
 
     /**
-     * 获取维护的所有分布式锁key
+     * 获取当前有线程在等待的所有分布式锁key
      * @return 键集合
      */
     public Set<String> getKeyList(){
         return THREAD_MAP.keySet();
     }
+
+    /**
+     * 注册key等待者变化的监听器
+     *
+     * @param listener 监听器
+     */
+    public void addListener(KeyListener listener) {
+        LISTENERS.add(Objects.requireNonNull(listener));
+    }
+
+    private static ReentrantLock stripe(String lockKey) {
+        int h = lockKey.hashCode();
+        return STRIPES[(h ^ (h >>> 16)) & (STRIPES.length - 1)];
+    }
+
+    /**
+     * key等待者变化的监听器. 回调在入队、出队的线程里同步执行, 且不在任何锁内;
+     * 同一个key的两次回调可能并发乱序到达, 实现方需要自行处理(比如按计数判断)
+     */
+    public interface KeyListener {
+
+        /**
+         * key的第一个等待者入队, 回调返回后该等待者才会去重试抢锁
+         *
+         * @param lockKey 分布式锁key
+         */
+        void onFirstWaiter(String lockKey);
+
+        /**
+         * key的最后一个等待者离开
+         *
+         * @param lockKey 分布式锁key
+         */
+        void onLastWaiter(String lockKey);
+    }
+
+    /**
+     * 等待节点, 一个节点对应一次等待. 按引用比较, 同一个线程多次等待也互不影响.
+     * 默认唤醒挂起的线程; 异步等待者没有线程, 覆写{@link #signal()}执行回调
+     */
+    public static class Waiter {
+
+        private final Thread thread;
+
+        /**
+         * 已经离开等待队列, 只在分段锁内写
+         */
+        private volatile boolean removed;
+
+        public Waiter(Thread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * 给不占用线程的等待者使用
+         */
+        protected Waiter() {
+            this.thread = null;
+        }
+
+        /**
+         * 唤醒等待者. 在释放锁的线程或者消息总线线程里执行, 不能阻塞
+         */
+        public void signal() {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * 一个key的等待队列. 入队、出队在分段锁内执行, 读取队头不加锁
+     */
+    private static class WaitQueue {
+
+        private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+        /**
+         * 仍在等待的节点数, 只在分段锁内读写
+         */
+        private int size;
+
+        private void offer(Waiter waiter) {
+            waiters.offer(waiter);
+            size++;
+        }
+
+        /**
+         * 标记出队, 并移除队头已离开的节点
+         *
+         * @return true-离开前该等待者处于队头
+         */
+        private boolean remove(Waiter waiter) {
+            boolean isHead = head() == waiter;
+            waiter.removed = true;
+            size--;
+            Waiter first;
+            while ((first = waiters.peek()) != null && first.removed) {
+                waiters.poll();
+            }
+            return isHead;
+        }
+
+        /**
+         * 第一个仍在等待的节点. 队头已离开的节点在出队时就会被移除, 这里通常只看一个节点
+         */
+        private Waiter head() {
+            for (Waiter waiter : waiters) {
+                if (!waiter.removed) {
+                    return waiter;
+                }
+            }
+            return null;
+        }
+    }
 }
@@ -1,41 +1,63 @@
 package com.sym.lock;
 
 import com.sym.holder.ThreadHolder;
-import lombok.extern.slf4j.Slf4j;
+import com.sym.holder.ThreadHolder.Waiter;
+import com.sym.metrics.LockMetrics;
+import com.sym.metrics.LockMetricsHolder;
 
-import java.util.Iterator;
-import java.util.UUID;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.LockSupport;
 
 /**
- * 抽象父类, 实现了加锁、解锁、定时任务的功能
+ * 抽象父类, 实现了加锁、解锁的功能, 自动续期交给{@link LeaseWatchdog}
+ * <p>
+ * 阻塞等待只用{@link LockSupport#parkNanos}挂起, 不在synchronized里等待, 在虚拟线程上使用时挂起会卸载虚拟线程, 不会钉住载体线程.
+ * 子类的tryRequire()、tryRelease()每次执行完都要归还数据库/redis连接, 挂起期间不能占着连接, 否则等待者的数量会受限于连接池大小.
+ * </p>
+ * <p>
+ * 加锁耗时、抢锁次数、持有时长、释放信号和每次访问中间件的耗时都会回调{@link LockMetrics}, 未安装实现时不记录持有状态.
+ * </p>
  *
  * @author shenyanming
  * Created on 2020/8/13 18:09
  */
-@Slf4j
 public abstract class AbstractLock implements ILock {
 
     //--------------------------------------------------------------- static field
 
     /**
-     * 全局唯一的 key-thread 持有
+     * 租期取此值时, 表示持有锁多久就自动续期多久
      */
-    private static ThreadHolder threadHolder = ThreadHolder.INSTANCE;
+    public final static long RENEW_WHILE_HELD = -1;
 
     /**
-     * 定时调度
+     * 自动续期模式下, 加锁和每次续期设置的租期(毫秒).
+     * 进程宕机后, 其它节点最多等待这么久就能重新抢到锁
      */
-    private static ScheduledExecutorService scheduledExecutor;
+    public final static long WATCHDOG_LEASE_MILLIS = 30 * 1000;
 
     /**
-     * 标识是否启动了定时任务, 仅仅会在真正开始使用时才启动定时任务
+     * 等待线程单次挂起的最长时间(毫秒). 即使释放消息丢失、或者锁过期没有任何通知, 等待线程也会按此周期醒来重试
      */
-    private static AtomicBoolean isStarted = new AtomicBoolean();
+    public final static long MAX_PARK_MILLIS = 5 * 1000;
+
+    /**
+     * 全局唯一的 key-thread 持有
+     */
+    private static ThreadHolder threadHolder = ThreadHolder.INSTANCE;
+
+    /**
+     * 实现类的类名, 作为访问中间件耗时的标签
+     */
+    private static ClassValue<String> BACKEND_NAMES = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            return type.getSimpleName();
+        }
+    };
 
 
     //--------------------------------------------------------------- field
@@ -46,83 +68,334 @@ public abstract class AbstractLock implements ILock {
     protected String key;
 
     /**
-     * 线程标识
+     * 固定的持有者标识, 为null时取当前线程的标识, 见{@link #ownerId()}
      */
     protected String threadId;
 
-    protected AbstractLock(String key, String threadId){
+    /**
+     * 锁的租期(毫秒), 为{@link #RENEW_WHILE_HELD}时表示自动续期
+     */
+    protected long leaseMillis;
+
+    /**
+     * 是否公平. 公平模式下只有本地等待队列的队头线程才能抢锁;
+     * 非公平(插队)模式下新来的线程会先抢一次, 失败了才排队
+     */
+    protected boolean fair;
+
+    /**
+     * 每个持有者的加锁时间和重入次数, 只在安装了{@link LockMetrics}时记录, 用来统计持有时长
+     */
+    private final Map<String, HoldTime> holdTimes = new ConcurrentHashMap<>();
+
+    /**
+     * @param threadId 固定的持有者标识, 为null时每个线程使用自己的标识, 锁实例可以被多个线程共用
+     */
+    protected AbstractLock(String key, String threadId) {
+        this(key, threadId, RENEW_WHILE_HELD);
+    }
+
+    protected AbstractLock(String key, String threadId, long leaseMillis) {
+        this(key, threadId, leaseMillis, false);
+    }
+
+    protected AbstractLock(String key, String threadId, long leaseMillis, boolean fair) {
+        if (leaseMillis <= 0 && leaseMillis != RENEW_WHILE_HELD) {
+            throw new IllegalArgumentException("leaseMillis must be positive or RENEW_WHILE_HELD");
+        }
         this.key = key;
         this.threadId = threadId;
+        this.leaseMillis = leaseMillis;
+        this.fair = fair;
     }
 
-    static {
-        scheduledExecutor = Executors.newScheduledThreadPool(3);
-        // 钩子函数
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> scheduledExecutor.shutdown()));
+    @Override
+    public void lock() throws InterruptedException {
+        lockWithToken();
     }
 
     @Override
-    public void lock() throws InterruptedException {
-        Thread t = Thread.currentThread();
-        for (; ; ) {
-            // get lock, then return
-            if (tryRequire()) return;
-            // lose lock, then interrupt
-            if (threadHolder.put(key, t)) {
-                LockSupport.park(this);
-                if (Thread.interrupted()) {
-                    throw new InterruptedException("thread interrupt");
-                }
-            }
-        }
+    public long lockWithToken() throws InterruptedException {
+        return acquire(false, 0L);
     }
 
     @Override
     public boolean tryLock() {
-        return tryRequire();
+        LockMetrics metrics = LockMetricsHolder.get();
+        long start = System.nanoTime();
+        if (require(metrics) > 0) {
+            afterRequire();
+            metrics.acquired(key, System.nanoTime() - start, 1, true);
+            return true;
+        }
+        cancelRequire();
+        metrics.acquired(key, System.nanoTime() - start, 1, false);
+        return false;
     }
 
     @Override
     public boolean tryLock(long time, TimeUnit timeUnit) throws InterruptedException {
-        long needTime = timeUnit.toNanos(time);
-        long deadTime = needTime + System.nanoTime();
-        Thread t = Thread.currentThread();
-        for (; ; ) {
-            if (tryRequire()) return true;
-            needTime = deadTime - System.nanoTime();
-            if (needTime <= 0L) {
-                // 等待时间点到, 还未获取到锁, 返回
-                return false;
-            }
-            // 返回时间点未到, 挂起线程
-            if (threadHolder.put(key, t)) {
-                LockSupport.parkNanos(this, needTime);
+        return tryLockWithToken(time, timeUnit) != NO_TOKEN;
+    }
+
+    @Override
+    public long tryLockWithToken(long time, TimeUnit timeUnit) throws InterruptedException {
+        return acquire(true, System.nanoTime() + timeUnit.toNanos(time));
+    }
+
+    @Override
+    public void unlock() {
+        LockMetrics metrics = LockMetricsHolder.get();
+        boolean released;
+        long start = System.nanoTime();
+        try {
+            released = tryRelease();
+        } catch (RuntimeException e) {
+            metrics.backendCall(BACKEND_NAMES.get(getClass()), "release", System.nanoTime() - start, false);
+            // 解锁异常时不再续期, 让锁自然过期
+            cancelRenewal();
+            holdTimes.remove(ownerId());
+            throw e;
+        }
+        long now = System.nanoTime();
+        metrics.backendCall(BACKEND_NAMES.get(getClass()), "release", now - start, true);
+        afterRelease(metrics, released, now);
+        if (released) {
+            cancelRenewal();
+            // 释放锁成功, 只唤醒本地等待队列的队头线程, 等待者挂在 waitKey() 的队列上, 比如读锁挂在读写锁的key上.
+            // 分布式集群的其它节点, 在 tryRelease() 具体实现中去释放信号
+            metrics.signalled(key, false, threadHolder.signal(waitKey()));
+        }
+    }
+
+    /**
+     * 抢锁, 失败后进入本地等待队列挂起, 被唤醒后再重试
+     *
+     * @param timed    是否限时
+     * @param deadline 限时的截止时间点(纳秒)
+     * @return 防护令牌, 超时返回{@link #NO_TOKEN}
+     */
+    private long acquire(boolean timed, long deadline) throws InterruptedException {
+        LockMetrics metrics = LockMetricsHolder.get();
+        long start = System.nanoTime();
+        int attempts = 0;
+        Waiter waiter = null;
+        // 等待节点所在队列的key
+        String waitKey = key;
+        boolean acquired = false;
+        try {
+            for (; ; ) {
+                // 锁的剩余存活时间, 0表示未知
+                long ttlNanos = 0L;
+                if (mayRequire(waiter)) {
+                    attempts++;
+                    long result = require(metrics);
+                    if (result > 0) {
+                        if (waiter != null) {
+                            // 共享锁抢到后把信号传给下一个等待者, 排在后面的共享锁可以一起获得
+                            if (threadHolder.remove(waitKey, waiter) && isShared()) {
+                                threadHolder.signal(waitKey);
+                            }
+                            waiter = null;
+                        }
+                        acquired = true;
+                        afterRequire();
+                        return result;
+                    }
+                    ttlNanos = TimeUnit.MILLISECONDS.toNanos(-result);
+                    String blockingKey = waitKey();
+                    if (waiter != null && !blockingKey.equals(waitKey)) {
+                        // 挡住自己的key变了, 换到它的等待队列, 离开时把可能消耗掉的信号传下去
+                        if (threadHolder.remove(waitKey, waiter)) {
+                            threadHolder.signal(waitKey);
+                        }
+                        waiter = null;
+                    }
+                    waitKey = blockingKey;
+                }
+                long needTime = 0L;
+                if (timed && (needTime = deadline - System.nanoTime()) <= 0L) {
+                    // 等待时间点到, 还未获取到锁, 返回
+                    return NO_TOKEN;
+                }
+                if (waiter == null) {
+                    waiter = new Waiter(Thread.currentThread());
+                    // 入队时恰好成为队头, 锁可能在入队前就被释放了, 信号已经错过, 需要立即再抢一次
+                    if (threadHolder.put(waitKey, waiter)) {
+                        continue;
+                    }
+                }
+                // 挂起线程, 等待队头信号; 最多挂起到锁自然过期, 过期后立即重试
+                long parkNanos = parkNanos(ttlNanos);
+                LockSupport.parkNanos(this, timed ? Math.min(needTime, parkNanos) : parkNanos);
                 if (Thread.interrupted()) {
                     throw new InterruptedException("thread interrupt");
                 }
             }
+        } finally {
+            if (!acquired) {
+                cancelRequire();
+            }
+            // 超时或中断离开队列时, 如果自己是队头, 可能已经消耗掉了唤醒信号, 需要把信号传给下一个线程
+            if (waiter != null && threadHolder.remove(waitKey, waiter)) {
+                threadHolder.signal(waitKey);
+            }
+            metrics.acquired(key, System.nanoTime() - start, attempts, acquired);
         }
     }
 
-    @Override
-    public void unlock() {
-        if (tryRelease()) {
-            // 释放锁成功, 唤醒本地阻塞的线程.
-            // 分布式集群的其它节点, 在 tryRelease() 具体实现中去释放信号
-            Iterator<Thread> iterator = threadHolder.get(key).iterator();
-            while (iterator.hasNext()) {
-                Thread thread = iterator.next();
-                LockSupport.unpark(thread);
-                iterator.remove();
-            }
+    /**
+     * 调用{@link #tryRequire()}, 并记录访问中间件的耗时
+     */
+    private long require(LockMetrics metrics) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            long result = tryRequire();
+            success = true;
+            return result;
+        } finally {
+            metrics.backendCall(BACKEND_NAMES.get(getClass()), "acquire", System.nanoTime() - start, success);
         }
     }
 
+    /**
+     * 计算单次挂起的时长: 锁的剩余存活时间(未知时取{@link #MAX_PARK_MILLIS}, 且不超过它)再加上随机抖动,
+     * 避免多个节点的等待线程在锁过期的同一时刻一起重试
+     *
+     * @param ttlNanos 锁的剩余存活时间, 0表示未知
+     */
+    public static long parkNanos(long ttlNanos) {
+        long maxParkNanos = TimeUnit.MILLISECONDS.toNanos(MAX_PARK_MILLIS);
+        long nanos = ttlNanos > 0L ? Math.min(ttlNanos, maxParkNanos) : maxParkNanos;
+        return nanos + ThreadLocalRandom.current().nextLong(nanos / 10 + 1);
+    }
+
+    /**
+     * 当前线程此时能否去抢锁
+     *
+     * @param waiter 当前线程的等待节点, 未入队时为null
+     */
+    private boolean mayRequire(Waiter waiter) {
+        if (!fair) {
+            return true;
+        }
+        return waiter != null ? threadHolder.isHead(key, waiter) : !threadHolder.hasWaiters(key);
+    }
+
     /**
      * 实际资源申请、释放
+     *
+     * @return 申请资源时, 大于0表示加锁成功, 值为防护令牌; 小于0表示加锁失败, 绝对值为锁剩余的存活时间(毫秒);
+     * 等于0表示加锁失败, 且剩余存活时间未知
      */
-    protected abstract boolean tryRequire();
+    protected abstract long tryRequire();
 
     protected abstract boolean tryRelease();
 
+    /**
+     * 放弃加锁(超时、中断或者tryLock失败)时回调, 清理{@link #tryRequire()}留下的排队状态,
+     * 比如zookeeper的顺序节点. 默认什么都不做
+     */
+    protected void cancelRequire() {
+    }
+
+    /**
+     * 当前线程最近一次{@link #tryRequire()}失败后, 应该在哪个key的等待队列上等待释放信号. 默认就是锁的key;
+     * 同时锁住多个key的实现返回挡住自己的那个key, 见{@link com.sym.lock.redis.RedisMultiLock}
+     */
+    protected String waitKey() {
+        return key;
+    }
+
+    /**
+     * 是否为共享锁(比如读锁), 多个持有者可以同时获得. 默认为互斥锁
+     */
+    protected boolean isShared() {
+        return false;
+    }
+
+    /**
+     * 加锁、解锁时使用的持有者标识: 构造时指定了就用固定的, 否则用当前线程的{@link LockOwner#current()}
+     */
+    protected String ownerId() {
+        return threadId != null ? threadId : LockOwner.current();
+    }
+
+    /**
+     * 自动续期所使用的续期器, 返回null表示该实现不需要续期(比如zookeeper的临时节点)
+     */
+    protected LeaseRenewer leaseRenewer() {
+        return null;
+    }
+
+    /**
+     * 每次加锁时实际设置的租期(毫秒)
+     */
+    protected long ttlMillis() {
+        return leaseMillis == RENEW_WHILE_HELD ? WATCHDOG_LEASE_MILLIS : leaseMillis;
+    }
+
+    /**
+     * 加锁成功后记录加锁时间; 若是自动续期模式, 登记租约
+     */
+    private void afterRequire() {
+        if (LockMetricsHolder.isEnabled()) {
+            HoldTime holdTime = holdTimes.get(ownerId());
+            if (holdTime == null) {
+                holdTimes.put(ownerId(), new HoldTime(System.nanoTime()));
+            } else {
+                holdTime.count++;
+            }
+        }
+        LeaseRenewer renewer;
+        if (leaseMillis != RENEW_WHILE_HELD || (renewer = leaseRenewer()) == null) {
+            return;
+        }
+        LeaseWatchdog.watch(new Lease(key, ownerId(), WATCHDOG_LEASE_MILLIS, renewer));
+    }
+
+    /**
+     * 解锁后更新持有状态, 锁被完全释放时记录持有时长. 重入次数已经减到0却没有释放, 说明锁已经丢失, 只清理不记录
+     *
+     * @param released 锁是否被完全释放
+     * @param now      解锁完成的时间(纳秒)
+     */
+    private void afterRelease(LockMetrics metrics, boolean released, long now) {
+        if (holdTimes.isEmpty()) {
+            return;
+        }
+        String owner = ownerId();
+        HoldTime holdTime = holdTimes.get(owner);
+        if (holdTime == null) {
+            return;
+        }
+        if (released) {
+            holdTimes.remove(owner);
+            metrics.released(key, now - holdTime.since);
+        } else if (--holdTime.count <= 0) {
+            holdTimes.remove(owner);
+        }
+    }
+
+    /**
+     * 锁被完全释放后, 取消续期
+     */
+    private void cancelRenewal() {
+        if (leaseMillis == RENEW_WHILE_HELD) {
+            LeaseWatchdog.unwatch(key, ownerId());
+        }
+    }
+
+    /**
+     * 一个持有者的加锁时间和重入次数, 只有所属线程会读写
+     */
+    private static class HoldTime {
+        private final long since;
+        private int count = 1;
+
+        private HoldTime(long since) {
+            this.since = since;
+        }
+    }
 }
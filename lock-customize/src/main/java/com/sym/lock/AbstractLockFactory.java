@@ -0,0 +1,92 @@
+package com.sym.lock;
+
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+import org.springframework.util.ConcurrentReferenceHashMap;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式锁工厂的抽象父类, 按key+租期缓存锁实例.
+ * 缓存使用弱引用, 没有线程再使用的锁实例会被回收, 不会随着key的数量无限增长
+ *
+ * @author shenyanming
+ * Created on 2020/8/21 10:30
+ */
+public abstract class AbstractLockFactory implements ILockFactory {
+
+    private final Map<CacheKey, ILock> locks =
+            new ConcurrentReferenceHashMap<>(256, ConcurrentReferenceHashMap.ReferenceType.WEAK);
+
+    @Override
+    public ILock getLock(String key) {
+        return getLock(key, AbstractLock.RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public ILock getLock(String key, long keepTime, TimeUnit timeUnit) {
+        long leaseMillis = keepTime == AbstractLock.RENEW_WHILE_HELD ? AbstractLock.RENEW_WHILE_HELD : timeUnit.toMillis(keepTime);
+        CacheKey cacheKey = new CacheKey(key, leaseMillis);
+        ILock lock = locks.get(cacheKey);
+        if (lock == null) {
+            lock = locks.computeIfAbsent(cacheKey, k -> createLock(k.key, k.leaseMillis));
+        }
+        return lock;
+    }
+
+    @Override
+    public ILock getMultiLock(Collection<String> keys) {
+        return getMultiLock(keys, AbstractLock.RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 默认按key的字典序逐个加锁, 见{@link MultiLock}
+     */
+    @Override
+    public ILock getMultiLock(Collection<String> keys, long keepTime, TimeUnit timeUnit) {
+        return new MultiLock(keys, key -> getLock(key, keepTime, timeUnit));
+    }
+
+    @Override
+    public IReadWriteLock getReadWriteLock(String key) {
+        return getReadWriteLock(key, AbstractLock.RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 默认不支持读写锁
+     */
+    @Override
+    public IReadWriteLock getReadWriteLock(String key, long keepTime, TimeUnit timeUnit) {
+        throw new UnsupportedOperationException("加锁策略[" + strategy() + "]不支持读写锁");
+    }
+
+    @Override
+    public ISemaphore getSemaphore(String key, int permits) {
+        return getSemaphore(key, permits, AbstractLock.RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 默认不支持信号量
+     */
+    @Override
+    public ISemaphore getSemaphore(String key, int permits, long keepTime, TimeUnit timeUnit) {
+        throw new UnsupportedOperationException("加锁策略[" + strategy() + "]不支持信号量");
+    }
+
+    /**
+     * 创建锁实例
+     *
+     * @param key         分布式锁key
+     * @param leaseMillis 租期(毫秒), 为{@link AbstractLock#RENEW_WHILE_HELD}时自动续期
+     */
+    protected abstract ILock createLock(String key, long leaseMillis);
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static class CacheKey {
+        private final String key;
+        private final long leaseMillis;
+    }
+}
@@ -0,0 +1,209 @@
+package com.sym.lock;
+
+import com.sym.holder.ThreadHolder;
+import com.sym.holder.ThreadHolder.Waiter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 分布式信号量的抽象父类, 实现了等待、唤醒和自动续期, 与{@link AbstractLock}的加锁流程相同.
+ * <p>
+ * 许可不足时线程进入本地等待队列挂起, 被释放信号唤醒或者挂起到期后重试. 信号量是共享的,
+ * 队头获得许可后会把信号传给下一个等待者, 一次释放多个许可时排在后面的等待者也能依次获得.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/26 10:10
+ */
+public abstract class AbstractSemaphore implements ISemaphore {
+
+    private static ThreadHolder threadHolder = ThreadHolder.INSTANCE;
+
+    /**
+     * 许可凭证中许可个数前面的分隔符
+     */
+    protected final static String PERMIT_SEPARATOR = "/";
+
+    /**
+     * 信号量的key
+     */
+    protected final String key;
+
+    /**
+     * 许可总数, 集群内所有节点必须一致
+     */
+    protected final int permits;
+
+    /**
+     * 许可的租期(毫秒), 为{@link AbstractLock#RENEW_WHILE_HELD}时表示自动续期
+     */
+    protected final long leaseMillis;
+
+    protected AbstractSemaphore(String key, int permits, long leaseMillis) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive");
+        }
+        if (leaseMillis <= 0 && leaseMillis != AbstractLock.RENEW_WHILE_HELD) {
+            throw new IllegalArgumentException("leaseMillis must be positive or RENEW_WHILE_HELD");
+        }
+        this.key = key;
+        this.permits = permits;
+        this.leaseMillis = leaseMillis;
+    }
+
+    @Override
+    public String acquire() throws InterruptedException {
+        return acquire(1);
+    }
+
+    @Override
+    public String acquire(int permits) throws InterruptedException {
+        return acquire(permits, false, 0L);
+    }
+
+    @Override
+    public String tryAcquire(int permits) {
+        String permitId = newPermitId(permits);
+        if (tryRequire(permitId, permits) > 0) {
+            afterRequire(permitId);
+            return permitId;
+        }
+        cancelRequire(permitId);
+        return null;
+    }
+
+    @Override
+    public String tryAcquire(int permits, long time, TimeUnit timeUnit) throws InterruptedException {
+        return acquire(permits, true, System.nanoTime() + timeUnit.toNanos(time));
+    }
+
+    @Override
+    public boolean release(String permitId) {
+        if (leaseMillis == AbstractLock.RENEW_WHILE_HELD) {
+            LeaseWatchdog.unwatch(key, permitId);
+        }
+        boolean released = tryRelease(permitId);
+        if (released) {
+            threadHolder.signal(key);
+        }
+        return released;
+    }
+
+    /**
+     * 获取许可, 失败后进入本地等待队列挂起, 被唤醒后再重试. 同一次获取的多次重试使用同一个许可凭证
+     *
+     * @param timed    是否限时
+     * @param deadline 限时的截止时间点(纳秒)
+     * @return 许可凭证, 超时返回null
+     */
+    private String acquire(int permits, boolean timed, long deadline) throws InterruptedException {
+        String permitId = newPermitId(permits);
+        Waiter waiter = null;
+        boolean acquired = false;
+        try {
+            for (; ; ) {
+                long result = tryRequire(permitId, permits);
+                if (result > 0) {
+                    if (waiter != null) {
+                        if (threadHolder.remove(key, waiter)) {
+                            threadHolder.signal(key);
+                        }
+                        waiter = null;
+                    }
+                    acquired = true;
+                    afterRequire(permitId);
+                    return permitId;
+                }
+                long needTime = 0L;
+                if (timed && (needTime = deadline - System.nanoTime()) <= 0L) {
+                    return null;
+                }
+                if (waiter == null) {
+                    waiter = new Waiter(Thread.currentThread());
+                    // 入队时恰好成为队头, 许可可能在入队前就被释放了, 信号已经错过, 需要立即再试一次
+                    if (threadHolder.put(key, waiter)) {
+                        continue;
+                    }
+                }
+                // 最多挂起到最早的许可到期
+                long parkNanos = AbstractLock.parkNanos(TimeUnit.MILLISECONDS.toNanos(-result));
+                LockSupport.parkNanos(this, timed ? Math.min(needTime, parkNanos) : parkNanos);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("thread interrupt");
+                }
+            }
+        } finally {
+            if (!acquired) {
+                cancelRequire(permitId);
+            }
+            if (waiter != null && threadHolder.remove(key, waiter)) {
+                threadHolder.signal(key);
+            }
+        }
+    }
+
+    /**
+     * 生成许可凭证, 带上许可个数, 释放时据此知道这一批有几个许可
+     */
+    private String newPermitId(int permits) {
+        if (permits <= 0 || permits > this.permits) {
+            throw new IllegalArgumentException("permits must be between 1 and " + this.permits);
+        }
+        return LockOwner.newFixed() + PERMIT_SEPARATOR + permits;
+    }
+
+    /**
+     * 从许可凭证中解析出许可个数
+     */
+    protected static int permitsOf(String permitId) {
+        return Integer.parseInt(permitId.substring(permitId.lastIndexOf(PERMIT_SEPARATOR) + 1));
+    }
+
+    /**
+     * 实际获取许可
+     *
+     * @param permitId 许可凭证
+     * @param permits  许可个数
+     * @return 大于0表示获取成功; 小于0表示许可不足, 绝对值为最早的许可到期的剩余时间(毫秒); 等于0表示许可不足, 剩余时间未知
+     */
+    protected abstract long tryRequire(String permitId, int permits);
+
+    /**
+     * 实际释放许可
+     *
+     * @return true-释放成功
+     */
+    protected abstract boolean tryRelease(String permitId);
+
+    /**
+     * 放弃获取(超时、中断或者tryAcquire失败)时回调, 清理{@link #tryRequire(String, int)}留下的排队状态. 默认什么都不做
+     */
+    protected void cancelRequire(String permitId) {
+    }
+
+    /**
+     * 自动续期所使用的续期器, 返回null表示该实现不需要续期
+     */
+    protected LeaseRenewer leaseRenewer() {
+        return null;
+    }
+
+    /**
+     * 每次获取许可时实际设置的租期(毫秒)
+     */
+    protected long ttlMillis() {
+        return leaseMillis == AbstractLock.RENEW_WHILE_HELD ? AbstractLock.WATCHDOG_LEASE_MILLIS : leaseMillis;
+    }
+
+    /**
+     * 获取成功后, 若是自动续期模式, 登记租约. 租约的持有者就是许可凭证
+     */
+    private void afterRequire(String permitId) {
+        LeaseRenewer renewer;
+        if (leaseMillis != AbstractLock.RENEW_WHILE_HELD || (renewer = leaseRenewer()) == null) {
+            return;
+        }
+        LeaseWatchdog.watch(new Lease(key, permitId, AbstractLock.WATCHDOG_LEASE_MILLIS, renewer));
+    }
+}
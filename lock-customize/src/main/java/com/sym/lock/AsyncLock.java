@@ -0,0 +1,40 @@
+package com.sym.lock;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步分布式锁接口, 等待锁期间不占用任何线程.
+ * <p>
+ * 异步调用没有固定的线程, 持有者是锁实例本身: 一个实例代表一个持有者, 可重入, 加锁和解锁必须使用同一个实例,
+ * 不同的业务流程不要共用一个实例.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/21 15:30
+ */
+public interface AsyncLock {
+
+    /**
+     * 异步获取分布式锁, 抢夺失败会一直等待
+     *
+     * @return 防护令牌, 大于0
+     */
+    CompletableFuture<Long> lockAsync();
+
+    /**
+     * 异步获取分布式锁, 抢到锁时立即完成; 未抢到锁等待指定时长后, 仍不能抢锁则以{@link ILock#NO_TOKEN}完成
+     *
+     * @param time     等待时长
+     * @param timeUnit 等待时间单位
+     * @return 防护令牌, 抢锁失败时为{@link ILock#NO_TOKEN}
+     */
+    CompletableFuture<Long> tryLockAsync(long time, TimeUnit timeUnit);
+
+    /**
+     * 异步解锁
+     *
+     * @return true-锁已完全释放, false-重入次数减1后仍持有, 或者锁已过期、被其它持有者占用
+     */
+    CompletableFuture<Boolean> unlockAsync();
+}
@@ -0,0 +1,232 @@
+package com.sym.lock;
+
+import com.sym.holder.LocalLock;
+import com.sym.holder.LocalLockHolder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * 两级锁: 本地锁+分布式锁.
+ * <p>
+ * 同一个JVM里争抢同一个key的线程, 先在本地的{@link ReentrantLock}上排队, 只有抢到本地锁的线程才会去访问分布式锁.
+ * 解锁时如果还有本地线程在排队, 分布式锁不释放, 直接交给下一个本地线程, 省掉一次解锁和一次加锁的网络往返.
+ * 连续交接{@link #MAX_HANDOFFS}次后, 会强制释放一次分布式锁, 让其它节点有机会抢到锁.
+ * </p>
+ * <p>
+ * 注意: 交接时分布式锁的租期不会重置, 建议分布式锁使用自动续期模式; 交接后拿到的防护令牌与上一个本地持有者相同.
+ * </p>
+ * <p>
+ * 排队的线程可能没拿到本地锁就离开(超时、中断), 分布式锁不能留给一个已经离开的线程: 离开的线程会检查本地锁是否空闲且无人排队,
+ * 是则释放分布式锁; 保留了分布式锁的持有者在解锁后如果发现期间有线程离开, 也会再检查一次, 见{@link #releaseIfAbandoned()}.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/18 14:35
+ */
+@Slf4j
+public class CoalescingLock implements ILock {
+
+    /**
+     * 分布式锁在本地线程之间连续交接的次数上限
+     */
+    public final static int MAX_HANDOFFS = 64;
+
+    private final LocalLock localLock;
+
+    /**
+     * @param key           分布式锁key
+     * @param remoteCreator 创建分布式锁的方法, 同一个JVM里同一个key只会创建一把
+     */
+    public CoalescingLock(String key, Function<String, ILock> remoteCreator) {
+        this.localLock = LocalLockHolder.INSTANCE.get(key, remoteCreator);
+    }
+
+    @Override
+    public void lock() throws InterruptedException {
+        lockWithToken();
+    }
+
+    @Override
+    public long lockWithToken() throws InterruptedException {
+        ReentrantLock lock = localLock.getLock();
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            abandon();
+            throw e;
+        }
+        try {
+            if (inherit()) {
+                return localLock.getToken();
+            }
+            return remoteAcquired(localLock.getRemote().lockWithToken());
+        } catch (Throwable e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        ReentrantLock lock = localLock.getLock();
+        if (!lock.tryLock()) {
+            return false;
+        }
+        long token;
+        try {
+            if (inherit()) {
+                return true;
+            }
+            // 等待时长为0, 只抢一次, 不会挂起
+            token = localLock.getRemote().tryLockWithToken(0L, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            token = NO_TOKEN;
+        } catch (Throwable e) {
+            lock.unlock();
+            throw e;
+        }
+        if (token == NO_TOKEN) {
+            lock.unlock();
+            return false;
+        }
+        remoteAcquired(token);
+        return true;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit timeUnit) throws InterruptedException {
+        return tryLockWithToken(time, timeUnit) != NO_TOKEN;
+    }
+
+    @Override
+    public long tryLockWithToken(long time, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(time);
+        ReentrantLock lock = localLock.getLock();
+        boolean locked;
+        try {
+            locked = lock.tryLock(time, timeUnit);
+        } catch (InterruptedException e) {
+            abandon();
+            throw e;
+        }
+        if (!locked) {
+            abandon();
+            return NO_TOKEN;
+        }
+        long token;
+        try {
+            if (inherit()) {
+                return localLock.getToken();
+            }
+            long remaining = Math.max(0L, deadline - System.nanoTime());
+            token = localLock.getRemote().tryLockWithToken(remaining, TimeUnit.NANOSECONDS);
+        } catch (Throwable e) {
+            lock.unlock();
+            throw e;
+        }
+        if (token == NO_TOKEN) {
+            lock.unlock();
+            return NO_TOKEN;
+        }
+        return remoteAcquired(token);
+    }
+
+    @Override
+    public void unlock() {
+        ReentrantLock lock = localLock.getLock();
+        if (!lock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("current thread does not hold the lock");
+        }
+        // 先记下离开次数, 再判断有没有线程排队
+        AtomicInteger departures = localLock.getDepartures();
+        int seen = departures.get();
+        boolean kept = false;
+        try {
+            // 最外层解锁时, 没有本地线程排队或者交接次数达到上限, 才真正释放分布式锁
+            if (lock.getHoldCount() == 1 && localLock.isRemoteHeld()) {
+                if (!lock.hasQueuedThreads() || localLock.getHandoffs() >= MAX_HANDOFFS) {
+                    localLock.setRemoteHeld(false);
+                    localLock.getRemote().unlock();
+                } else {
+                    kept = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        // 为排队线程保留了分布式锁, 但期间有线程离开, 它可能就是那个排队线程
+        if (kept && departures.get() != seen) {
+            releaseIfAbandoned();
+        }
+    }
+
+    /**
+     * 排队的线程没拿到本地锁就离开
+     */
+    private void abandon() {
+        localLock.getDepartures().incrementAndGet();
+        releaseIfAbandoned();
+    }
+
+    /**
+     * 本地锁空闲、分布式锁仍被本JVM持有、且没有线程排队时, 分布式锁已经没有人会去释放了, 在这里释放.
+     * 抢不到本地锁说明有其它持有者, 由它解锁时判断; 检查期间又有线程离开时再检查一次
+     */
+    private void releaseIfAbandoned() {
+        ReentrantLock lock = localLock.getLock();
+        AtomicInteger departures = localLock.getDepartures();
+        int seen;
+        do {
+            seen = departures.get();
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                if (!localLock.isRemoteHeld()) {
+                    return;
+                }
+                if (!lock.hasQueuedThreads()) {
+                    localLock.setRemoteHeld(false);
+                    try {
+                        localLock.getRemote().unlock();
+                    } catch (RuntimeException e) {
+                        // 解锁异常时分布式锁已停止续期, 等待它自然过期
+                        log.warn("释放无人接手的分布式锁异常, ", e);
+                    }
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        } while (departures.get() != seen);
+    }
+
+    /**
+     * 持有本地锁后, 判断能否直接沿用分布式锁: 本地重入, 或者上一个本地持有者没有释放分布式锁
+     */
+    private boolean inherit() {
+        if (localLock.getLock().getHoldCount() > 1) {
+            return true;
+        }
+        if (localLock.isRemoteHeld()) {
+            localLock.setHandoffs(localLock.getHandoffs() + 1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 记录抢到的分布式锁
+     */
+    private long remoteAcquired(long token) {
+        localLock.setRemoteHeld(true);
+        localLock.setToken(token);
+        localLock.setHandoffs(0);
+        return token;
+    }
+}
@@ -10,6 +10,11 @@ import java.util.concurrent.TimeUnit;
  */
 public interface ILock {
 
+    /**
+     * 未获取到锁时返回的令牌
+     */
+    long NO_TOKEN = 0L;
+
     /**
      * 获取分布式锁, 抢夺失败会一直阻塞
      */
@@ -32,6 +37,24 @@ public interface ILock {
      */
     boolean tryLock(long time, TimeUnit timeUnit) throws InterruptedException;
 
+    /**
+     * 获取分布式锁, 抢夺失败会一直阻塞. 加锁成功后返回防护令牌(fencing token),
+     * 同一个key的令牌单调递增, 下游存储可以拒绝令牌比已见过的更小的写入, 以此屏蔽GC停顿后锁已过期的旧持有者
+     *
+     * @return 防护令牌, 大于0
+     */
+    long lockWithToken() throws InterruptedException;
+
+    /**
+     * 获取分布式锁, 抢到锁时立即返回防护令牌; 未抢到锁等待指定时长后, 仍不能抢锁则返回{@link #NO_TOKEN}
+     *
+     * @param time     等待时长
+     * @param timeUnit 等待时间单位
+     *
+     * @return 防护令牌, 抢锁失败时为{@link #NO_TOKEN}
+     */
+    long tryLockWithToken(long time, TimeUnit timeUnit) throws InterruptedException;
+
     /**
      * 解锁
      */
@@ -0,0 +1,89 @@
+package com.sym.lock;
+
+import com.sym.enums.LockStrategy;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式锁工厂, 由配置项 lock.strategy 决定使用哪一种实现.
+ * 同一个key(+租期)返回同一个锁实例, 锁实例可以被多个线程共用, 持有者是线程级的
+ *
+ * @author shenyanming
+ * Created on 2020/8/21 10:20
+ */
+public interface ILockFactory {
+
+    /**
+     * 获取分布式锁, 持有锁期间自动续期
+     *
+     * @param key 分布式锁key
+     */
+    ILock getLock(String key);
+
+    /**
+     * 获取分布式锁
+     *
+     * @param key      分布式锁key
+     * @param keepTime 持有锁的时间, 为{@link AbstractLock#RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     */
+    ILock getLock(String key, long keepTime, TimeUnit timeUnit);
+
+    /**
+     * 获取同时锁住多个key的联锁, 持有锁期间自动续期. 联锁不缓存, 每次返回新实例
+     *
+     * @param keys 需要同时锁住的key
+     */
+    ILock getMultiLock(Collection<String> keys);
+
+    /**
+     * 获取同时锁住多个key的联锁, 所有key要么全部获得, 要么一个都不获得
+     *
+     * @param keys     需要同时锁住的key
+     * @param keepTime 持有锁的时间, 为{@link AbstractLock#RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     */
+    ILock getMultiLock(Collection<String> keys, long keepTime, TimeUnit timeUnit);
+
+    /**
+     * 获取读写锁, 持有锁期间自动续期. 读写锁不缓存, 每次返回新实例
+     *
+     * @param key 分布式锁key
+     */
+    IReadWriteLock getReadWriteLock(String key);
+
+    /**
+     * 获取读写锁
+     *
+     * @param key      分布式锁key
+     * @param keepTime 持有锁的时间, 为{@link AbstractLock#RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     * @throws UnsupportedOperationException 该加锁策略不支持读写锁
+     */
+    IReadWriteLock getReadWriteLock(String key, long keepTime, TimeUnit timeUnit);
+
+    /**
+     * 获取分布式信号量, 持有许可期间自动续期. 信号量不缓存, 每次返回新实例
+     *
+     * @param key     信号量key
+     * @param permits 许可总数, 集群内所有节点必须一致
+     */
+    ISemaphore getSemaphore(String key, int permits);
+
+    /**
+     * 获取分布式信号量
+     *
+     * @param key      信号量key
+     * @param permits  许可总数, 集群内所有节点必须一致
+     * @param keepTime 持有许可的时间, 为{@link AbstractLock#RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     * @throws UnsupportedOperationException 该加锁策略不支持信号量
+     */
+    ISemaphore getSemaphore(String key, int permits, long keepTime, TimeUnit timeUnit);
+
+    /**
+     * @return 加锁策略
+     */
+    LockStrategy strategy();
+}
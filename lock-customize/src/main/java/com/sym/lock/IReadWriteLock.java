@@ -0,0 +1,24 @@
+package com.sym.lock;
+
+/**
+ * 分布式读写锁接口: 读锁之间共享, 读锁与写锁、写锁与写锁之间互斥.
+ * <p>
+ * 读锁、写锁都可重入; 持有写锁的线程可以再获取读锁, 然后释放写锁, 完成写锁到读锁的降级.
+ * 不支持读锁升级为写锁: 持有读锁时获取写锁会一直等待自己的读锁释放, 直到超时.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/25 09:50
+ */
+public interface IReadWriteLock {
+
+    /**
+     * @return 读锁
+     */
+    ILock readLock();
+
+    /**
+     * @return 写锁
+     */
+    ILock writeLock();
+}
@@ -0,0 +1,62 @@
+package com.sym.lock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式信号量接口, 集群内同一个key最多同时发出指定个数的许可.
+ * <p>
+ * 每次获取(可以一次获取多个许可)得到一个许可凭证, 释放时交回凭证, 凭证可以在线程之间传递.
+ * 许可带有租期, 持有者宕机后许可会在租期到了以后自动回收.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/26 10:00
+ */
+public interface ISemaphore {
+
+    /**
+     * 获取1个许可, 许可不足时一直等待
+     *
+     * @return 许可凭证
+     */
+    String acquire() throws InterruptedException;
+
+    /**
+     * 一次获取多个许可, 要么全部获得, 要么一个都不获得; 许可不足时一直等待
+     *
+     * @param permits 许可个数
+     * @return 许可凭证, 代表这一批许可
+     */
+    String acquire(int permits) throws InterruptedException;
+
+    /**
+     * 尝试获取多个许可, 不管成功与否, 都会立即返回
+     *
+     * @param permits 许可个数
+     * @return 许可凭证, 许可不足时为null
+     */
+    String tryAcquire(int permits);
+
+    /**
+     * 尝试获取多个许可, 许可不足时最多等待指定时长
+     *
+     * @param permits  许可个数
+     * @param time     等待时长
+     * @param timeUnit 等待时间单位
+     * @return 许可凭证, 等待超时时为null
+     */
+    String tryAcquire(int permits, long time, TimeUnit timeUnit) throws InterruptedException;
+
+    /**
+     * 释放一次获取得到的所有许可
+     *
+     * @param permitId 许可凭证
+     * @return true-释放成功, false-许可已过期被回收或者已经释放过
+     */
+    boolean release(String permitId);
+
+    /**
+     * @return 当前可用的许可个数
+     */
+    int availablePermits();
+}
@@ -0,0 +1,38 @@
+package com.sym.lock;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * 锁租约, 表示本地持有的、需要自动续期的一把分布式锁.
+ * 同一个key+持有者只会对应一份租约
+ *
+ * @author shenyanming
+ * Created on 2020/8/17 10:12
+ */
+@Getter
+@AllArgsConstructor
+@EqualsAndHashCode(of = {"key", "owner"})
+public class Lease {
+
+    /**
+     * 分布式锁的key
+     */
+    private final String key;
+
+    /**
+     * 锁的持有者标识
+     */
+    private final String owner;
+
+    /**
+     * 每次续期设置的租期, 单位毫秒
+     */
+    private final long leaseMillis;
+
+    /**
+     * 负责续期的组件
+     */
+    private final LeaseRenewer renewer;
+}
@@ -0,0 +1,22 @@
+package com.sym.lock;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 租约续期器, 由具体的分布式锁实现提供.
+ * 同一个续期器下的租约会被合并成一批, 在一次网络往返里完成续期
+ *
+ * @author shenyanming
+ * Created on 2020/8/17 10:15
+ */
+public interface LeaseRenewer {
+
+    /**
+     * 批量续期
+     *
+     * @param leases 本地持有的租约
+     * @return 续期失败的租约(锁已经被释放、过期或者被其它线程持有), 这些租约不会再被续期
+     */
+    Collection<Lease> renew(List<Lease> leases);
+}
@@ -0,0 +1,123 @@
+package com.sym.lock;
+
+import com.sym.metrics.LockMetricsHolder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * 看门狗, 负责自动续期模式下的租约续期.
+ * <p>
+ * 整个JVM只有一个续期定时任务, 每隔1/3个租期运行一次, 本地持有的所有租约按续期器分组, 每组在一次网络往返里完成续期.
+ * 定时调度线程池同时也给异步锁的超时重试使用, 见{@link #schedule(Runnable, long, TimeUnit)}.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/21 15:10
+ */
+@Slf4j
+public class LeaseWatchdog {
+
+    /**
+     * 定时调度
+     */
+    private static ScheduledExecutorService scheduledExecutor;
+
+    /**
+     * 标识是否启动了定时任务, 仅仅会在真正开始使用时才启动定时任务
+     */
+    private static AtomicBoolean isStarted = new AtomicBoolean();
+
+    /**
+     * 本地持有的、需要自动续期的租约. 按key+持有者登记, 值是登记时的那份租约实例
+     */
+    private static Map<Lease, Lease> leases = new ConcurrentHashMap<>();
+
+    static {
+        scheduledExecutor = Executors.newScheduledThreadPool(3);
+        // 钩子函数
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> scheduledExecutor.shutdown()));
+    }
+
+    private LeaseWatchdog() {
+    }
+
+    /**
+     * 登记需要自动续期的租约
+     */
+    public static void watch(Lease lease) {
+        leases.put(lease, lease);
+        startRenewal();
+    }
+
+    /**
+     * 取消租约的自动续期
+     *
+     * @param key   分布式锁key
+     * @param owner 持有者标识
+     */
+    public static void unwatch(String key, String owner) {
+        leases.remove(new Lease(key, owner, AbstractLock.WATCHDOG_LEASE_MILLIS, null));
+    }
+
+    /**
+     * 异步执行一个短小的任务
+     */
+    public static void execute(Runnable task) {
+        scheduledExecutor.execute(task);
+    }
+
+    /**
+     * 延迟执行一个短小的任务
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return scheduledExecutor.schedule(task, delay, unit);
+    }
+
+    /**
+     * 开启续期定时任务, 每隔1/3个租期续期一次
+     */
+    private static void startRenewal() {
+        if (isStarted.compareAndSet(false, true)) {
+            long period = AbstractLock.WATCHDOG_LEASE_MILLIS / 3;
+            scheduledExecutor.scheduleWithFixedDelay(LeaseWatchdog::renewLeases, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 按续期器分组, 每组在一次网络往返里完成续期, 每组的耗时记为一次续期操作
+     */
+    private static void renewLeases() {
+        if (leases.isEmpty()) {
+            return;
+        }
+        Map<LeaseRenewer, List<Lease>> groups = leases.values().stream().collect(Collectors.groupingBy(Lease::getRenewer));
+        groups.forEach((renewer, group) -> {
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                Collection<Lease> lost = renewer.renew(group);
+                success = true;
+                if (!lost.isEmpty()) {
+                    // 同一个线程解锁后又加锁, 会登记一份key+持有者相同的新租约; 只移除续期失败的那份实例
+                    lost.forEach(lease -> leases.computeIfPresent(lease, (k, current) -> current == lease ? null : current));
+                    log.warn("{}把锁续期失败, 已停止续期", lost.size());
+                }
+            } catch (Exception e) {
+                // 本轮失败不影响下一轮, 只要在租期内续期成功即可
+                log.error("续期分布式锁异常, ", e);
+            } finally {
+                LockMetricsHolder.get().backendCall(renewer.getClass().getSimpleName(), "renew", System.nanoTime() - start, success);
+            }
+        });
+    }
+}
@@ -0,0 +1,50 @@
+package com.sym.lock;
+
+import lombok.Getter;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * 响应式加锁成功后得到的锁凭证, 持有防护令牌, 通过{@link #release()}释放锁.
+ * <p>
+ * 释放只会生效一次, 多次调用{@link #release()}(比如doFinally和异常处理里都释放了)不会重复解锁.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/22 10:10
+ */
+public class LockHandle {
+
+    /**
+     * 分布式锁key
+     */
+    @Getter
+    private final String key;
+
+    /**
+     * 防护令牌, 大于0
+     */
+    @Getter
+    private final long token;
+
+    private final Supplier<Mono<Boolean>> releaser;
+
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    public LockHandle(String key, long token, Supplier<Mono<Boolean>> releaser) {
+        this.key = key;
+        this.token = token;
+        this.releaser = releaser;
+    }
+
+    /**
+     * 释放锁, 订阅时才真正解锁
+     *
+     * @return true-锁已完全释放, false-已经释放过, 或者锁已过期、被其它持有者占用
+     */
+    public Mono<Boolean> release() {
+        return Mono.defer(() -> released.compareAndSet(false, true) ? releaser.get() : Mono.just(false));
+    }
+}
@@ -0,0 +1,44 @@
+package com.sym.lock;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分布式锁的持有者标识.
+ * <p>
+ * 整个JVM只生成一次UUID, 每个线程第一次加锁时再分配一个JVM内递增的序号, 两者拼起来就是线程级的持有者标识,
+ * 之后同一个线程一直复用它. 锁实例因此可以按key缓存、被多个线程共用, 加锁时也不需要每次生成UUID.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/21 10:05
+ */
+public class LockOwner {
+
+    /**
+     * 当前JVM的标识
+     */
+    public final static String JVM_ID = UUID.randomUUID().toString().replace("-", "");
+
+    private final static AtomicLong SEQUENCE = new AtomicLong();
+
+    private final static ThreadLocal<String> CURRENT =
+            ThreadLocal.withInitial(() -> JVM_ID + ":" + SEQUENCE.incrementAndGet());
+
+    private LockOwner() {
+    }
+
+    /**
+     * 当前线程的持有者标识
+     */
+    public static String current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 生成一个不属于任何线程的持有者标识, 用于需要在线程之间交接的锁, 比如{@link CoalescingLock}
+     */
+    public static String newFixed() {
+        return JVM_ID + ":f" + SEQUENCE.incrementAndGet();
+    }
+}
@@ -0,0 +1,156 @@
+package com.sym.lock;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 同时锁住多个key的联锁, 由多把单key锁组合而成.
+ * <p>
+ * 所有联锁都按key的字典序依次加锁, 全局顺序一致, 两个联锁之间不会出现互相持有对方需要的key而死锁的情况.
+ * 任何一把锁加锁失败(超时、中断、异常)时, 已经获得的锁按相反顺序释放, 要么全部持有, 要么一个都不持有.
+ * 解锁按加锁的相反顺序进行.
+ * </p>
+ * <p>
+ * 需要N次网络往返, zookeeper、mysql使用这种方式; redis在一个lua脚本里原子加锁, 见{@link com.sym.lock.redis.RedisMultiLock}.
+ * 返回的防护令牌是排序后第一个key的令牌.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/24 10:10
+ */
+@Slf4j
+public class MultiLock implements ILock {
+
+    /**
+     * 按key排好序的单key锁
+     */
+    private final List<ILock> locks;
+
+    /**
+     * @param keys        需要同时锁住的key, 重复的key只加一次锁
+     * @param lockCreator 创建单key锁的方法
+     */
+    public MultiLock(Collection<String> keys, Function<String, ILock> lockCreator) {
+        if (keys == null || keys.isEmpty()) {
+            throw new IllegalArgumentException("keys must not be empty");
+        }
+        this.locks = new ArrayList<>(keys.size());
+        for (String key : new TreeSet<>(keys)) {
+            this.locks.add(lockCreator.apply(key));
+        }
+    }
+
+    @Override
+    public void lock() throws InterruptedException {
+        lockWithToken();
+    }
+
+    @Override
+    public long lockWithToken() throws InterruptedException {
+        long token = NO_TOKEN;
+        int acquired = 0;
+        try {
+            for (ILock lock : locks) {
+                long t = lock.lockWithToken();
+                if (acquired++ == 0) {
+                    token = t;
+                }
+            }
+            return token;
+        } catch (Throwable e) {
+            releaseFirst(acquired);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        int acquired = 0;
+        try {
+            for (ILock lock : locks) {
+                if (!lock.tryLock()) {
+                    releaseFirst(acquired);
+                    return false;
+                }
+                acquired++;
+            }
+            return true;
+        } catch (RuntimeException e) {
+            releaseFirst(acquired);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit timeUnit) throws InterruptedException {
+        return tryLockWithToken(time, timeUnit) != NO_TOKEN;
+    }
+
+    /**
+     * 所有锁共用一个截止时间, 前面的锁等得越久, 后面的锁能等的时间越短; 截止时间到了以后, 剩下的锁各自只尝试一次
+     */
+    @Override
+    public long tryLockWithToken(long time, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(time);
+        long token = NO_TOKEN;
+        int acquired = 0;
+        try {
+            for (ILock lock : locks) {
+                long t = lock.tryLockWithToken(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (t == NO_TOKEN) {
+                    releaseFirst(acquired);
+                    return NO_TOKEN;
+                }
+                if (acquired++ == 0) {
+                    token = t;
+                }
+            }
+            return token;
+        } catch (Throwable e) {
+            releaseFirst(acquired);
+            throw e;
+        }
+    }
+
+    /**
+     * 按加锁的相反顺序解锁, 某一把锁解锁异常不影响其它锁, 所有锁都处理完后再抛出第一个异常
+     */
+    @Override
+    public void unlock() {
+        RuntimeException error = null;
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            try {
+                locks.get(i).unlock();
+            } catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * 加锁失败时, 按相反顺序释放已经获得的前几把锁
+     *
+     * @param count 已经获得的锁的个数
+     */
+    private void releaseFirst(int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            try {
+                locks.get(i).unlock();
+            } catch (RuntimeException e) {
+                // 释放失败的锁会在租期到了以后自然过期
+                log.warn("联锁加锁失败, 释放已获得的锁异常, ", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.sym.lock;
+
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 响应式分布式锁接口, 等待锁期间不占用任何线程, 订阅时才开始加锁.
+ * <p>
+ * 与{@link AsyncLock}一样, 持有者是锁实例本身. 典型用法是在doFinally里释放:
+ * <pre>
+ * lock.lock().flatMap(handle -&gt; doBusiness().doFinally(signal -&gt; handle.release().subscribe()))
+ * </pre>
+ * 加锁的Mono被取消时, 已经抢到的锁会自动释放.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/22 10:00
+ */
+public interface ReactiveLock {
+
+    /**
+     * 获取分布式锁, 抢夺失败会一直等待
+     *
+     * @return 锁凭证
+     */
+    Mono<LockHandle> lock();
+
+    /**
+     * 获取分布式锁, 抢到锁时立即发出锁凭证; 未抢到锁等待指定时长后, 仍不能抢锁则直接完成, 不发出元素
+     *
+     * @param time     等待时长, 为0时只尝试一次
+     * @param timeUnit 等待时间单位
+     * @return 锁凭证, 抢锁失败时为空
+     */
+    Mono<LockHandle> tryLock(long time, TimeUnit timeUnit);
+}
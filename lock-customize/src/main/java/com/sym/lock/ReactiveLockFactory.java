@@ -0,0 +1,21 @@
+package com.sym.lock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 支持响应式锁的锁工厂, 由{@link ILockFactory}的实现按需实现
+ *
+ * @author shenyanming
+ * Created on 2020/8/22 10:20
+ */
+public interface ReactiveLockFactory {
+
+    /**
+     * 获取响应式锁. 响应式锁的持有者是实例本身, 每次返回新实例
+     *
+     * @param key      分布式锁key
+     * @param keepTime 持有锁的时间, 为{@link AbstractLock#RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     */
+    ReactiveLock getReactiveLock(String key, long keepTime, TimeUnit timeUnit);
+}
@@ -0,0 +1,80 @@
+package com.sym.lock.mysql;
+
+import com.sym.lock.AbstractLock;
+import com.sym.lock.LeaseRenewer;
+import com.sym.lock.LeaseWatchdog;
+import com.sym.util.SpringContextUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 自己实现的分布式锁, 利用mysql租约表的行级原子更新.
+ * <p>
+ * 租约表一个key一行, 记录持有者、重入次数、防护令牌和到期时间. 加锁时行空闲或者已过期则易主, 令牌加1;
+ * 自己持有时重入次数加1. 具体的sql见{@link MysqlLockRepository}.
+ * </p>
+ * <p>
+ * 持有锁期间自动续期的锁由{@link LeaseWatchdog}统一调度, 本地所有租约在一次批量更新里续期.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/20 16:05
+ */
+@Slf4j
+public class MysqlLock extends AbstractLock {
+
+    private final MysqlLockRepository repository;
+
+    /**
+     * 持有锁期间自动续期, 使用spring容器中的{@link MysqlLockRepository}
+     */
+    public MysqlLock(String key) {
+        this(key, RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param keepTime 持有锁的时间, 为{@link #RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     */
+    public MysqlLock(String key, long keepTime, TimeUnit timeUnit) {
+        this(key, keepTime, timeUnit, SpringContextUtil.getBean(MysqlLockRepository.class));
+    }
+
+    /**
+     * @param keepTime   持有锁的时间, 为{@link #RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit   时间单位
+     * @param repository 租约表操作
+     */
+    public MysqlLock(String key, long keepTime, TimeUnit timeUnit, MysqlLockRepository repository) {
+        super(key, null, keepTime == RENEW_WHILE_HELD ? RENEW_WHILE_HELD : timeUnit.toMillis(keepTime));
+        this.repository = repository;
+    }
+
+    @Override
+    protected long tryRequire() {
+        long result = repository.acquire(key, ownerId(), ttlMillis());
+        if (result > 0) {
+            log.info("线程[{}]获取到锁[{}], 令牌[{}]", Thread.currentThread().getName(), key, result);
+        }
+        return result;
+    }
+
+    @Override
+    protected boolean tryRelease() {
+        int result = repository.release(key, ownerId());
+        if (result < 0) {
+            log.warn("线程[{}]解锁[{}]失败, 锁已过期或被其它线程持有", Thread.currentThread().getName(), key);
+            return false;
+        }
+        if (result == 1) {
+            log.info("线程[{}]已成功解锁[{}]", Thread.currentThread().getName(), key);
+        }
+        return result == 1;
+    }
+
+    @Override
+    protected LeaseRenewer leaseRenewer() {
+        return repository;
+    }
+}
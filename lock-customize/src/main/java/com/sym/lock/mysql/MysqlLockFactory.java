@@ -0,0 +1,32 @@
+package com.sym.lock.mysql;
+
+import com.sym.enums.LockStrategy;
+import com.sym.lock.AbstractLockFactory;
+import com.sym.lock.ILock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * mysql分布式锁工厂
+ *
+ * @author shenyanming
+ * Created on 2020/8/21 10:50
+ */
+public class MysqlLockFactory extends AbstractLockFactory {
+
+    private final MysqlLockRepository repository;
+
+    public MysqlLockFactory(MysqlLockRepository repository) {
+        this.repository = repository;
+    }
+
+    @Override
+    protected ILock createLock(String key, long leaseMillis) {
+        return new MysqlLock(key, leaseMillis, TimeUnit.MILLISECONDS, repository);
+    }
+
+    @Override
+    public LockStrategy strategy() {
+        return LockStrategy.MYSQL;
+    }
+}
@@ -0,0 +1,207 @@
+package com.sym.lock.mysql;
+
+import com.sym.lock.ILock;
+import com.sym.lock.Lease;
+import com.sym.lock.LeaseRenewer;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * mysql锁的租约表操作, 整个JVM共用一个.
+ * <p>
+ * 租约表一个key一行(建表语句见 sql/mysql-lock.sql), 行一旦创建就不再删除, 解锁只是清空持有者,
+ * 所以同一个key的防护令牌在同一行上单调递增. 到期时间使用应用节点的时钟, 各节点需要做时钟同步,
+ * 时钟偏差要远小于租期.
+ * </p>
+ * <p>
+ * 加锁有两种模式:
+ * 1)、默认模式: 一条带条件的UPDATE完成抢锁/重入(行级原子), 行不存在时INSERT, 唯一键冲突说明被其它节点抢先插入;
+ * 2)、SKIP LOCKED模式(需要mysql 8.0+): 在事务里用 SELECT ... FOR UPDATE SKIP LOCKED 读取租约行, 行正被其它节点的加锁事务锁住时直接跳过,
+ * 当做抢锁失败, 不会在innodb的行锁上排队, 高并发争抢同一个key时数据库连接不会被锁等待占住.
+ * </p>
+ * <p>
+ * 没有跨节点的释放通知, 抢锁失败时返回的等待时长不超过轮询间隔, 其它节点释放锁后, 等待线程最多延迟一个轮询间隔感知到.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/20 16:20
+ */
+public class MysqlLockRepository implements LeaseRenewer {
+
+    /**
+     * 默认的租约表名
+     */
+    public final static String DEFAULT_TABLE = "distributed_lock";
+
+    /**
+     * 默认的轮询间隔(毫秒)
+     */
+    public final static long DEFAULT_POLL_MILLIS = 100;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean skipLocked;
+    private final long pollMillis;
+
+    /**
+     * 抢锁/重入: 未被持有(或已过期)时易主, 令牌加1; 自己持有且未过期时重入次数加1, 令牌不变.
+     * owner和expire_at放在最后赋值, 前面的表达式读到的都是旧值
+     */
+    private final String acquireSql;
+    private final String insertSql;
+    private final String expireSql;
+    private final String tokenSql;
+    private final String selectForUpdateSql;
+    private final String updateSql;
+    private final String decrementSql;
+    private final String releaseSql;
+    private final String renewSql;
+
+    /**
+     * @param transactionManager SKIP LOCKED模式需要, 默认模式可以为null
+     * @param table              租约表名
+     * @param skipLocked         是否使用SKIP LOCKED模式
+     * @param pollMillis         抢锁失败后重试的最长间隔(毫秒)
+     */
+    public MysqlLockRepository(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                               String table, boolean skipLocked, long pollMillis) {
+        if (pollMillis <= 0) {
+            throw new IllegalArgumentException("pollMillis must be positive");
+        }
+        if (skipLocked && transactionManager == null) {
+            throw new IllegalArgumentException("skip locked mode requires a transaction manager");
+        }
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionManager == null ? null : new TransactionTemplate(transactionManager);
+        this.skipLocked = skipLocked;
+        this.pollMillis = pollMillis;
+        this.acquireSql = "UPDATE " + table + " SET "
+                + "hold_count = CASE WHEN owner = ? AND expire_at >= ? THEN hold_count + 1 ELSE 1 END, "
+                + "token = CASE WHEN owner = ? AND expire_at >= ? THEN token ELSE token + 1 END, "
+                + "owner = ?, expire_at = ? "
+                + "WHERE lock_key = ? AND (owner IS NULL OR owner = ? OR expire_at < ?)";
+        this.insertSql = "INSERT INTO " + table + " (lock_key, owner, hold_count, token, expire_at) VALUES (?, ?, 1, 1, ?)";
+        this.expireSql = "SELECT expire_at FROM " + table + " WHERE lock_key = ?";
+        this.tokenSql = "SELECT token FROM " + table + " WHERE lock_key = ? AND owner = ?";
+        this.selectForUpdateSql = "SELECT owner, hold_count, token, expire_at FROM " + table
+                + " WHERE lock_key = ? FOR UPDATE SKIP LOCKED";
+        this.updateSql = "UPDATE " + table + " SET owner = ?, hold_count = ?, token = ?, expire_at = ? WHERE lock_key = ?";
+        this.decrementSql = "UPDATE " + table + " SET hold_count = hold_count - 1 WHERE lock_key = ? AND owner = ? AND hold_count > 1";
+        this.releaseSql = "UPDATE " + table + " SET owner = NULL, hold_count = 0, expire_at = 0 WHERE lock_key = ? AND owner = ?";
+        this.renewSql = "UPDATE " + table + " SET expire_at = ? WHERE lock_key = ? AND owner = ? AND expire_at >= ?";
+    }
+
+    /**
+     * 加锁
+     *
+     * @param key       分布式锁key
+     * @param owner     持有者标识
+     * @param ttlMillis 租期(毫秒)
+     * @return 与{@link com.sym.lock.AbstractLock}的tryRequire()一致: 大于0为防护令牌; 小于0为加锁失败, 绝对值为建议的等待时长(毫秒)
+     */
+    public long acquire(String key, String owner, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        long expireAt = now + ttlMillis;
+        if (skipLocked) {
+            Long result = transactionTemplate.execute(status -> acquireSkipLocked(key, owner, now, expireAt));
+            if (result != null) {
+                return result;
+            }
+        } else {
+            int updated = jdbcTemplate.update(acquireSql, owner, now, owner, now, owner, expireAt, key, owner, now);
+            if (updated > 0) {
+                List<Long> tokens = jdbcTemplate.queryForList(tokenSql, Long.class, key, owner);
+                return tokens.isEmpty() ? ILock.NO_TOKEN : tokens.get(0);
+            }
+        }
+        // 非锁定读, 不会等待行锁
+        List<Long> expires = jdbcTemplate.queryForList(expireSql, Long.class, key);
+        if (!expires.isEmpty()) {
+            return -waitMillis(expires.get(0) - now);
+        }
+        // 这个key第一次被使用
+        try {
+            jdbcTemplate.update(insertSql, key, owner, expireAt);
+            return 1L;
+        } catch (DuplicateKeyException e) {
+            return -waitMillis(ttlMillis);
+        }
+    }
+
+    /**
+     * SKIP LOCKED模式下在事务里加锁
+     *
+     * @return 行不存在或者正被锁住时返回null, 其它情况同{@link #acquire(String, String, long)}
+     */
+    private Long acquireSkipLocked(String key, String owner, long now, long expireAt) {
+        List<Object[]> rows = jdbcTemplate.query(selectForUpdateSql,
+                (rs, i) -> new Object[]{rs.getString(1), rs.getInt(2), rs.getLong(3), rs.getLong(4)}, key);
+        if (rows.isEmpty()) {
+            return null;
+        }
+        Object[] row = rows.get(0);
+        String currentOwner = (String) row[0];
+        int holdCount = (Integer) row[1];
+        long token = (Long) row[2];
+        long currentExpireAt = (Long) row[3];
+        boolean alive = currentOwner != null && currentExpireAt >= now;
+        if (alive && !owner.equals(currentOwner)) {
+            return -waitMillis(currentExpireAt - now);
+        }
+        if (alive) {
+            holdCount++;
+        } else {
+            holdCount = 1;
+            token++;
+        }
+        jdbcTemplate.update(updateSql, owner, holdCount, token, expireAt, key);
+        return token;
+    }
+
+    /**
+     * 解锁
+     *
+     * @return 1-锁已释放, 0-重入次数减1后仍持有, -1-不是持有者
+     */
+    public int release(String key, String owner) {
+        if (jdbcTemplate.update(decrementSql, key, owner) > 0) {
+            return 0;
+        }
+        return jdbcTemplate.update(releaseSql, key, owner) > 0 ? 1 : -1;
+    }
+
+    /**
+     * 一批租约在一次批量更新里续期
+     */
+    @Override
+    public Collection<Lease> renew(List<Lease> leases) {
+        long now = System.currentTimeMillis();
+        int[] counts = jdbcTemplate.batchUpdate(renewSql, leases, leases.size(), (ps, lease) -> {
+            ps.setLong(1, now + lease.getLeaseMillis());
+            ps.setString(2, lease.getKey());
+            ps.setString(3, lease.getOwner());
+            ps.setLong(4, now);
+        })[0];
+        List<Lease> lost = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            // 驱动开启批量重写时只返回SUCCESS_NO_INFO, 当做续期成功
+            if (counts[i] == 0) {
+                lost.add(leases.get(i));
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * 抢锁失败后的等待时长: 不超过锁的剩余时间, 也不超过轮询间隔
+     */
+    private long waitMillis(long remainingMillis) {
+        return Math.max(1L, Math.min(remainingMillis, pollMillis));
+    }
+}
@@ -0,0 +1,95 @@
+package com.sym.lock.redis;
+
+import com.sym.lock.LockHandle;
+import com.sym.lock.ReactiveLock;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 基于{@link ReactiveStringRedisTemplate}的响应式redis分布式锁, 加锁、解锁脚本与{@link RedisLock}相同, 三种redis锁可以互斥.
+ * <p>
+ * 等待、唤醒、超时重试沿用{@link RedisAsyncLock}的回调节点, 只是把脚本交给响应式模板执行, 全程不阻塞线程.
+ * 响应式模板自己处理脚本缓存: 先evalsha, 服务端没有缓存时改用eval.
+ * </p>
+ * <p>
+ * 锁凭证在{@link Schedulers#parallel()}上发出, 业务代码不会运行在续期调度线程上.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/22 10:30
+ */
+public class ReactiveRedisLock extends RedisAsyncLock implements ReactiveLock {
+
+    /**
+     * 脚本内容 -> 响应式模板使用的脚本对象, 避免每次执行都计算sha1
+     */
+    private static Map<String, RedisScript<Long>> scripts = new ConcurrentHashMap<>();
+
+    private final ReactiveStringRedisTemplate reactiveTemplate;
+
+    /**
+     * @param key              分布式锁key
+     * @param keepTime         持有锁的时间, 为{@link com.sym.lock.AbstractLock#RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit         时间单位
+     * @param reactiveTemplate 响应式redis模板
+     */
+    public ReactiveRedisLock(String key, long keepTime, TimeUnit timeUnit, ReactiveStringRedisTemplate reactiveTemplate) {
+        super(key, keepTime, timeUnit);
+        this.reactiveTemplate = reactiveTemplate;
+    }
+
+    @Override
+    public Mono<LockHandle> lock() {
+        return toHandle(this::lockAsync);
+    }
+
+    @Override
+    public Mono<LockHandle> tryLock(long time, TimeUnit timeUnit) {
+        return toHandle(() -> tryLockAsync(time, timeUnit));
+    }
+
+    /**
+     * 订阅时才发起加锁. 下游取消时: 加锁还没完成则取消等待; 已经抢到但凭证没能发出去, 则释放锁.
+     * MonoSink保证发出凭证和取消回调只会发生一个
+     */
+    private Mono<LockHandle> toHandle(Supplier<CompletableFuture<Long>> acquirer) {
+        return Mono.create(sink -> {
+            CompletableFuture<Long> future = acquirer.get();
+            sink.onCancel(() -> {
+                if (!future.cancel(false) && !future.isCompletedExceptionally() && future.join() > 0) {
+                    unlockAsync();
+                }
+            });
+            future.whenComplete((token, e) -> {
+                if (future.isCancelled()) {
+                    return;
+                }
+                if (e != null) {
+                    sink.error(e);
+                } else if (token > 0) {
+                    LockHandle handle = new LockHandle(key, token, () -> Mono.fromFuture(unlockAsync()));
+                    Schedulers.parallel().schedule(() -> sink.success(handle));
+                } else {
+                    sink.success();
+                }
+            });
+        });
+    }
+
+    @Override
+    protected CompletableFuture<Long> eval(String sha, String script, String[] keys, String... args) {
+        RedisScript<Long> redisScript = scripts.computeIfAbsent(script, s -> RedisScript.of(s, Long.class));
+        return reactiveTemplate.execute(redisScript, Arrays.asList(keys), Arrays.asList((Object[]) args))
+                .next()
+                .toFuture();
+    }
+}
@@ -0,0 +1,294 @@
+package com.sym.lock.redis;
+
+import com.sym.holder.ThreadHolder;
+import com.sym.holder.ThreadHolder.Waiter;
+import com.sym.lock.AbstractLock;
+import com.sym.lock.AsyncLock;
+import com.sym.lock.ILock;
+import com.sym.lock.Lease;
+import com.sym.lock.LeaseWatchdog;
+import com.sym.lock.LockOwner;
+import com.sym.metrics.LockMetricsHolder;
+import com.sym.util.ReflectionUtil;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于lettuce异步命令的redis分布式锁, 加锁、解锁脚本与{@link RedisLock}相同, 两者可以互斥.
+ * <p>
+ * 抢锁失败后, 等待者以回调节点的形式进入{@link ThreadHolder}的等待队列, 不占用线程:
+ * 1)、锁释放时, 释放消息经{@link com.sym.config.LockConfig}订阅的分片通道和消息总线唤醒队头, 队头再异步抢一次;
+ * 2)、同时按锁的剩余存活时间设置一个定时重试, 兜底释放消息丢失或者锁过期的情况;
+ * 3)、限时加锁到期后以{@link ILock#NO_TOKEN}完成.
+ * 成千上万个等待中的加锁请求只占用内存, 不占用线程.
+ * </p>
+ * <p>
+ * 持有者是锁实例本身, 见{@link AsyncLock}. lettuce的回调运行在IO线程上, 后续处理都切换到{@link LeaseWatchdog}的调度线程执行.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/21 15:40
+ */
+@Slf4j
+public class RedisAsyncLock implements AsyncLock {
+
+    private static ThreadHolder threadHolder = ThreadHolder.INSTANCE;
+    private static Charset charset = StandardCharsets.UTF_8;
+
+    /**
+     * lettuce原生的异步命令, 使用共享的原生连接, 第一次使用时获取
+     */
+    private static volatile RedisClusterAsyncCommands<byte[], byte[]> commands;
+
+    protected final String key;
+    private final String owner;
+    private final long leaseMillis;
+
+    private final String[] lockKeys;
+    private final String[] unlockKeys;
+
+    /**
+     * @param key      分布式锁key
+     * @param keepTime 持有锁的时间, 为{@link AbstractLock#RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     */
+    public RedisAsyncLock(String key, long keepTime, TimeUnit timeUnit) {
+        this.leaseMillis = keepTime == AbstractLock.RENEW_WHILE_HELD ? AbstractLock.RENEW_WHILE_HELD : timeUnit.toMillis(keepTime);
+        if (leaseMillis <= 0 && leaseMillis != AbstractLock.RENEW_WHILE_HELD) {
+            throw new IllegalArgumentException("keepTime must be positive or RENEW_WHILE_HELD");
+        }
+        this.key = ReflectionUtil.hashTag(key);
+        this.owner = LockOwner.newFixed();
+        this.lockKeys = new String[]{this.key, this.key + RedisLock.FENCE_SUFFIX};
+        this.unlockKeys = new String[]{this.key};
+    }
+
+    @Override
+    public CompletableFuture<Long> lockAsync() {
+        return new Acquisition(false, 0L).start();
+    }
+
+    @Override
+    public CompletableFuture<Long> tryLockAsync(long time, TimeUnit timeUnit) {
+        return new Acquisition(true, System.nanoTime() + timeUnit.toNanos(time)).start();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> unlockAsync() {
+        return eval(RedisLock.UNLOCK_SCRIPT_SHA, RedisLock.UNLOCK_SCRIPT, unlockKeys, owner, RedisLockChannel.channelOf(key))
+                .thenApplyAsync(result -> {
+                    if (result == null || result < 0) {
+                        log.warn("解锁[{}]失败, 锁已过期或被其它持有者占用", key);
+                        return false;
+                    }
+                    if (result != 1L) {
+                        return false;
+                    }
+                    if (leaseMillis == AbstractLock.RENEW_WHILE_HELD) {
+                        LeaseWatchdog.unwatch(key, owner);
+                    }
+                    threadHolder.signal(key);
+                    return true;
+                }, LeaseWatchdog::execute);
+    }
+
+    /**
+     * 每次加锁实际设置的租期(毫秒)
+     */
+    private long ttlMillis() {
+        return leaseMillis == AbstractLock.RENEW_WHILE_HELD ? AbstractLock.WATCHDOG_LEASE_MILLIS : leaseMillis;
+    }
+
+    /**
+     * 异步执行脚本缓存, 脚本缓存不存在时改用eval, redis会顺便缓存脚本.
+     * 子类可以换成其它异步客户端执行, 见{@link ReactiveRedisLock}
+     *
+     * @param sha    脚本的sha1
+     * @param script 脚本内容
+     */
+    protected CompletableFuture<Long> eval(String sha, String script, String[] keys, String... args) {
+        byte[][] keyBytes = toBytes(keys);
+        byte[][] argBytes = toBytes(args);
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        commands().<Long>evalsha(sha, ScriptOutputType.INTEGER, keyBytes, argBytes).whenComplete((result, e) -> {
+            if (e == null) {
+                future.complete(result);
+            } else if (RedisLock.isNoScript(e)) {
+                LockMetricsHolder.get().scriptReloaded(sha);
+                commands().<Long>eval(script, ScriptOutputType.INTEGER, keyBytes, argBytes).whenComplete((r, ex) -> {
+                    if (ex == null) {
+                        future.complete(r);
+                    } else {
+                        future.completeExceptionally(ex);
+                    }
+                });
+            } else {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static byte[][] toBytes(String[] values) {
+        byte[][] result = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i].getBytes(charset);
+        }
+        return result;
+    }
+
+    private static RedisClusterAsyncCommands<byte[], byte[]> commands() {
+        RedisClusterAsyncCommands<byte[], byte[]> result = commands;
+        if (result == null) {
+            RedisConnectionFactory factory = RedisLock.template().getConnectionFactory();
+            if (!(factory instanceof LettuceConnectionFactory)) {
+                throw new IllegalStateException("异步锁需要使用lettuce客户端");
+            }
+            // 共享原生连接时, 关闭LettuceConnection不会关闭原生连接, 这里不关闭, 一直复用
+            result = (RedisClusterAsyncCommands<byte[], byte[]>) ((LettuceConnection) factory.getConnection()).getNativeConnection();
+            commands = result;
+        }
+        return result;
+    }
+
+    /**
+     * 一次异步加锁, 同时也是等待队列中的一个节点
+     */
+    private class Acquisition extends Waiter {
+
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        private final boolean timed;
+        private final long deadline;
+
+        /**
+         * 待执行的抢锁次数, 同一时刻最多只有一个抢锁请求在途, 期间到达的唤醒信号合并成一次重试
+         */
+        private final AtomicInteger wip = new AtomicInteger();
+
+        /**
+         * 以下字段只在抢锁结果的处理里读写, 处理是串行的
+         */
+        private boolean queued;
+        private ScheduledFuture<?> timer;
+
+        private Acquisition(boolean timed, long deadline) {
+            this.timed = timed;
+            this.deadline = deadline;
+        }
+
+        private CompletableFuture<Long> start() {
+            trigger();
+            return future;
+        }
+
+        /**
+         * 被释放消息唤醒, 不能阻塞
+         */
+        @Override
+        public void signal() {
+            trigger();
+        }
+
+        private void trigger() {
+            if (wip.getAndIncrement() == 0) {
+                attempt();
+            }
+        }
+
+        private void attempt() {
+            CompletableFuture<Long> result;
+            try {
+                result = eval(RedisLock.LOCK_SCRIPT_SHA, RedisLock.LOCK_SCRIPT, lockKeys, owner, Long.toString(ttlMillis()));
+            } catch (RuntimeException e) {
+                result = new CompletableFuture<>();
+                result.completeExceptionally(e);
+            }
+            result.whenCompleteAsync(this::onResult, LeaseWatchdog::execute);
+        }
+
+        private void onResult(Long result, Throwable e) {
+            long token = result == null ? ILock.NO_TOKEN : result;
+            if (future.isDone()) {
+                // 调用方已经取消, 抢到的锁直接释放
+                leave(true);
+                if (token > 0) {
+                    unlockAsync();
+                }
+                return;
+            }
+            if (e != null) {
+                leave(true);
+                future.completeExceptionally(e);
+                return;
+            }
+            if (token > 0) {
+                // 抢到锁的等待者出队, 不需要传递信号
+                leave(false);
+                if (leaseMillis == AbstractLock.RENEW_WHILE_HELD) {
+                    LeaseWatchdog.watch(new Lease(key, owner, AbstractLock.WATCHDOG_LEASE_MILLIS, RedisLock.leaseRenewer));
+                }
+                future.complete(token);
+                return;
+            }
+            long needTime = 0L;
+            if (timed && (needTime = deadline - System.nanoTime()) <= 0L) {
+                leave(true);
+                future.complete(ILock.NO_TOKEN);
+                return;
+            }
+            boolean retryNow = false;
+            if (!queued) {
+                queued = true;
+                // 入队时恰好成为队头, 锁可能在入队前就被释放了, 信号已经错过, 需要立即再抢一次
+                retryNow = threadHolder.put(key, this);
+            }
+            if (retryNow) {
+                // 不释放wip, 保证同一时刻只有一次尝试; 期间到达的唤醒信号由下一次结果处理
+                attempt();
+                return;
+            }
+            // 定时重试: 最多等到锁自然过期
+            long delay = AbstractLock.parkNanos(TimeUnit.MILLISECONDS.toNanos(-token));
+            cancelTimer();
+            timer = LeaseWatchdog.schedule(this::trigger, timed ? Math.min(needTime, delay) : delay, TimeUnit.NANOSECONDS);
+            // 处理期间到达过唤醒信号, 再抢一次
+            if (wip.decrementAndGet() > 0) {
+                wip.set(1);
+                attempt();
+            }
+        }
+
+        /**
+         * 离开等待队列
+         *
+         * @param handOff 放弃等待时, 如果自己是队头, 可能已经消耗掉了唤醒信号, 需要把信号传给下一个等待者
+         */
+        private void leave(boolean handOff) {
+            cancelTimer();
+            if (queued) {
+                queued = false;
+                if (threadHolder.remove(key, this) && handOff) {
+                    threadHolder.signal(key);
+                }
+            }
+        }
+
+        private void cancelTimer() {
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+        }
+    }
+}
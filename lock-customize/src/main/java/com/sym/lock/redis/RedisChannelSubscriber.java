@@ -0,0 +1,106 @@
+package com.sym.lock.redis;
+
+import com.sym.holder.ThreadHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按需订阅redis锁释放通道.
+ * <p>
+ * 监听{@link ThreadHolder}的等待者变化, 按分片统计本地有等待线程的key个数:
+ * 从0变为1时订阅该分片的释放通道, 从1变为0时取消订阅. 没有等待线程的节点不会收到任何释放消息.
+ * </p>
+ * <p>
+ * 订阅在第一个等待者入队时同步完成, 入队后它会立即重试一次抢锁, 订阅生效前发布的释放消息不会被错过;
+ * 即使订阅还没被redis确认, 等待线程也会按锁的剩余存活时间醒来重试.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/20 10:30
+ */
+@Slf4j
+public class RedisChannelSubscriber implements ThreadHolder.KeyListener {
+
+    private final RedisMessageListenerContainer container;
+    private final MessageListener listener;
+
+    /**
+     * 每个分片有等待线程的key个数, 以及保护它的锁. 回调可能乱序到达, 计数可能短暂为负
+     */
+    private final int[] counts;
+    private final ReentrantLock[] locks;
+
+    public RedisChannelSubscriber(RedisMessageListenerContainer container, MessageListener listener) {
+        this.container = container;
+        this.listener = listener;
+        int shards = RedisLockChannel.shards();
+        this.counts = new int[shards];
+        this.locks = new ReentrantLock[shards];
+        for (int i = 0; i < shards; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        ThreadHolder.INSTANCE.addListener(this);
+    }
+
+    @Override
+    public void onFirstWaiter(String lockKey) {
+        update(RedisLockChannel.shardOf(lockKey), 1);
+    }
+
+    @Override
+    public void onLastWaiter(String lockKey) {
+        update(RedisLockChannel.shardOf(lockKey), -1);
+    }
+
+    /**
+     * 订阅所有分片的释放通道, 之后一直保持订阅. 开启{@link RedisNegativeCache}时使用, 没有等待线程也要收到释放消息
+     */
+    public void subscribeAll() {
+        for (int i = 0; i < counts.length; i++) {
+            update(i, 1);
+        }
+    }
+
+    /**
+     * 当前订阅的分片数
+     */
+    public int subscribedShards() {
+        int result = 0;
+        for (int i = 0; i < counts.length; i++) {
+            locks[i].lock();
+            try {
+                if (counts[i] > 0) {
+                    result++;
+                }
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return result;
+    }
+
+    private void update(int shard, int delta) {
+        ReentrantLock lock = locks[shard];
+        lock.lock();
+        try {
+            int before = counts[shard];
+            int after = before + delta;
+            counts[shard] = after;
+            ChannelTopic topic = new ChannelTopic(RedisLockChannel.channelOf(shard));
+            if (before <= 0 && after > 0) {
+                container.addMessageListener(listener, topic);
+            } else if (before > 0 && after <= 0) {
+                container.removeMessageListener(listener, topic);
+            }
+        } catch (Exception e) {
+            // 订阅失败不影响抢锁, 等待线程会按锁的剩余存活时间醒来重试
+            log.error("更新锁释放通道订阅异常, 分片[{}], ", shard, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,7 +1,15 @@
 package com.sym.lock.redis;
 
-import com.sym.constant.LockConstants;
 import com.sym.lock.AbstractLock;
+import com.sym.lock.AsyncLock;
+import com.sym.lock.CoalescingLock;
+import com.sym.lock.ILock;
+import com.sym.lock.Lease;
+import com.sym.lock.LeaseRenewer;
+import com.sym.lock.LeaseWatchdog;
+import com.sym.lock.LockOwner;
+import com.sym.metrics.LockMetricsHolder;
+import com.sym.util.ReflectionUtil;
 import com.sym.util.SpringContextUtil;
 import io.lettuce.core.RedisNoScriptException;
 import lombok.extern.slf4j.Slf4j;
@@ -11,22 +19,42 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.UUID;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 自己实现的分布式锁,利用redis执行lua脚本是原子性的特点,使用lua脚本来完成加锁逻辑与解锁逻辑.
  * <p>
  * 加锁脚本解释:
- * 1)、使用exists判断key是否存在, 如果不存在, 执行 hmset+expire 命令, 表示获取到锁,lua脚本返回1(表示加锁成功)
- * 2)、如果key已经存在, 使用 hget 命令判断 hash 值里面的 threadId 是否是当前申请加锁的线程唯一标识, 如果不是说明此时锁被另一个线程占用, lua脚本返回0(表示加锁失败)
- * 3)、如果key已经存在, 并且hash值里面的threadId是当前申请加锁的线程, 则将hash值里面的count累加1, 表示锁重入次数+1, 重新设置过期时间, lua脚本返回1(表示加锁成功)
+ * 1)、使用exists判断key是否存在, 如果不存在, 使用 incr 递增令牌计数器得到防护令牌, 执行 hmset+pexpire 命令, 表示获取到锁,lua脚本返回令牌(表示加锁成功)
+ * 2)、如果key已经存在, 并且hash值里面的threadId是当前申请加锁的线程, 则将hash值里面的count累加1, 表示锁重入次数+1, 重新设置过期时间, lua脚本返回首次加锁时的令牌(表示加锁成功)
+ * 3)、否则说明此时锁被另一个线程占用, lua脚本返回锁剩余存活时间(pttl)的相反数(表示加锁失败), 等待线程据此决定挂起多久, 不必空转重试
  * </p>
  * <p>
  * 解锁脚本解释：
- * 1)、使用exists判断key是否存在, 如果不存在, 说明没有线程在占用锁, 也就没必要解锁, lua脚本返回0(表示解锁失败)
- * 2)、如果key已经存在, 使用 hget 命令判断hash值里面的threadId是否是当前申请解锁的线程, 如果不是说明当前锁不是被该线程占用, 它就没资格解锁, lua脚本返回0(表示解锁失败)
- * 3)、如果hash值内的threadId是当前申请解锁的线程, 将hash值内的count减1, 若count不等于0, 说明解锁次数仍小于加锁次数, lua脚本返回0(表示解锁失败)
- * 4)、若count值减1后等于0, 说明解锁次数==加锁次数, 删除key, 并使用publish命令发布一条删除key的消息
+ * 1)、使用 hget 命令判断hash值里面的threadId是否是当前申请解锁的线程, 如果不是(包括key已经不存在), 说明锁已过期或者被另一个线程占用, 它就没资格解锁, lua脚本返回-1
+ * 2)、如果hash值内的threadId是当前申请解锁的线程, 将hash值内的count减1, 若count大于0, 说明解锁次数仍小于加锁次数, lua脚本返回0
+ * 3)、若count值减1后等于0, 说明解锁次数==加锁次数, 删除key, 并使用publish命令往key所在的分片通道({@link RedisLockChannel})发布一条删除key的消息, lua脚本返回1(表示锁已释放)
+ * </p>
+ * <p>
+ * 续期脚本解释：
+ * 如果hash值内的threadId仍是持有者, 使用pexpire重新设置租期, lua脚本返回1; 否则返回0, 说明锁已丢失, 不再续期.
+ * 持有锁期间自动续期的锁由{@link LeaseWatchdog}统一调度, 一个JVM只有一个定时任务, 本地所有租约在同一个pipeline里续期
+ * </p>
+ * <p>
+ * redis集群模式下:
+ * 1)、锁key经{@link ReflectionUtil#hashTag(String)}加上hash tag, 与令牌计数器落在同一个槽位, 加锁脚本不会跨槽位;
+ * 2)、脚本缓存是每个节点各自的, 脚本的sha1在本地计算, 某个节点上报NOSCRIPT时改用eval执行, 该节点顺便缓存脚本,
+ * 每个槽位所在的节点在第一次使用时加载一次, 不需要提前往所有节点加载;
+ * 3)、释放消息仍使用publish, 集群会把它广播到所有节点. 分片发布订阅(SPUBLISH/SSUBSCRIBE, redis 7.0+)需要lettuce 6.2+,
+ * 当前依赖的lettuce 5.1不支持, 见{@link RedisLockChannel}.
+ * </p>
+ * <p>
+ * 开启{@link RedisNegativeCache}后, 已知被其它持有者占用的key上的tryLock()直接在本地返回失败.
  * </p>
  *
  * @author shenyanming
@@ -35,106 +63,168 @@ import java.util.UUID;
 @Slf4j
 public class RedisLock extends AbstractLock {
 
-    static {
-        // 获取redisTemplate
-        redisTemplate = SpringContextUtil.getBean(StringRedisTemplate.class);
+    /**
+     * 加锁lua脚本、解锁lua脚本、续期lua脚本
+     */
+    static String LOCK_SCRIPT;
+    static String UNLOCK_SCRIPT;
+    static String RENEW_SCRIPT;
 
-        // 构建脚本
-        buildScript();
+    /**
+     * 加锁lua脚本缓存、解锁lua脚本缓存、续期lua脚本缓存
+     */
+    static String LOCK_SCRIPT_SHA;
+    static String UNLOCK_SCRIPT_SHA;
+    static String RENEW_SCRIPT_SHA;
+
+    /**
+     * redis操作, 第一次使用时才从spring容器中获取, 也可以由{@link RedisLockFactory}提前设置
+     */
+    private static volatile StringRedisTemplate redisTemplate;
+
+    private static Charset charset = StandardCharsets.UTF_8;
+
+    /**
+     * 防护令牌计数器的key后缀, 计数器永不过期, 保证令牌单调递增
+     */
+    static String FENCE_SUFFIX = ":fence";
 
-        // 缓存脚本
-        scriptCache();
+    /**
+     * 看门狗续期器, 整个JVM共用一个
+     */
+    static LeaseRenewer leaseRenewer = new RedisLeaseRenewer();
+
+    static {
+        // 构建脚本, 脚本缓存的sha1在本地计算, 类加载时不访问redis; 脚本缓存不存在时再加载
+        buildScript();
     }
 
     /**
-     * 加锁lua脚本、解锁lua脚本
+     * 加锁脚本的KEYS: 锁、令牌计数器; 解锁脚本的KEYS: 锁
      */
-    private static String LOCK_SCRIPT;
-    private static String UNLOCK_SCRIPT;
+    private final String[] lockKeys;
+    private final String[] unlockKeys;
 
     /**
-     * 加锁lua脚本缓存、解锁lua脚本缓存
+     * 持有锁期间自动续期
      */
-    private static String LOCK_SCRIPT_SHA;
-    private static String UNLOCK_SCRIPT_SHA;
+    public RedisLock(String key) {
+        this(key, RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
 
     /**
-     * 标识脚本缓存初始化
+     * @param keepTime 持有锁的时间, 为{@link #RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
      */
-    private static volatile boolean isInit = false;
+    public RedisLock(String key, long keepTime, TimeUnit timeUnit) {
+        this(key, keepTime, timeUnit, false);
+    }
 
     /**
-     * redis操作
+     * @param keepTime 持有锁的时间, 为{@link #RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     * @param fair     是否公平, 公平模式下本地线程严格按排队顺序抢锁
      */
-    private static StringRedisTemplate redisTemplate;
+    public RedisLock(String key, long keepTime, TimeUnit timeUnit, boolean fair) {
+        super(ReflectionUtil.hashTag(key), null, keepTime == RENEW_WHILE_HELD ? RENEW_WHILE_HELD : timeUnit.toMillis(keepTime), fair);
+        this.lockKeys = new String[]{this.key, this.key + FENCE_SUFFIX};
+        this.unlockKeys = new String[]{this.key};
+    }
 
-    private static Charset charset = StandardCharsets.UTF_8;
-    private static int lockTime = 50;
+    /**
+     * 持有锁期间自动续期, 使用固定的持有者标识, 可以在线程之间交接
+     *
+     * @param owner 持有者标识
+     */
+    private RedisLock(String key, String owner) {
+        super(ReflectionUtil.hashTag(key), owner, RENEW_WHILE_HELD, false);
+        this.lockKeys = new String[]{this.key, this.key + FENCE_SUFFIX};
+        this.unlockKeys = new String[]{this.key};
+    }
 
     /**
-     * 表示此实例的线程ID
+     * 设置所有redis锁共用的redisTemplate, 未设置时第一次使用从spring容器中获取
      */
-    private String threadId;
+    public static void setRedisTemplate(StringRedisTemplate template) {
+        redisTemplate = template;
+    }
 
 
-    public RedisLock(String key) {
-        super(key, UUID.randomUUID().toString().replace("-", ""));
+    /**
+     * 创建两级锁: 本JVM内的线程先在本地锁上排队, 同一个key在本JVM内只有一个分布式锁持有者,
+     * 分布式锁可以在本地线程之间直接交接, 见{@link CoalescingLock}
+     *
+     * @param key 分布式锁key
+     * @return 两级锁
+     */
+    public static ILock coalesced(String key) {
+        // 分布式锁会在本地线程之间交接, 持有者标识不能是线程级的
+        return new CoalescingLock(ReflectionUtil.hashTag(key), k -> new RedisLock(k, LockOwner.newFixed()));
     }
 
+    /**
+     * 创建异步锁, 持有锁期间自动续期, 见{@link RedisAsyncLock}
+     *
+     * @param key 分布式锁key
+     * @return 异步锁, 一个实例代表一个持有者
+     */
+    public static AsyncLock async(String key) {
+        return new RedisAsyncLock(key, RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 开启了否定缓存时, 已知被其它持有者占用的key直接返回失败, 不访问redis
+     */
+    @Override
+    public boolean tryLock() {
+        if (threadId == null && RedisNegativeCache.isEnabled() && RedisNegativeCache.isHeldByOthers(key)) {
+            // 命中缓存等同于一次抢锁失败, 和访问redis失败一样计入竞争
+            LockMetricsHolder.get().acquired(key, 0L, 1, false);
+            return false;
+        }
+        return super.tryLock();
+    }
 
     @Override
-    protected boolean tryRequire() {
-        boolean result;
+    protected long tryRequire() {
         try {
-            result = doLock(lockTime);
+            return doLock(ttlMillis());
         } catch (Exception e) {
-            Throwable cause = e.getCause();
-            if (cause instanceof RedisNoScriptException) {
-                //由于redis的脚本缓存被清空了,重新缓存脚本
-                scriptCache();
-                //重新申请锁
-                result = doLock(lockTime);
-            } else {
-                log.error("加锁异常，原因：{}", e.getMessage());
-                throw e;
-            }
+            log.error("加锁异常，原因：{}", e.getMessage());
+            throw e;
         }
-        return result;
     }
 
     @Override
     protected boolean tryRelease() {
-        boolean result = false;
         try {
-            result = this.doUnlock();
+            return this.doUnlock();
         } catch (Exception e) {
-            Throwable cause = e.getCause();
-            if (cause instanceof RedisNoScriptException) {
-                //由于redis的脚本缓存被清空了,重新缓存脚本
-                scriptCache();
-                //重新申请锁
-                result = this.doUnlock();
-            } else {
-                log.error("解锁异常，原因：{}", e.getMessage());
-                throw e;
-            }
+            log.error("解锁异常，原因：{}", e.getMessage());
+            throw e;
         }
-        return result;
     }
 
     /**
      * 实际加锁逻辑
      *
-     * @param ttlTime 加锁时间
-     * @return true-获得锁,false-未获取到锁
+     * @param ttlTime 加锁时间(毫秒)
+     * @return 大于0-获得锁, 值为防护令牌; 小于0-未获取到锁, 绝对值为锁剩余存活时间(毫秒); 0-未获取到锁, 剩余时间未知
      */
-    private boolean doLock(int ttlTime) {
-        Boolean result = evalSha(LOCK_SCRIPT_SHA, key, "uuid", "count", threadId, "1", Integer.toString(ttlTime));
-        boolean f = result == null ? false : result;
-        if (f) {
-            log.info("线程[{}]获取到锁[{}]", Thread.currentThread().getName(), key);
+    private long doLock(long ttlTime) {
+        boolean cacheable = threadId == null && RedisNegativeCache.isEnabled();
+        long version = cacheable ? RedisNegativeCache.version(key) : 0L;
+        Long result = eval(LOCK_SCRIPT_SHA, LOCK_SCRIPT, ReturnType.INTEGER, lockKeys, ownerId(), Long.toString(ttlTime));
+        long token = result == null ? NO_TOKEN : result;
+        if (token > 0) {
+            log.info("线程[{}]获取到锁[{}], 令牌[{}]", Thread.currentThread().getName(), key, token);
+            if (cacheable) {
+                RedisNegativeCache.acquired(key);
+            }
+        } else if (token < 0 && cacheable) {
+            RedisNegativeCache.held(key, -token, version);
         }
-        return f;
+        return token;
     }
 
     /**
@@ -144,30 +234,63 @@ public class RedisLock extends AbstractLock {
      */
     private boolean doUnlock() {
         // 执行脚本
-        Boolean result = evalSha(UNLOCK_SCRIPT_SHA, key, "uuid", "count", threadId);
-        boolean f = result == null ? false : result;
+        Long result = eval(UNLOCK_SCRIPT_SHA, UNLOCK_SCRIPT, ReturnType.INTEGER, unlockKeys, ownerId(), RedisLockChannel.channelOf(key));
+        if (result == null || result < 0) {
+            log.warn("线程[{}]解锁[{}]失败, 锁已过期或被其它线程持有", Thread.currentThread().getName(), key);
+            if (threadId == null && RedisNegativeCache.isEnabled()) {
+                RedisNegativeCache.lost(key);
+            }
+            return false;
+        }
+        boolean f = result == 1L;
         if (f) {
             log.info("线程[{}]已成功解锁[{}]", Thread.currentThread().getName(), key);
         }
+        if (threadId == null && RedisNegativeCache.isEnabled()) {
+            RedisNegativeCache.released(key, f);
+        }
         return f;
     }
 
+    @Override
+    protected LeaseRenewer leaseRenewer() {
+        return leaseRenewer;
+    }
+
     /**
-     * 执行redis脚本缓存
+     * 执行脚本缓存, 脚本缓存不存在时改用eval, redis会顺便缓存脚本. 给联锁、读写锁等自带脚本的锁使用
      *
-     * @param scriptSha   脚本缓存
-     * @param keysAndArgs 参数
+     * @param sha        脚本的sha1
+     * @param script     脚本内容
+     * @param returnType 返回值类型
      * @return 执行结果
      */
-    private Boolean evalSha(String scriptSha, String... keysAndArgs) {
-        byte[][] params = new byte[keysAndArgs.length][];
-        for (int i = 0, len = keysAndArgs.length; i < len; i++) {
-            params[i] = keysAndArgs[i].getBytes(charset);
+    static <T> T eval(String sha, String script, ReturnType returnType, String[] keys, String... args) {
+        return eval(template(), sha, script, returnType, keys, args);
+    }
+
+    /**
+     * 在指定的redis上执行脚本缓存, 脚本缓存不存在时改用eval. 给多个独立redis节点的{@link RedisRedLock}使用
+     *
+     * @param template 目标redis
+     */
+    static <T> T eval(StringRedisTemplate template, String sha, String script, ReturnType returnType, String[] keys, String... args) {
+        byte[][] params = new byte[keys.length + args.length][];
+        for (int i = 0; i < keys.length; i++) {
+            params[i] = keys[i].getBytes(charset);
+        }
+        for (int i = 0; i < args.length; i++) {
+            params[keys.length + i] = args[i].getBytes(charset);
+        }
+        try {
+            return template.execute((RedisCallback<T>) conn -> conn.evalSha(sha, returnType, keys.length, params));
+        } catch (RuntimeException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            LockMetricsHolder.get().scriptReloaded(sha);
+            return template.execute((RedisCallback<T>) conn -> conn.eval(script.getBytes(charset), returnType, keys.length, params));
         }
-        return redisTemplate.execute((RedisCallback<Boolean>) conn -> {
-            Long o = conn.evalSha(scriptSha, ReturnType.INTEGER, 3, params);
-            return o != null && o == 1L;
-        });
     }
 
     /**
@@ -176,41 +299,131 @@ public class RedisLock extends AbstractLock {
     private static void buildScript() {
         // 加锁脚本:
         // 外层键 -- KEYS[1]
-        // 线程ID -- KEYS[2]  ARGV[1]
-        // 加锁次数 -- KEYS[3]  ARGV[2]
-        // 超时时间(秒) -- ARGV[3]
+        // 令牌计数器 -- KEYS[2]
+        // 线程ID -- ARGV[1]
+        // 超时时间(毫秒) -- ARGV[2]
         StringBuilder sb = new StringBuilder();
-        sb.append("if(redis.call('exists',KEYS[1]) == 1) then ")
-                .append("if(redis.call('hget',KEYS[1],KEYS[2]) == ARGV[1]) then ")
-                .append("redis.call('hincrby',KEYS[1],KEYS[3],1) ")
-                .append("redis.call('expire',KEYS[1],ARGV[3]) ")
-                .append("return 1 else return 0 end ")
-                .append("redis.call('hmset',KEYS[1],KEYS[2],ARGV[1],KEYS[3],ARGV[2])")
-                .append("redis.call('expire',KEYS[1],ARGV[3])")
-                .append("return 1 end");
+        sb.append("if(redis.call('exists',KEYS[1]) == 0) then ")
+                .append("local token = redis.call('incr',KEYS[2]) ")
+                .append("redis.call('hmset',KEYS[1],'uuid',ARGV[1],'count',1,'token',token) ")
+                .append("redis.call('pexpire',KEYS[1],ARGV[2]) ")
+                .append("return token end ")
+                .append("if(redis.call('hget',KEYS[1],'uuid') == ARGV[1]) then ")
+                .append("redis.call('hincrby',KEYS[1],'count',1) ")
+                .append("redis.call('pexpire',KEYS[1],ARGV[2]) ")
+                .append("return tonumber(redis.call('hget',KEYS[1],'token')) end ")
+                .append("local ttl = redis.call('pttl',KEYS[1]) ")
+                .append("if(ttl < 0) then return 0 end ")
+                .append("return -math.max(ttl,1)");
         LOCK_SCRIPT = sb.toString();
 
         // 解锁脚本:
         // 外层键 -- KEYS[1]
-        // 线程ID -- KEYS[2]  ARGV[1]
-        // 加锁次数 -- KEYS[3]
+        // 线程ID -- ARGV[1]
+        // 释放通道 -- ARGV[2]
         sb = new StringBuilder();
-        sb.append("if(redis.call('exists',KEYS[1]) == 1) then ")
-                .append("if(redis.call('hget',KEYS[1],KEYS[2]) == ARGV[1]) then ")
-                .append("local count = redis.call('hincrby',KEYS[1],KEYS[3],-1) ")
-                .append("if(count==0) then redis.call('del',KEYS[1]) ")
-                .append("redis.call('publish','").append(LockConstants.REDIS_LOCK_CHANNEL).append("',KEYS[1]) return 1 ")
-                .append("else return 0 end ")
-                .append("else return 0 end ")
-                .append("else return 0 end");
+        sb.append("if(redis.call('hget',KEYS[1],'uuid') ~= ARGV[1]) then return -1 end ")
+                .append("if(redis.call('hincrby',KEYS[1],'count',-1) > 0) then return 0 end ")
+                .append("redis.call('del',KEYS[1]) ")
+                .append("redis.call('publish',ARGV[2],KEYS[1]) ")
+                .append("return 1");
         UNLOCK_SCRIPT = sb.toString();
+
+        // 续期脚本:
+        // 外层键 -- KEYS[1]
+        // 线程ID -- ARGV[1]
+        // 租期(毫秒) -- ARGV[2]
+        sb = new StringBuilder();
+        sb.append("if(redis.call('hget',KEYS[1],'uuid') == ARGV[1]) then ")
+                .append("redis.call('pexpire',KEYS[1],ARGV[2]) return 1 ")
+                .append("else return 0 end");
+        RENEW_SCRIPT = sb.toString();
+
+        LOCK_SCRIPT_SHA = sha1Hex(LOCK_SCRIPT);
+        UNLOCK_SCRIPT_SHA = sha1Hex(UNLOCK_SCRIPT);
+        RENEW_SCRIPT_SHA = sha1Hex(RENEW_SCRIPT);
+    }
+
+    /**
+     * 获取redisTemplate, 第一次使用时从spring容器中获取
+     */
+    static StringRedisTemplate template() {
+        StringRedisTemplate template = redisTemplate;
+        if (template == null) {
+            template = SpringContextUtil.getBean(StringRedisTemplate.class);
+            redisTemplate = template;
+        }
+        return template;
+    }
+
+    /**
+     * 计算脚本的sha1, 与redis的 SCRIPT LOAD 返回值一致
+     */
+    static String sha1Hex(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(charset));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
-     * 缓存加锁、解锁脚本
+     * 异常链中是否包含脚本缓存丢失的异常
      */
-    private static void scriptCache() {
-        LOCK_SCRIPT_SHA = redisTemplate.execute((RedisCallback<String>) conn -> conn.scriptLoad(LOCK_SCRIPT.getBytes(charset)));
-        UNLOCK_SCRIPT_SHA = redisTemplate.execute((RedisCallback<String>) conn -> conn.scriptLoad(UNLOCK_SCRIPT.getBytes(charset)));
+    static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof RedisNoScriptException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * redis租约续期器, 把一批租约放到同一个pipeline里续期, 只需一次网络往返
+     */
+    private static class RedisLeaseRenewer implements LeaseRenewer {
+
+        @Override
+        public Collection<Lease> renew(List<Lease> leases) {
+            List<Object> results;
+            try {
+                results = doRenew(leases);
+            } catch (Exception e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                // 集群模式下脚本缓存是每个节点各自的, 逐个用eval续期, 每个节点顺便缓存脚本, 重新加载在eval里记录
+                results = new ArrayList<>(leases.size());
+                for (Lease lease : leases) {
+                    results.add(eval(RENEW_SCRIPT_SHA, RENEW_SCRIPT, ReturnType.INTEGER, new String[]{lease.getKey()},
+                            lease.getOwner(), Long.toString(lease.getLeaseMillis())));
+                }
+            }
+            List<Lease> lost = new ArrayList<>();
+            for (int i = 0, len = leases.size(); i < len; i++) {
+                if (!Long.valueOf(1L).equals(results.get(i))) {
+                    lost.add(leases.get(i));
+                }
+            }
+            return lost;
+        }
+
+        private List<Object> doRenew(List<Lease> leases) {
+            return template().executePipelined((RedisCallback<Object>) conn -> {
+                for (Lease lease : leases) {
+                    conn.evalSha(RENEW_SCRIPT_SHA, ReturnType.INTEGER, 1,
+                            lease.getKey().getBytes(charset),
+                            lease.getOwner().getBytes(charset),
+                            Long.toString(lease.getLeaseMillis()).getBytes(charset));
+                }
+                return null;
+            });
+        }
     }
 }
@@ -0,0 +1,88 @@
+package com.sym.lock.redis;
+
+import com.sym.constant.LockConstants;
+
+/**
+ * redis锁释放消息的分片通道.
+ * <p>
+ * 锁释放时, 消息只发布到key哈希值对应的分片通道 {@link LockConstants#REDIS_LOCK_CHANNEL}:分片号,
+ * 每个节点只订阅本地有等待线程的分片, 不再把整个集群的所有释放消息都推给所有节点.
+ * 集群内所有节点的分片数必须一致, 否则发布和订阅的通道对不上.
+ * </p>
+ * <p>
+ * redis集群模式下, publish的消息会在集群总线上广播给所有节点, 节点越多开销越大. redis 7.0的分片发布订阅(SPUBLISH/SSUBSCRIBE)
+ * 只在通道所在槽位的分片内传播, 但需要lettuce 6.2+, 当前依赖的lettuce 5.1没有SSUBSCRIBE, 升级后可以把分片通道换成分片发布订阅,
+ * 通道名带上锁key的hash tag, 使释放消息与锁落在同一个分片.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/20 10:12
+ */
+public class RedisLockChannel {
+
+    /**
+     * 默认分片数
+     */
+    public final static int DEFAULT_SHARDS = 64;
+
+    private static volatile String[] channels = build(DEFAULT_SHARDS);
+
+    private RedisLockChannel() {
+    }
+
+    /**
+     * 设置分片数, 会向上取整为2的幂. 需要在使用锁之前设置
+     *
+     * @param shards 分片数
+     */
+    public static void setShards(int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards must be positive");
+        }
+        channels = build(shards == 1 ? 1 : Integer.highestOneBit(shards - 1) << 1);
+    }
+
+    /**
+     * @return 分片数
+     */
+    public static int shards() {
+        return channels.length;
+    }
+
+    /**
+     * 计算key所在的分片
+     *
+     * @param key 分布式锁key
+     * @return 分片号
+     */
+    public static int shardOf(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (channels.length - 1);
+    }
+
+    /**
+     * 获取key的释放通道
+     *
+     * @param key 分布式锁key
+     */
+    public static String channelOf(String key) {
+        return channels[shardOf(key)];
+    }
+
+    /**
+     * 获取分片的释放通道
+     *
+     * @param shard 分片号
+     */
+    public static String channelOf(int shard) {
+        return channels[shard];
+    }
+
+    private static String[] build(int shards) {
+        String[] result = new String[shards];
+        for (int i = 0; i < shards; i++) {
+            result[i] = LockConstants.REDIS_LOCK_CHANNEL + ":" + i;
+        }
+        return result;
+    }
+}
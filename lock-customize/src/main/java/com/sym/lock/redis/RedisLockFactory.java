@@ -0,0 +1,122 @@
+package com.sym.lock.redis;
+
+import com.sym.enums.LockStrategy;
+import com.sym.lock.AbstractLock;
+import com.sym.lock.AbstractLockFactory;
+import com.sym.lock.AsyncLock;
+import com.sym.lock.ILock;
+import com.sym.lock.IReadWriteLock;
+import com.sym.lock.ISemaphore;
+import com.sym.lock.MultiLock;
+import com.sym.lock.ReactiveLock;
+import com.sym.lock.ReactiveLockFactory;
+import com.sym.util.ReflectionUtil;
+import org.springframework.data.redis.connection.ClusterSlotHashUtil;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * redis分布式锁工厂, 同时提供异步锁和响应式锁
+ *
+ * @author shenyanming
+ * Created on 2020/8/21 10:40
+ */
+public class RedisLockFactory extends AbstractLockFactory implements ReactiveLockFactory {
+
+    /**
+     * 响应式锁使用, 没有时为null
+     */
+    private final ReactiveStringRedisTemplate reactiveTemplate;
+
+    /**
+     * 是否为redis集群
+     */
+    private final boolean cluster;
+
+    public RedisLockFactory(StringRedisTemplate redisTemplate) {
+        this(redisTemplate, null);
+    }
+
+    /**
+     * @param reactiveTemplate 响应式redis模板, 为null时不支持响应式锁
+     */
+    public RedisLockFactory(StringRedisTemplate redisTemplate, ReactiveStringRedisTemplate reactiveTemplate) {
+        this(redisTemplate, reactiveTemplate, false);
+    }
+
+    /**
+     * @param reactiveTemplate 响应式redis模板, 为null时不支持响应式锁
+     * @param cluster          是否为redis集群, 集群模式下所有锁key都会加上hash tag, 见{@link ReflectionUtil#hashTag(String)}
+     */
+    public RedisLockFactory(StringRedisTemplate redisTemplate, ReactiveStringRedisTemplate reactiveTemplate, boolean cluster) {
+        RedisLock.setRedisTemplate(redisTemplate);
+        ReflectionUtil.setHashTag(cluster);
+        this.reactiveTemplate = reactiveTemplate;
+        this.cluster = cluster;
+    }
+
+    /**
+     * 获取异步锁, 持有锁期间自动续期. 异步锁的持有者是实例本身, 不缓存, 每次返回新实例
+     *
+     * @param key 分布式锁key
+     */
+    public AsyncLock getAsyncLock(String key) {
+        return getAsyncLock(key, AbstractLock.RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 获取异步锁
+     *
+     * @param key      分布式锁key
+     * @param keepTime 持有锁的时间, 为{@link AbstractLock#RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     */
+    public AsyncLock getAsyncLock(String key, long keepTime, TimeUnit timeUnit) {
+        return new RedisAsyncLock(key, keepTime, timeUnit);
+    }
+
+    /**
+     * 在一个lua脚本里原子地锁住所有key, 见{@link RedisMultiLock}.
+     * 集群模式下一个脚本不能跨槽位, key不在同一个槽位时改用通用的{@link MultiLock}逐个加锁
+     */
+    @Override
+    public ILock getMultiLock(Collection<String> keys, long keepTime, TimeUnit timeUnit) {
+        if (cluster && !ClusterSlotHashUtil.isSameSlotForAllKeys(RedisMultiLock.sortedKeys(keys).stream()
+                .map(key -> key.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new))) {
+            return super.getMultiLock(keys, keepTime, timeUnit);
+        }
+        return new RedisMultiLock(keys, keepTime, timeUnit);
+    }
+
+    @Override
+    public IReadWriteLock getReadWriteLock(String key, long keepTime, TimeUnit timeUnit) {
+        return new RedisReadWriteLock(key, keepTime, timeUnit);
+    }
+
+    @Override
+    public ISemaphore getSemaphore(String key, int permits, long keepTime, TimeUnit timeUnit) {
+        return new RedisSemaphore(key, permits, keepTime, timeUnit);
+    }
+
+    @Override
+    public ReactiveLock getReactiveLock(String key, long keepTime, TimeUnit timeUnit) {
+        if (reactiveTemplate == null) {
+            throw new IllegalStateException("没有配置ReactiveStringRedisTemplate, 不支持响应式锁");
+        }
+        return new ReactiveRedisLock(key, keepTime, timeUnit, reactiveTemplate);
+    }
+
+    @Override
+    protected ILock createLock(String key, long leaseMillis) {
+        return new RedisLock(key, leaseMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public LockStrategy strategy() {
+        return LockStrategy.REDIS;
+    }
+}
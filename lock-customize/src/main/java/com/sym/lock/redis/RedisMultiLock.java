@@ -0,0 +1,275 @@
+package com.sym.lock.redis;
+
+import com.sym.lock.AbstractLock;
+import com.sym.lock.Lease;
+import com.sym.lock.LeaseRenewer;
+import com.sym.lock.MultiLock;
+import com.sym.util.ReflectionUtil;
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.ReturnType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * redis联锁, 在一个lua脚本里同时锁住多个key, 一次网络往返, 要么全部获得, 要么一个都不获得, 不会死锁.
+ * <p>
+ * 每个key的存储结构、持有者标识与{@link RedisLock}完全相同, 两者在同一个key上互斥, 同一个线程可以交叉重入.
+ * </p>
+ * <p>
+ * 加锁脚本解释:
+ * 1)、先检查所有key, 只要有一个key被其它持有者占用, 不做任何修改, 返回{0, 各key的剩余存活时间}: 空闲或者自己持有的key为0,
+ * 没有过期时间的key为-1;
+ * 2)、全部可以获得时, 逐个key执行与{@link RedisLock}相同的加锁/重入逻辑, 返回{1, 各key的防护令牌}.
+ * 加锁失败时, 等待线程挂在剩余存活时间最长的那个key的等待队列上, 等它的释放信号.
+ * </p>
+ * <p>
+ * 解锁脚本逐个key减少重入次数, 减到0的key删除并发布释放消息. 某个key已经不属于自己时, 其余的key照常释放, 返回-1.
+ * </p>
+ * <p>
+ * 与通用的{@link MultiLock}逐个加锁相比, 只需一次网络往返, 也不会出现持有一部分key时等待另一部分key的情况.
+ * </p>
+ * <p>
+ * 注意: redis集群模式下, 一个脚本里的所有key(包括令牌计数器)必须在同一个槽位, 需要使用相同的hash tag, 比如{order}:1、{order}:2;
+ * 不在同一个槽位时{@link RedisLockFactory}会改用通用的{@link MultiLock}.
+ * 返回的防护令牌是排序后第一个key的令牌.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/24 10:40
+ */
+@Slf4j
+public class RedisMultiLock extends AbstractLock {
+
+    /**
+     * 联锁加锁lua脚本、解锁lua脚本, 以及它们的sha1
+     */
+    static String LOCK_ALL_SCRIPT;
+    static String UNLOCK_ALL_SCRIPT;
+    static String LOCK_ALL_SCRIPT_SHA;
+    static String UNLOCK_ALL_SCRIPT_SHA;
+
+    static {
+        buildScript();
+    }
+
+    /**
+     * 按字典序排好的key
+     */
+    private final List<String> keys;
+
+    /**
+     * 加锁脚本的KEYS: 所有key, 然后是它们的令牌计数器
+     */
+    private final String[] lockKeys;
+
+    /**
+     * 各key的释放通道
+     */
+    private final String[] channels;
+
+    private final LeaseRenewer leaseRenewer;
+
+    /**
+     * 每个线程最近一次加锁失败时, 挡住自己的key
+     */
+    private final ThreadLocal<String> blockingKey = new ThreadLocal<>();
+
+    /**
+     * 持有锁期间自动续期
+     *
+     * @param keys 需要同时锁住的key, 重复的key只加一次锁
+     */
+    public RedisMultiLock(Collection<String> keys) {
+        this(keys, RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param keys     需要同时锁住的key, 重复的key只加一次锁
+     * @param keepTime 持有锁的时间, 为{@link #RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     */
+    public RedisMultiLock(Collection<String> keys, long keepTime, TimeUnit timeUnit) {
+        this(sortedKeys(keys), keepTime == RENEW_WHILE_HELD ? RENEW_WHILE_HELD : timeUnit.toMillis(keepTime));
+    }
+
+    /**
+     * 加上hash tag后去重、按字典序排序, 与{@link RedisLock}使用相同的key, 两者可以互斥
+     */
+    static List<String> sortedKeys(Collection<String> keys) {
+        return new ArrayList<>(keys.stream().map(ReflectionUtil::hashTag).collect(Collectors.toCollection(TreeSet::new)));
+    }
+
+    private RedisMultiLock(List<String> keys, long leaseMillis) {
+        super(keys.toString(), null, leaseMillis);
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("keys must not be empty");
+        }
+        int size = keys.size();
+        this.keys = keys;
+        this.lockKeys = new String[size * 2];
+        this.channels = new String[size];
+        for (int i = 0; i < size; i++) {
+            lockKeys[i] = keys.get(i);
+            lockKeys[size + i] = keys.get(i) + RedisLock.FENCE_SUFFIX;
+            channels[i] = RedisLockChannel.channelOf(keys.get(i));
+        }
+        this.leaseRenewer = new MultiLeaseRenewer(keys);
+    }
+
+    @Override
+    protected long tryRequire() {
+        List<Object> result = eval(LOCK_ALL_SCRIPT_SHA, LOCK_ALL_SCRIPT, lockKeys, ownerId(), Long.toString(ttlMillis()));
+        if (toLong(result.get(0)) == 1L) {
+            blockingKey.remove();
+            long token = toLong(result.get(1));
+            log.info("线程[{}]获取到联锁{}, 令牌[{}]", Thread.currentThread().getName(), keys, token);
+            return token;
+        }
+        // 挂在剩余存活时间最长的key上等待, 其它key即使先释放了也抢不到
+        String blocking = null;
+        long maxTtl = 0L;
+        for (int i = 0, size = keys.size(); i < size; i++) {
+            long ttl = toLong(result.get(i + 1));
+            if (ttl != 0L && (blocking == null || ttl > maxTtl)) {
+                blocking = keys.get(i);
+                maxTtl = Math.max(ttl, 0L);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("获取联锁{}失败, 各key剩余存活时间{}", keys, result.subList(1, result.size()));
+        }
+        blockingKey.set(blocking);
+        return -maxTtl;
+    }
+
+    @Override
+    protected boolean tryRelease() {
+        String[] args = new String[channels.length + 1];
+        args[0] = ownerId();
+        System.arraycopy(channels, 0, args, 1, channels.length);
+        long result = toLong(eval(UNLOCK_ALL_SCRIPT_SHA, UNLOCK_ALL_SCRIPT, keys.toArray(new String[0]), args).get(0));
+        if (result < 0) {
+            log.warn("线程[{}]解锁联锁{}失败, 部分key已过期或被其它线程持有", Thread.currentThread().getName(), keys);
+            return false;
+        }
+        if (result == 1L) {
+            log.info("线程[{}]已成功解锁联锁{}", Thread.currentThread().getName(), keys);
+        }
+        return result == 1L;
+    }
+
+    @Override
+    protected void cancelRequire() {
+        blockingKey.remove();
+    }
+
+    @Override
+    protected String waitKey() {
+        String blocking = blockingKey.get();
+        return blocking != null ? blocking : key;
+    }
+
+    @Override
+    protected LeaseRenewer leaseRenewer() {
+        return leaseRenewer;
+    }
+
+    private static List<Object> eval(String sha, String script, String[] keys, String... args) {
+        return RedisLock.eval(sha, script, ReturnType.MULTI, keys, args);
+    }
+
+    private static long toLong(Object value) {
+        return value == null ? 0L : ((Number) value).longValue();
+    }
+
+    /**
+     * 构建联锁的加锁、解锁脚本
+     */
+    private static void buildScript() {
+        // 加锁脚本:
+        // 所有key -- KEYS[1..n]
+        // 令牌计数器 -- KEYS[n+1..2n]
+        // 线程ID -- ARGV[1]
+        // 超时时间(毫秒) -- ARGV[2]
+        StringBuilder sb = new StringBuilder();
+        sb.append("local n = #KEYS / 2 ")
+                .append("local ttls = {0} ")
+                .append("local blocked = false ")
+                .append("for i = 1, n do ")
+                .append("local ttl = 0 ")
+                .append("if(redis.call('exists',KEYS[i]) == 1 and redis.call('hget',KEYS[i],'uuid') ~= ARGV[1]) then ")
+                .append("ttl = redis.call('pttl',KEYS[i]) ")
+                .append("if(ttl < 0) then ttl = -1 else ttl = math.max(ttl,1) end ")
+                .append("blocked = true end ")
+                .append("ttls[i + 1] = ttl end ")
+                .append("if(blocked) then return ttls end ")
+                .append("local tokens = {1} ")
+                .append("for i = 1, n do ")
+                .append("local token ")
+                .append("if(redis.call('exists',KEYS[i]) == 0) then ")
+                .append("token = redis.call('incr',KEYS[n + i]) ")
+                .append("redis.call('hmset',KEYS[i],'uuid',ARGV[1],'count',1,'token',token) ")
+                .append("else ")
+                .append("redis.call('hincrby',KEYS[i],'count',1) ")
+                .append("token = tonumber(redis.call('hget',KEYS[i],'token')) end ")
+                .append("redis.call('pexpire',KEYS[i],ARGV[2]) ")
+                .append("tokens[i + 1] = token end ")
+                .append("return tokens");
+        LOCK_ALL_SCRIPT = sb.toString();
+
+        // 解锁脚本:
+        // 所有key -- KEYS[1..n]
+        // 线程ID -- ARGV[1]
+        // 各key的释放通道 -- ARGV[2..n+1]
+        sb = new StringBuilder();
+        sb.append("local result = 1 ")
+                .append("for i = 1, #KEYS do ")
+                .append("if(redis.call('hget',KEYS[i],'uuid') ~= ARGV[1]) then result = -1 ")
+                .append("elseif(redis.call('hincrby',KEYS[i],'count',-1) > 0) then ")
+                .append("if(result == 1) then result = 0 end ")
+                .append("else ")
+                .append("redis.call('del',KEYS[i]) ")
+                .append("redis.call('publish',ARGV[i + 1],KEYS[i]) end end ")
+                .append("return {result}");
+        UNLOCK_ALL_SCRIPT = sb.toString();
+
+        LOCK_ALL_SCRIPT_SHA = RedisLock.sha1Hex(LOCK_ALL_SCRIPT);
+        UNLOCK_ALL_SCRIPT_SHA = RedisLock.sha1Hex(UNLOCK_ALL_SCRIPT);
+    }
+
+    /**
+     * 联锁的续期器: 一份联锁租约展开成各key的租约, 交给{@link RedisLock}的续期器在一个pipeline里续期,
+     * 任何一个key续期失败, 整份联锁租约就算丢失. 相同key集合的联锁共用一组
+     */
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static class MultiLeaseRenewer implements LeaseRenewer {
+
+        private final List<String> keys;
+
+        @Override
+        public Collection<Lease> renew(List<Lease> leases) {
+            List<Lease> parts = new ArrayList<>(leases.size() * keys.size());
+            for (Lease lease : leases) {
+                for (String key : keys) {
+                    parts.add(new Lease(key, lease.getOwner(), lease.getLeaseMillis(), RedisLock.leaseRenewer));
+                }
+            }
+            Collection<Lease> lostParts = RedisLock.leaseRenewer.renew(parts);
+            if (lostParts.isEmpty()) {
+                return Collections.emptyList();
+            }
+            Set<String> lostOwners = lostParts.stream().map(Lease::getOwner).collect(Collectors.toSet());
+            return leases.stream().filter(lease -> lostOwners.contains(lease.getOwner())).collect(Collectors.toList());
+        }
+    }
+}
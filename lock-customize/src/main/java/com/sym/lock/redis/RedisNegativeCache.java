@@ -0,0 +1,204 @@
+package com.sym.lock.redis;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * redis锁的本地否定缓存, 默认关闭.
+ * <p>
+ * 加锁脚本失败时会返回锁的剩余存活时间, 这里记下"被其它持有者占用, 直到T". T之前同一个key上不等待的{@link RedisLock#tryLock()}
+ * 直接在本地返回失败, 不再访问redis. 快速失败的调用方在热点key上每秒可能发起成千上万次无用的加锁脚本.
+ * </p>
+ * <p>
+ * 失效:
+ * 1)、锁释放时, 收到释放通道的消息就删除对应的缓存, 见{@link com.sym.config.LockConfig}. 开启时订阅所有分片的释放通道,
+ * 按需订阅只覆盖有等待线程的分片, 只调用tryLock()的节点收不到释放消息;
+ * 2)、锁续期后过了T, 缓存自然过期, 下一次tryLock()访问redis后重新缓存;
+ * 3)、释放消息可能在加锁脚本返回前就到了, 每次加锁前记下key所在段的版本号, 失效时递增版本号, 版本号变了就不缓存这次的结果.
+ * </p>
+ * <p>
+ * 只对线程级持有者的锁生效. 当前线程自己持有这把锁时(其它线程失败后缓存了它), tryLock()是重入, 不能走缓存,
+ * 所以每个线程在线程本地记录自己持有的key.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 18:00
+ */
+public class RedisNegativeCache {
+
+    /**
+     * 默认最多缓存的key个数
+     */
+    public final static int DEFAULT_MAX_ENTRIES = 10000;
+
+    /**
+     * 版本号的段数, 为2的幂
+     */
+    private final static int STRIPES = 1024;
+
+    /**
+     * 缓存满时清理过期缓存的最短间隔, 避免每次加锁失败都遍历一遍
+     */
+    private final static long PURGE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static volatile boolean enabled;
+    private static volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    /**
+     * key -> 锁被占用到的时间点(纳秒)
+     */
+    private static Map<String, Long> heldUntil = new ConcurrentHashMap<>();
+
+    /**
+     * 每段key的失效版本号
+     */
+    private static AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+    /**
+     * 当前线程持有的key及重入次数, 只有所属线程会读写
+     */
+    private static ThreadLocal<Map<String, int[]>> OWN_HOLDS = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * 下一次允许清理的时间点(纳秒)
+     */
+    private static AtomicLong nextPurgeNanos = new AtomicLong(System.nanoTime());
+
+    private RedisNegativeCache() {
+    }
+
+    /**
+     * 开启否定缓存. 需要同时订阅所有分片的释放通道, 见{@link RedisChannelSubscriber#subscribeAll()}
+     *
+     * @param entries 最多缓存的key个数, 缓存满时不再缓存新的key
+     */
+    public static void enable(int entries) {
+        maxEntries = entries;
+        enabled = true;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 锁已释放, 删除缓存. 先递增版本号, 正在进行的加锁脚本的结果就不会再被缓存
+     *
+     * @param key 分布式锁key
+     */
+    public static void invalidate(String key) {
+        if (!enabled) {
+            return;
+        }
+        versions.incrementAndGet(stripe(key));
+        heldUntil.remove(key);
+    }
+
+    /**
+     * key是否确定被其它持有者占用, 当前线程自己持有时返回false
+     *
+     * @param key 分布式锁key
+     */
+    static boolean isHeldByOthers(String key) {
+        Long until = heldUntil.get(key);
+        if (until == null) {
+            return false;
+        }
+        if (until - System.nanoTime() <= 0L) {
+            heldUntil.remove(key, until);
+            return false;
+        }
+        return !OWN_HOLDS.get().containsKey(key);
+    }
+
+    /**
+     * 执行加锁脚本前取key所在段的版本号
+     */
+    static long version(String key) {
+        return versions.get(stripe(key));
+    }
+
+    /**
+     * 加锁脚本返回锁被占用
+     *
+     * @param key       分布式锁key
+     * @param ttlMillis 锁剩余的存活时间(毫秒)
+     * @param version   执行加锁脚本前的版本号
+     */
+    static void held(String key, long ttlMillis, long version) {
+        if (heldUntil.size() >= maxEntries && !purge()) {
+            return;
+        }
+        Long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        heldUntil.put(key, until);
+        // 放入之前或者之后失效过, 都不能留着这条缓存
+        if (versions.get(stripe(key)) != version) {
+            heldUntil.remove(key, until);
+        }
+    }
+
+    /**
+     * 当前线程加锁成功(包括重入)
+     */
+    static void acquired(String key) {
+        int[] count = OWN_HOLDS.get().get(key);
+        if (count == null) {
+            OWN_HOLDS.get().put(key, new int[]{1});
+        } else {
+            count[0]++;
+        }
+    }
+
+    /**
+     * 当前线程解锁成功
+     *
+     * @param released 是否完全释放, false表示重入次数减1
+     */
+    static void released(String key, boolean released) {
+        Map<String, int[]> holds = OWN_HOLDS.get();
+        int[] count = holds.get(key);
+        if (count != null && (released || --count[0] <= 0)) {
+            holds.remove(key);
+        }
+        if (released) {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * 当前线程解锁失败, 锁已过期或被其它持有者占用, 当前线程不再持有它, 不管还剩几次重入
+     */
+    static void lost(String key) {
+        OWN_HOLDS.get().remove(key);
+    }
+
+    /**
+     * 清理过期的缓存, 距离上次清理不足{@link #PURGE_INTERVAL_NANOS}时不清理
+     *
+     * @return 清理后是否还有空位
+     */
+    private static boolean purge() {
+        long now = System.nanoTime();
+        long next = nextPurgeNanos.get();
+        if (now - next < 0L || !nextPurgeNanos.compareAndSet(next, now + PURGE_INTERVAL_NANOS)) {
+            return false;
+        }
+        Iterator<Long> iterator = heldUntil.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() - now <= 0L) {
+                iterator.remove();
+            }
+        }
+        return heldUntil.size() < maxEntries;
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+}
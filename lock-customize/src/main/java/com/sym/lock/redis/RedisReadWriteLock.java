@@ -0,0 +1,389 @@
+package com.sym.lock.redis;
+
+import com.sym.lock.AbstractLock;
+import com.sym.lock.ILock;
+import com.sym.lock.IReadWriteLock;
+import com.sym.lock.Lease;
+import com.sym.lock.LeaseRenewer;
+import com.sym.util.ReflectionUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 自己实现的redis读写锁, 读写状态放在同一个hash里, 由lua脚本原子维护.
+ * <p>
+ * 存储结构:
+ * 1)、hash(key): uuid-写锁持有者, count-写锁重入次数, token-当前的防护令牌, r:持有者-该持有者的读锁重入次数,
+ * wp-等待中的写锁意向的截止时间;
+ * 2)、zset(key:readers): 读锁持有者, 分数为它的到期时间. 每次加锁时先清理已到期的读锁持有者, 宕机节点的读锁不会一直挡住写锁;
+ * 3)、令牌计数器(key:fence): 与{@link RedisLock}共用, 从空闲进入读或写状态时令牌加1, 同一段读状态内所有读锁共用一个令牌.
+ * </p>
+ * <p>
+ * 写锁加锁失败时会留下一个写锁意向(wp), 意向有效期内新的读锁不能加锁(已持有读锁的重入不受影响), 避免读多写少时写锁一直饿死.
+ * 写锁的持有者可以直接获取读锁, 然后释放写锁完成降级.
+ * </p>
+ * <p>
+ * 读锁、写锁在同一个本地等待队列上排队. 读锁是共享锁, 队头的读锁抢到后会唤醒下一个等待者, 排在一起的读锁可以依次获得.
+ * 脚本使用了TIME命令, 通过 redis.replicate_commands() 以命令复制的方式同步到从节点(redis 3.2+).
+ * 集群模式下三个key需要在同一个槽位, 见{@link ReflectionUtil#hashTag(String)}.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/25 10:00
+ */
+@Slf4j
+public class RedisReadWriteLock implements IReadWriteLock {
+
+    /**
+     * 读锁加锁、写锁加锁、读锁解锁、写锁解锁、读锁续期的lua脚本, 以及它们的sha1
+     */
+    static String READ_LOCK_SCRIPT;
+    static String WRITE_LOCK_SCRIPT;
+    static String READ_UNLOCK_SCRIPT;
+    static String WRITE_UNLOCK_SCRIPT;
+    static String READ_RENEW_SCRIPT;
+    static String READ_LOCK_SCRIPT_SHA;
+    static String WRITE_LOCK_SCRIPT_SHA;
+    static String READ_UNLOCK_SCRIPT_SHA;
+    static String WRITE_UNLOCK_SCRIPT_SHA;
+    static String READ_RENEW_SCRIPT_SHA;
+
+    /**
+     * 读锁持有者zset的key后缀
+     */
+    static String READERS_SUFFIX = ":readers";
+
+    /**
+     * 读锁租约的key后缀, 与同一个持有者的写锁租约区分开
+     */
+    private static String READ_LEASE_SUFFIX = ":read";
+
+    /**
+     * 写锁意向的有效期(毫秒), 等待中的写锁至少每隔{@link AbstractLock#MAX_PARK_MILLIS}重试一次并刷新意向
+     */
+    private static long WRITE_PENDING_MILLIS = 2 * AbstractLock.MAX_PARK_MILLIS;
+
+    private static Charset charset = StandardCharsets.UTF_8;
+
+    /**
+     * 读锁续期器, 整个JVM共用一个; 写锁的续期与{@link RedisLock}相同
+     */
+    private static LeaseRenewer readLeaseRenewer = new ReadLeaseRenewer();
+
+    static {
+        buildScript();
+    }
+
+    private final ILock readLock;
+    private final ILock writeLock;
+
+    /**
+     * 持有锁期间自动续期
+     */
+    public RedisReadWriteLock(String key) {
+        this(key, AbstractLock.RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param keepTime 持有锁的时间, 为{@link AbstractLock#RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     */
+    public RedisReadWriteLock(String key, long keepTime, TimeUnit timeUnit) {
+        long leaseMillis = keepTime == AbstractLock.RENEW_WHILE_HELD ? AbstractLock.RENEW_WHILE_HELD : timeUnit.toMillis(keepTime);
+        String lockKey = ReflectionUtil.hashTag(key);
+        this.readLock = new ReadLock(lockKey, leaseMillis);
+        this.writeLock = new WriteLock(lockKey, leaseMillis);
+    }
+
+    @Override
+    public ILock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public ILock writeLock() {
+        return writeLock;
+    }
+
+    private static long eval(String sha, String script, String[] keys, String... args) {
+        Long result = RedisLock.eval(sha, script, ReturnType.INTEGER, keys, args);
+        return result == null ? ILock.NO_TOKEN : result;
+    }
+
+    /**
+     * 读锁, 共享
+     */
+    private static class ReadLock extends AbstractLock {
+
+        /**
+         * 读写锁的key, 父类的key是读锁租约的key
+         */
+        private final String lockKey;
+        private final String[] lockKeys;
+        private final String[] unlockKeys;
+
+        private ReadLock(String key, long leaseMillis) {
+            super(key + READ_LEASE_SUFFIX, null, leaseMillis);
+            this.lockKey = key;
+            this.lockKeys = new String[]{key, key + RedisLock.FENCE_SUFFIX, key + READERS_SUFFIX};
+            this.unlockKeys = new String[]{key, key + READERS_SUFFIX};
+        }
+
+        @Override
+        protected long tryRequire() {
+            long token = eval(READ_LOCK_SCRIPT_SHA, READ_LOCK_SCRIPT, lockKeys, ownerId(), Long.toString(ttlMillis()));
+            if (token > 0) {
+                log.info("线程[{}]获取到读锁[{}], 令牌[{}]", Thread.currentThread().getName(), lockKey, token);
+            }
+            return token;
+        }
+
+        @Override
+        protected boolean tryRelease() {
+            long result = eval(READ_UNLOCK_SCRIPT_SHA, READ_UNLOCK_SCRIPT, unlockKeys, ownerId(), RedisLockChannel.channelOf(lockKey));
+            if (result < 0) {
+                log.warn("线程[{}]解读锁[{}]失败, 锁已过期或未持有", Thread.currentThread().getName(), lockKey);
+                return false;
+            }
+            return result == 1L;
+        }
+
+        @Override
+        protected String waitKey() {
+            return lockKey;
+        }
+
+        @Override
+        protected boolean isShared() {
+            return true;
+        }
+
+        @Override
+        protected LeaseRenewer leaseRenewer() {
+            return readLeaseRenewer;
+        }
+    }
+
+    /**
+     * 写锁, 互斥
+     */
+    private static class WriteLock extends AbstractLock {
+
+        private final String[] lockKeys;
+        private final String[] unlockKeys;
+
+        private WriteLock(String key, long leaseMillis) {
+            super(key, null, leaseMillis);
+            this.lockKeys = new String[]{key, key + RedisLock.FENCE_SUFFIX, key + READERS_SUFFIX};
+            this.unlockKeys = new String[]{key, key + READERS_SUFFIX};
+        }
+
+        @Override
+        protected long tryRequire() {
+            long token = eval(WRITE_LOCK_SCRIPT_SHA, WRITE_LOCK_SCRIPT, lockKeys,
+                    ownerId(), Long.toString(ttlMillis()), Long.toString(WRITE_PENDING_MILLIS));
+            if (token > 0) {
+                log.info("线程[{}]获取到写锁[{}], 令牌[{}]", Thread.currentThread().getName(), key, token);
+            }
+            return token;
+        }
+
+        @Override
+        protected boolean tryRelease() {
+            long result = eval(WRITE_UNLOCK_SCRIPT_SHA, WRITE_UNLOCK_SCRIPT, unlockKeys, ownerId(), RedisLockChannel.channelOf(key));
+            if (result < 0) {
+                log.warn("线程[{}]解写锁[{}]失败, 锁已过期或被其它线程持有", Thread.currentThread().getName(), key);
+                return false;
+            }
+            return result == 1L;
+        }
+
+        @Override
+        protected LeaseRenewer leaseRenewer() {
+            // 写锁持有者字段与RedisLock相同, 续期脚本通用
+            return RedisLock.leaseRenewer;
+        }
+    }
+
+    /**
+     * 构建读写锁的脚本
+     */
+    private static void buildScript() {
+        // 清理已到期的读锁持有者, 读写锁的加锁脚本共用:
+        // 读写状态 -- KEYS[1]
+        // 读锁持有者 -- KEYS[3]
+        String purge = "redis.replicate_commands() "
+                + "local t = redis.call('time') "
+                + "local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000) "
+                + "local expired = redis.call('zrangebyscore',KEYS[3],'-inf',now) "
+                + "if(#expired > 0) then "
+                + "for i = 1, #expired do redis.call('hdel',KEYS[1],'r:' .. expired[i]) end "
+                + "redis.call('zremrangebyscore',KEYS[3],'-inf',now) "
+                + "if(redis.call('zcard',KEYS[3]) == 0 and redis.call('hexists',KEYS[1],'uuid') == 0) then "
+                + "redis.call('hdel',KEYS[1],'token') end end ";
+        String failed = "local ttl = redis.call('pttl',KEYS[1]) "
+                + "if(ttl < 0) then return 0 end "
+                + "return -math.max(ttl,1)";
+
+        // 读锁加锁脚本:
+        // 读写状态 -- KEYS[1]
+        // 令牌计数器 -- KEYS[2]
+        // 读锁持有者 -- KEYS[3]
+        // 线程ID -- ARGV[1]
+        // 超时时间(毫秒) -- ARGV[2]
+        StringBuilder sb = new StringBuilder(purge);
+        sb.append("local writer = redis.call('hget',KEYS[1],'uuid') ")
+                .append("local held = redis.call('hexists',KEYS[1],'r:' .. ARGV[1]) == 1 ")
+                .append("if((writer and writer ~= ARGV[1]) or ")
+                .append("(not writer and not held and tonumber(redis.call('hget',KEYS[1],'wp') or 0) > now)) then ")
+                .append(failed).append(" end ")
+                .append("local token = redis.call('hget',KEYS[1],'token') ")
+                .append("if(not token) then ")
+                .append("token = redis.call('incr',KEYS[2]) ")
+                .append("redis.call('hset',KEYS[1],'token',token) end ")
+                .append("redis.call('hincrby',KEYS[1],'r:' .. ARGV[1],1) ")
+                .append("redis.call('zadd',KEYS[3],now + tonumber(ARGV[2]),ARGV[1]) ")
+                .append("if(redis.call('pttl',KEYS[1]) < tonumber(ARGV[2])) then redis.call('pexpire',KEYS[1],ARGV[2]) end ")
+                .append("if(redis.call('pttl',KEYS[3]) < tonumber(ARGV[2])) then redis.call('pexpire',KEYS[3],ARGV[2]) end ")
+                .append("return tonumber(token)");
+        READ_LOCK_SCRIPT = sb.toString();
+
+        // 写锁加锁脚本:
+        // 读写状态 -- KEYS[1]
+        // 令牌计数器 -- KEYS[2]
+        // 读锁持有者 -- KEYS[3]
+        // 线程ID -- ARGV[1]
+        // 超时时间(毫秒) -- ARGV[2]
+        // 写锁意向有效期(毫秒) -- ARGV[3]
+        sb = new StringBuilder(purge);
+        sb.append("local writer = redis.call('hget',KEYS[1],'uuid') ")
+                .append("if(writer == ARGV[1]) then ")
+                .append("redis.call('hincrby',KEYS[1],'count',1) ")
+                .append("if(redis.call('pttl',KEYS[1]) < tonumber(ARGV[2])) then redis.call('pexpire',KEYS[1],ARGV[2]) end ")
+                .append("return tonumber(redis.call('hget',KEYS[1],'token')) end ")
+                .append("if(not writer and redis.call('zcard',KEYS[3]) == 0) then ")
+                .append("local token = redis.call('incr',KEYS[2]) ")
+                .append("redis.call('hdel',KEYS[1],'wp') ")
+                .append("redis.call('hmset',KEYS[1],'uuid',ARGV[1],'count',1,'token',token) ")
+                .append("redis.call('pexpire',KEYS[1],ARGV[2]) ")
+                .append("return token end ")
+                .append("redis.call('hset',KEYS[1],'wp',now + tonumber(ARGV[3])) ")
+                .append("if(redis.call('pttl',KEYS[1]) < 0) then redis.call('pexpire',KEYS[1],ARGV[3]) end ")
+                .append(failed);
+        WRITE_LOCK_SCRIPT = sb.toString();
+
+        // 读锁解锁脚本:
+        // 读写状态 -- KEYS[1]
+        // 读锁持有者 -- KEYS[2]
+        // 线程ID -- ARGV[1]
+        // 释放通道 -- ARGV[2]
+        sb = new StringBuilder();
+        sb.append("local field = 'r:' .. ARGV[1] ")
+                .append("if(redis.call('hexists',KEYS[1],field) == 0) then return -1 end ")
+                .append("if(redis.call('hincrby',KEYS[1],field,-1) > 0) then return 0 end ")
+                .append("redis.call('hdel',KEYS[1],field) ")
+                .append("redis.call('zrem',KEYS[2],ARGV[1]) ")
+                .append("if(redis.call('zcard',KEYS[2]) == 0) then ")
+                .append("if(redis.call('hexists',KEYS[1],'uuid') == 0) then ")
+                .append("redis.call('hdel',KEYS[1],'token') ")
+                .append("if(redis.call('hlen',KEYS[1]) == 0) then redis.call('del',KEYS[1]) end end ")
+                .append("redis.call('publish',ARGV[2],KEYS[1]) end ")
+                .append("return 1");
+        READ_UNLOCK_SCRIPT = sb.toString();
+
+        // 写锁解锁脚本:
+        // 读写状态 -- KEYS[1]
+        // 读锁持有者 -- KEYS[2]
+        // 线程ID -- ARGV[1]
+        // 释放通道 -- ARGV[2]
+        sb = new StringBuilder();
+        sb.append("if(redis.call('hget',KEYS[1],'uuid') ~= ARGV[1]) then return -1 end ")
+                .append("if(redis.call('hincrby',KEYS[1],'count',-1) > 0) then return 0 end ")
+                .append("redis.call('hdel',KEYS[1],'uuid','count') ")
+                .append("if(redis.call('zcard',KEYS[2]) == 0) then ")
+                .append("redis.call('hdel',KEYS[1],'token') ")
+                .append("if(redis.call('hlen',KEYS[1]) == 0) then redis.call('del',KEYS[1]) end end ")
+                .append("redis.call('publish',ARGV[2],KEYS[1]) ")
+                .append("return 1");
+        WRITE_UNLOCK_SCRIPT = sb.toString();
+
+        // 读锁续期脚本:
+        // 读写状态 -- KEYS[1]
+        // 读锁持有者 -- KEYS[2]
+        // 线程ID -- ARGV[1]
+        // 租期(毫秒) -- ARGV[2]
+        sb = new StringBuilder();
+        sb.append("redis.replicate_commands() ")
+                .append("if(redis.call('hexists',KEYS[1],'r:' .. ARGV[1]) == 0) then return 0 end ")
+                .append("local t = redis.call('time') ")
+                .append("local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000) ")
+                .append("redis.call('zadd',KEYS[2],now + tonumber(ARGV[2]),ARGV[1]) ")
+                .append("if(redis.call('pttl',KEYS[1]) < tonumber(ARGV[2])) then redis.call('pexpire',KEYS[1],ARGV[2]) end ")
+                .append("if(redis.call('pttl',KEYS[2]) < tonumber(ARGV[2])) then redis.call('pexpire',KEYS[2],ARGV[2]) end ")
+                .append("return 1");
+        READ_RENEW_SCRIPT = sb.toString();
+
+        READ_LOCK_SCRIPT_SHA = RedisLock.sha1Hex(READ_LOCK_SCRIPT);
+        WRITE_LOCK_SCRIPT_SHA = RedisLock.sha1Hex(WRITE_LOCK_SCRIPT);
+        READ_UNLOCK_SCRIPT_SHA = RedisLock.sha1Hex(READ_UNLOCK_SCRIPT);
+        WRITE_UNLOCK_SCRIPT_SHA = RedisLock.sha1Hex(WRITE_UNLOCK_SCRIPT);
+        READ_RENEW_SCRIPT_SHA = RedisLock.sha1Hex(READ_RENEW_SCRIPT);
+    }
+
+    /**
+     * 读锁续期器, 一批读锁租约在同一个pipeline里续期. 脚本缓存丢失时逐个用eval续期, 顺便缓存脚本
+     */
+    private static class ReadLeaseRenewer implements LeaseRenewer {
+
+        @Override
+        public Collection<Lease> renew(List<Lease> leases) {
+            List<Object> results;
+            try {
+                results = RedisLock.template().executePipelined((RedisCallback<Object>) conn -> {
+                    for (Lease lease : leases) {
+                        String key = lockKey(lease);
+                        conn.evalSha(READ_RENEW_SCRIPT_SHA, ReturnType.INTEGER, 2,
+                                key.getBytes(charset),
+                                (key + READERS_SUFFIX).getBytes(charset),
+                                lease.getOwner().getBytes(charset),
+                                Long.toString(lease.getLeaseMillis()).getBytes(charset));
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                if (!RedisLock.isNoScript(e)) {
+                    throw e;
+                }
+                results = new ArrayList<>(leases.size());
+                for (Lease lease : leases) {
+                    String key = lockKey(lease);
+                    results.add(eval(READ_RENEW_SCRIPT_SHA, READ_RENEW_SCRIPT, new String[]{key, key + READERS_SUFFIX},
+                            lease.getOwner(), Long.toString(lease.getLeaseMillis())));
+                }
+            }
+            List<Lease> lost = new ArrayList<>();
+            for (int i = 0, len = leases.size(); i < len; i++) {
+                if (!Long.valueOf(1L).equals(results.get(i))) {
+                    lost.add(leases.get(i));
+                }
+            }
+            return lost;
+        }
+
+        /**
+         * 读锁租约的key去掉后缀就是读写锁的key
+         */
+        private static String lockKey(Lease lease) {
+            String key = lease.getKey();
+            return key.substring(0, key.length() - READ_LEASE_SUFFIX.length());
+        }
+    }
+}
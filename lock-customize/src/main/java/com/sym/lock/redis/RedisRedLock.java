@@ -0,0 +1,310 @@
+package com.sym.lock.redis;
+
+import com.sym.lock.AbstractLock;
+import com.sym.lock.Lease;
+import com.sym.lock.LeaseRenewer;
+import com.sym.lock.LockOwner;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * 多个独立redis主节点上的多数派锁(Redlock), 单个主节点故障转移时锁不会丢失, 也不会被重复获得.
+ * <p>
+ * 加锁逻辑:
+ * 1)、每次加锁生成一个新的随机值, 同时向N个节点并行执行与{@link RedisLock}相同的加锁脚本;
+ * 2)、过半数(N/2+1)节点加锁成功后立即返回, 不等待其余节点, 耗时接近多数派中最慢的那个节点, 而不是所有节点的耗时之和;
+ * 3)、锁的有效期 = 租期 - 加锁耗时 - 时钟漂移(租期的1% + 2毫秒), 有效期小于等于0时视为加锁失败;
+ * 4)、加锁失败时异步地在所有节点上释放, 包括响应超时的节点, 避免遗留的部分锁挡住其它持有者.
+ * </p>
+ * <p>
+ * 解锁时异步地在所有节点上释放, 不等待结果. 自动续期时在所有节点上并行续期, 过半数续期成功才算续期成功.
+ * 同一个线程在同一个实例上可重入, 重入只在本地计数, 不访问redis.
+ * </p>
+ * <p>
+ * 注意:
+ * 1)、各个节点的令牌计数器相互独立, 返回的防护令牌是多数派节点令牌的最大值, 只能用于粗略的排序, 不能像单节点那样严格递增;
+ * 2)、释放消息发布在各个节点上, 只有订阅了对应节点的等待线程才会被唤醒, 其余等待线程按锁的剩余存活时间醒来重试.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/27 10:00
+ */
+@Slf4j
+public class RedisRedLock extends AbstractLock {
+
+    /**
+     * 时钟漂移系数, 以及固定的漂移补偿(毫秒)
+     */
+    private static double CLOCK_DRIFT_FACTOR = 0.01;
+    private static long CLOCK_DRIFT_MILLIS = 2;
+
+    private static AtomicInteger THREAD_INDEX = new AtomicInteger();
+
+    /**
+     * 并行访问各个节点的线程池, 整个JVM共用. 执行的是阻塞的redis调用, 不能使用{@link com.sym.lock.LeaseWatchdog}的调度线程
+     */
+    private static ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "redLock-node-" + THREAD_INDEX.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 相互独立的redis主节点
+     */
+    private final List<StringRedisTemplate> nodes;
+
+    /**
+     * 多数派的节点个数
+     */
+    private final int quorum;
+
+    private final String[] lockKeys;
+    private final String[] unlockKeys;
+
+    /**
+     * 每个持有者本次持有锁的状态, 重入只在这里计数
+     */
+    private final Map<String, Hold> holds = new ConcurrentHashMap<>();
+
+    /**
+     * 续期器, 每个实例一个, 需要用本实例的节点和持有状态续期
+     */
+    private final LeaseRenewer leaseRenewer = new RedLockLeaseRenewer();
+
+    /**
+     * 持有锁期间自动续期
+     *
+     * @param key   分布式锁key
+     * @param nodes 相互独立的redis主节点, 通常为3个或5个
+     */
+    public RedisRedLock(String key, List<StringRedisTemplate> nodes) {
+        this(key, nodes, RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param key      分布式锁key
+     * @param nodes    相互独立的redis主节点, 通常为3个或5个
+     * @param keepTime 持有锁的时间, 为{@link #RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     */
+    public RedisRedLock(String key, List<StringRedisTemplate> nodes, long keepTime, TimeUnit timeUnit) {
+        super(key, null, keepTime == RENEW_WHILE_HELD ? RENEW_WHILE_HELD : timeUnit.toMillis(keepTime));
+        if (nodes == null || nodes.isEmpty()) {
+            throw new IllegalArgumentException("nodes must not be empty");
+        }
+        this.nodes = new ArrayList<>(nodes);
+        this.quorum = nodes.size() / 2 + 1;
+        this.lockKeys = new String[]{key, key + RedisLock.FENCE_SUFFIX};
+        this.unlockKeys = new String[]{key};
+    }
+
+    @Override
+    protected long tryRequire() {
+        String owner = ownerId();
+        Hold hold = holds.get(owner);
+        if (hold != null) {
+            // 重入
+            hold.count++;
+            return hold.token;
+        }
+        // 每次加锁使用新的随机值, 上一次失败遗留的部分锁不会被当成重入
+        String value = LockOwner.newFixed();
+        long ttl = ttlMillis();
+        long drift = (long) (ttl * CLOCK_DRIFT_FACTOR) + CLOCK_DRIFT_MILLIS;
+        long start = System.nanoTime();
+        Quorum result = new Quorum();
+        List<CompletableFuture<Long>> locks = new ArrayList<>(nodes.size());
+        for (StringRedisTemplate node : nodes) {
+            CompletableFuture<Long> lock = CompletableFuture.supplyAsync(() -> RedisLock.<Long>eval(node, RedisLock.LOCK_SCRIPT_SHA,
+                    RedisLock.LOCK_SCRIPT, ReturnType.INTEGER, lockKeys, value, Long.toString(ttl)), executor);
+            lock.whenComplete(result::onLock);
+            locks.add(lock);
+        }
+        // 超过有效期的结果已经没有意义, 最多等待到有效期结束
+        boolean acquired = result.await(ttl - drift);
+        long validity = ttl - drift - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (acquired && validity > 0) {
+            long token = result.maxToken.get();
+            holds.put(owner, new Hold(value, token));
+            log.info("线程[{}]获取到多数派锁[{}], 令牌[{}], 有效期[{}ms]", Thread.currentThread().getName(), key, token, validity);
+            return token;
+        }
+        releaseAll(value, locks);
+        long ttlOfOthers = result.minTtl.get();
+        return ttlOfOthers == Long.MAX_VALUE ? NO_TOKEN : -ttlOfOthers;
+    }
+
+    @Override
+    protected boolean tryRelease() {
+        Hold hold = holds.get(ownerId());
+        if (hold == null) {
+            log.warn("线程[{}]解锁[{}]失败, 未持有锁", Thread.currentThread().getName(), key);
+            return false;
+        }
+        if (--hold.count > 0) {
+            return false;
+        }
+        holds.remove(ownerId());
+        releaseAll(hold.value, null);
+        return true;
+    }
+
+    @Override
+    protected LeaseRenewer leaseRenewer() {
+        return leaseRenewer;
+    }
+
+    /**
+     * 异步地在所有节点上释放, 不等待结果
+     *
+     * @param value 加锁时使用的随机值
+     * @param locks 各节点的加锁请求, 与{@link #nodes}一一对应; 为null表示都已完成
+     */
+    private void releaseAll(String value, List<CompletableFuture<Long>> locks) {
+        String channel = RedisLockChannel.channelOf(key);
+        for (int i = 0; i < nodes.size(); i++) {
+            StringRedisTemplate node = nodes.get(i);
+            // 多数派失败时其它节点的加锁请求可能还没执行, 释放要排在它后面, 否则这个节点上会留下一把没人释放的锁
+            CompletableFuture<?> lock = locks == null ? CompletableFuture.completedFuture(null) : locks.get(i);
+            lock.handle((r, e) -> null).thenRunAsync(() -> RedisLock.<Long>eval(node, RedisLock.UNLOCK_SCRIPT_SHA,
+                    RedisLock.UNLOCK_SCRIPT, ReturnType.INTEGER, unlockKeys, value, channel), executor)
+                    .whenComplete((r, e) -> {
+                        if (e != null) {
+                            log.warn("释放多数派锁[{}]异常, 等待它自然过期, ", key, e);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * 一次多数派加锁的结果汇总: 过半数成功、或者失败的节点多到不可能过半数时, 立即得出结论
+     */
+    private class Quorum {
+
+        private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        private final AtomicInteger succeeded = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicLong maxToken = new AtomicLong();
+
+        /**
+         * 加锁失败的节点上, 锁的最短剩余存活时间(毫秒)
+         */
+        private final LongAccumulator minTtl = new LongAccumulator(Math::min, Long.MAX_VALUE);
+
+        private void onLock(Long result, Throwable e) {
+            if (e == null && result != null && result > 0) {
+                maxToken.accumulateAndGet(result, Math::max);
+                if (succeeded.incrementAndGet() >= quorum) {
+                    done.complete(true);
+                }
+                return;
+            }
+            if (e != null) {
+                log.warn("多数派锁[{}]在某个节点上加锁异常, ", key, e);
+            } else if (result != null && result < 0) {
+                minTtl.accumulate(-result);
+            }
+            if (failed.incrementAndGet() > nodes.size() - quorum) {
+                done.complete(false);
+            }
+        }
+
+        /**
+         * 等待结论, 不响应中断: 中断标记会被保留, 由{@link AbstractLock}在挂起后检查
+         *
+         * @param timeoutMillis 最长等待时间(毫秒)
+         */
+        private boolean await(long timeoutMillis) {
+            if (timeoutMillis <= 0) {
+                return false;
+            }
+            try {
+                return done.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException | TimeoutException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 在所有节点上并行续期, 过半数节点续期成功才算续期成功
+     */
+    private class RedLockLeaseRenewer implements LeaseRenewer {
+
+        @Override
+        public Collection<Lease> renew(List<Lease> leases) {
+            List<Lease> lost = new ArrayList<>();
+            for (Lease lease : leases) {
+                Hold hold = holds.get(lease.getOwner());
+                if (hold == null || !renew(hold.value, lease.getLeaseMillis())) {
+                    lost.add(lease);
+                }
+            }
+            return lost;
+        }
+
+        private boolean renew(String value, long leaseMillis) {
+            List<CompletableFuture<Long>> futures = new ArrayList<>(nodes.size());
+            for (StringRedisTemplate node : nodes) {
+                futures.add(CompletableFuture.supplyAsync(() -> RedisLock.<Long>eval(node, RedisLock.RENEW_SCRIPT_SHA, RedisLock.RENEW_SCRIPT,
+                        ReturnType.INTEGER, unlockKeys, value, Long.toString(leaseMillis)), executor));
+            }
+            int renewed = 0;
+            for (CompletableFuture<Long> future : futures) {
+                try {
+                    if (Long.valueOf(1L).equals(future.get(leaseMillis, TimeUnit.MILLISECONDS))) {
+                        renewed++;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (ExecutionException | TimeoutException e) {
+                    log.warn("多数派锁[{}]在某个节点上续期失败, ", key, e);
+                }
+            }
+            return renewed >= quorum;
+        }
+    }
+
+    /**
+     * 一个持有者本次持有锁的状态
+     */
+    private static class Hold {
+
+        /**
+         * 加锁时使用的随机值
+         */
+        private final String value;
+        private final long token;
+
+        /**
+         * 重入次数, 只有所属线程会读写
+         */
+        private int count = 1;
+
+        private Hold(String value, long token) {
+            this.value = value;
+            this.token = token;
+        }
+    }
+}
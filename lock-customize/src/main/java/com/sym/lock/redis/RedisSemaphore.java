@@ -0,0 +1,232 @@
+package com.sym.lock.redis;
+
+import com.sym.lock.AbstractLock;
+import com.sym.lock.AbstractSemaphore;
+import com.sym.lock.Lease;
+import com.sym.lock.LeaseRenewer;
+import com.sym.util.ReflectionUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 自己实现的redis分布式信号量, 已发出的许可放在一个zset里, 由lua脚本原子维护.
+ * <p>
+ * 存储结构: zset(key)的每个成员是一个许可, 成员名为"许可凭证#序号", 一次获取多个许可就写入多个成员, 分数都是这批许可的到期时间.
+ * 到期时间取redis服务端的TIME, 不依赖各个节点的本地时钟.
+ * </p>
+ * <p>
+ * 获取脚本解释:
+ * 1)、先用 zremrangebyscore 回收已到期的许可, 持有者宕机后它的许可最多在一个租期后被回收;
+ * 2)、已发出的许可数(zcard)加上本次申请的个数不超过许可总数时, 写入本次的许可, lua脚本返回1(表示获取成功);
+ * 3)、否则取出第(缺少个数)早到期的许可, lua脚本返回它的剩余时间的相反数, 等待线程最多挂起到那时.
+ * </p>
+ * <p>
+ * 释放脚本删除这一批许可, 并往key所在的分片通道({@link RedisLockChannel})发布一条消息, 唤醒各个节点上的等待者.
+ * 脚本使用了TIME命令, 通过 redis.replicate_commands() 以命令复制的方式同步到从节点(redis 3.2+).
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/26 10:30
+ */
+@Slf4j
+public class RedisSemaphore extends AbstractSemaphore {
+
+    /**
+     * 获取许可、释放许可、续期、查询可用许可的lua脚本, 以及它们的sha1
+     */
+    static String ACQUIRE_SCRIPT;
+    static String RELEASE_SCRIPT;
+    static String RENEW_SCRIPT;
+    static String AVAILABLE_SCRIPT;
+    static String ACQUIRE_SCRIPT_SHA;
+    static String RELEASE_SCRIPT_SHA;
+    static String RENEW_SCRIPT_SHA;
+    static String AVAILABLE_SCRIPT_SHA;
+
+    private static Charset charset = StandardCharsets.UTF_8;
+
+    /**
+     * 看门狗续期器, 整个JVM共用一个
+     */
+    private static LeaseRenewer leaseRenewer = new SemaphoreLeaseRenewer();
+
+    static {
+        buildScript();
+    }
+
+    private final String[] keys;
+
+    /**
+     * 持有许可期间自动续期
+     *
+     * @param key     信号量key
+     * @param permits 许可总数
+     */
+    public RedisSemaphore(String key, int permits) {
+        this(key, permits, AbstractLock.RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param key      信号量key
+     * @param permits  许可总数, 集群内所有节点必须一致
+     * @param keepTime 持有许可的时间, 为{@link AbstractLock#RENEW_WHILE_HELD}时自动续期
+     * @param timeUnit 时间单位
+     */
+    public RedisSemaphore(String key, int permits, long keepTime, TimeUnit timeUnit) {
+        super(ReflectionUtil.hashTag(key), permits, keepTime == AbstractLock.RENEW_WHILE_HELD ? AbstractLock.RENEW_WHILE_HELD : timeUnit.toMillis(keepTime));
+        this.keys = new String[]{this.key};
+    }
+
+    @Override
+    protected long tryRequire(String permitId, int permits) {
+        long result = eval(ACQUIRE_SCRIPT_SHA, ACQUIRE_SCRIPT, permitId,
+                Integer.toString(permits), Integer.toString(this.permits), Long.toString(ttlMillis()));
+        if (result > 0) {
+            log.info("线程[{}]获取到信号量[{}]的{}个许可, 凭证[{}]", Thread.currentThread().getName(), key, permits, permitId);
+        }
+        return result;
+    }
+
+    @Override
+    protected boolean tryRelease(String permitId) {
+        long result = eval(RELEASE_SCRIPT_SHA, RELEASE_SCRIPT, permitId,
+                Integer.toString(permitsOf(permitId)), RedisLockChannel.channelOf(key));
+        if (result <= 0) {
+            log.warn("释放信号量[{}]的许可[{}]失败, 许可已过期被回收或者已经释放", key, permitId);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int availablePermits() {
+        return (int) eval(AVAILABLE_SCRIPT_SHA, AVAILABLE_SCRIPT, Integer.toString(permits));
+    }
+
+    @Override
+    protected LeaseRenewer leaseRenewer() {
+        return leaseRenewer;
+    }
+
+    private long eval(String sha, String script, String... args) {
+        Long result = RedisLock.eval(sha, script, ReturnType.INTEGER, keys, args);
+        return result == null ? 0L : result;
+    }
+
+    /**
+     * 构建信号量的脚本
+     */
+    private static void buildScript() {
+        // 回收已到期的许可, 获取脚本和查询脚本共用:
+        // 已发出的许可 -- KEYS[1]
+        String purge = "redis.replicate_commands() "
+                + "local t = redis.call('time') "
+                + "local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000) "
+                + "redis.call('zremrangebyscore',KEYS[1],'-inf',now) ";
+
+        // 获取脚本:
+        // 已发出的许可 -- KEYS[1]
+        // 许可凭证 -- ARGV[1]
+        // 本次申请的许可个数 -- ARGV[2]
+        // 许可总数 -- ARGV[3]
+        // 超时时间(毫秒) -- ARGV[4]
+        StringBuilder sb = new StringBuilder(purge);
+        sb.append("local n = tonumber(ARGV[2]) ")
+                .append("local lack = redis.call('zcard',KEYS[1]) + n - tonumber(ARGV[3]) ")
+                .append("if(lack > 0) then ")
+                .append("local s = redis.call('zrange',KEYS[1],lack - 1,lack - 1,'withscores') ")
+                .append("if(#s < 2) then return 0 end ")
+                .append("return -math.max(tonumber(s[2]) - now,1) end ")
+                .append("local expire = now + tonumber(ARGV[4]) ")
+                .append("for i = 1, n do redis.call('zadd',KEYS[1],expire,ARGV[1] .. '#' .. i) end ")
+                .append("if(redis.call('pttl',KEYS[1]) < tonumber(ARGV[4])) then redis.call('pexpire',KEYS[1],ARGV[4]) end ")
+                .append("return 1");
+        ACQUIRE_SCRIPT = sb.toString();
+
+        // 释放脚本:
+        // 已发出的许可 -- KEYS[1]
+        // 许可凭证 -- ARGV[1]
+        // 许可个数 -- ARGV[2]
+        // 释放通道 -- ARGV[3]
+        sb = new StringBuilder();
+        sb.append("local removed = 0 ")
+                .append("for i = 1, tonumber(ARGV[2]) do removed = removed + redis.call('zrem',KEYS[1],ARGV[1] .. '#' .. i) end ")
+                .append("if(removed > 0) then redis.call('publish',ARGV[3],KEYS[1]) end ")
+                .append("return removed");
+        RELEASE_SCRIPT = sb.toString();
+
+        // 续期脚本:
+        // 已发出的许可 -- KEYS[1]
+        // 许可凭证 -- ARGV[1]
+        // 许可个数 -- ARGV[2]
+        // 租期(毫秒) -- ARGV[3]
+        sb = new StringBuilder();
+        sb.append("redis.replicate_commands() ")
+                .append("if(not redis.call('zscore',KEYS[1],ARGV[1] .. '#1')) then return 0 end ")
+                .append("local t = redis.call('time') ")
+                .append("local expire = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000) + tonumber(ARGV[3]) ")
+                .append("for i = 1, tonumber(ARGV[2]) do redis.call('zadd',KEYS[1],'xx',expire,ARGV[1] .. '#' .. i) end ")
+                .append("if(redis.call('pttl',KEYS[1]) < tonumber(ARGV[3])) then redis.call('pexpire',KEYS[1],ARGV[3]) end ")
+                .append("return 1");
+        RENEW_SCRIPT = sb.toString();
+
+        // 查询可用许可脚本:
+        // 已发出的许可 -- KEYS[1]
+        // 许可总数 -- ARGV[1]
+        sb = new StringBuilder(purge);
+        sb.append("return math.max(tonumber(ARGV[1]) - redis.call('zcard',KEYS[1]),0)");
+        AVAILABLE_SCRIPT = sb.toString();
+
+        ACQUIRE_SCRIPT_SHA = RedisLock.sha1Hex(ACQUIRE_SCRIPT);
+        RELEASE_SCRIPT_SHA = RedisLock.sha1Hex(RELEASE_SCRIPT);
+        RENEW_SCRIPT_SHA = RedisLock.sha1Hex(RENEW_SCRIPT);
+        AVAILABLE_SCRIPT_SHA = RedisLock.sha1Hex(AVAILABLE_SCRIPT);
+    }
+
+    /**
+     * 信号量续期器, 租约的持有者就是许可凭证, 一批租约在同一个pipeline里续期. 脚本缓存丢失时逐个用eval续期, 顺便缓存脚本
+     */
+    private static class SemaphoreLeaseRenewer implements LeaseRenewer {
+
+        @Override
+        public Collection<Lease> renew(List<Lease> leases) {
+            List<Object> results;
+            try {
+                results = RedisLock.template().executePipelined((RedisCallback<Object>) conn -> {
+                    for (Lease lease : leases) {
+                        conn.evalSha(RENEW_SCRIPT_SHA, ReturnType.INTEGER, 1,
+                                lease.getKey().getBytes(charset),
+                                lease.getOwner().getBytes(charset),
+                                Integer.toString(permitsOf(lease.getOwner())).getBytes(charset),
+                                Long.toString(lease.getLeaseMillis()).getBytes(charset));
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                if (!RedisLock.isNoScript(e)) {
+                    throw e;
+                }
+                results = new ArrayList<>(leases.size());
+                for (Lease lease : leases) {
+                    results.add(RedisLock.eval(RENEW_SCRIPT_SHA, RENEW_SCRIPT, ReturnType.INTEGER, new String[]{lease.getKey()},
+                            lease.getOwner(), Integer.toString(permitsOf(lease.getOwner())), Long.toString(lease.getLeaseMillis())));
+                }
+            }
+            List<Lease> lost = new ArrayList<>();
+            for (int i = 0, len = leases.size(); i < len; i++) {
+                if (!Long.valueOf(1L).equals(results.get(i))) {
+                    lost.add(leases.get(i));
+                }
+            }
+            return lost;
+        }
+    }
+}
@@ -1,22 +1,51 @@
 package com.sym.lock.zookeeper;
 
 import com.sym.lock.AbstractLock;
+import com.sym.util.SpringContextUtil;
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.CuratorFrameworkFactory;
-import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
 import org.apache.zookeeper.CreateMode;
-import org.springframework.core.env.Environment;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
 
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.UUID;
-
-import static com.sym.constant.LockConstants.ZOOKEEPER_HOST_PROPERTIES;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
- * 自己实现的分布式锁, 利用zookeeper创建唯一路径的ZNode节点的特性.
+ * 自己实现的分布式锁, 利用zookeeper临时顺序节点的特性.
+ * <p>
+ * 加锁逻辑:
+ * 1)、在锁路径下创建一个临时顺序节点(EPHEMERAL_SEQUENTIAL), 同一次加锁的多次重试复用这个节点, 保证排队顺序;
+ * 2)、如果自己的节点序号最小, 表示获取到锁, 以节点的czxid作为防护令牌;
+ * 3)、否则只监听排在自己前面的那一个节点, 它被删除时watcher直接唤醒当前线程. 一次释放只唤醒一个等待者, 不会惊群.
+ * </p>
+ * <p>
+ * 解锁逻辑: 重入计数减到0时删除自己的节点. 超时、中断放弃加锁时也会删除节点, 避免阻塞后面的等待者.
+ * 会话断开后临时节点会被自动删除, 不需要续期.
+ * </p>
+ * <p>
+ * 同一个锁实例可以被多个线程使用, 每个线程单独排队, 同一个线程在同一个key上可重入.
+ * </p>
+ * <p>
+ * zookeeper客户端的同步调用在synchronized里wait等待响应, 会钉住虚拟线程的载体线程. 这里的zk操作都改用curator的后台调用,
+ * 调用线程在{@link CompletableFuture}上等待响应, 虚拟线程可以被卸载. 等待时间不超过会话超时时间.
+ * </p>
  *
  * @author shenyanming
  * Created on 2020/8/14 10:48
@@ -24,73 +53,334 @@ import static com.sym.constant.LockConstants.ZOOKEEPER_HOST_PROPERTIES;
 @Slf4j
 public class ZookeeperLock extends AbstractLock {
 
-    private static CuratorFramework zkClient;
-    private static Environment env;
     private static String LOCK_PREFIX = "/_lock_/";
+    private static String NODE_PREFIX = "lock-";
     private static Charset charset = StandardCharsets.UTF_8;
 
-    static {
+    /**
+     * 顺序节点名称末尾的序号长度
+     */
+    private static int SEQUENCE_LENGTH = 10;
+
+    /**
+     * 后台调用最长的等待时间(毫秒), 与{@link com.sym.config.LockConfig}配置的会话超时时间一致:
+     * 超过它还没有响应, 会话多半已经过期, 临时节点也已被删除, 再等下去没有意义
+     */
+    static long AWAIT_MILLIS = 60 * 1000;
+
+    private final CuratorFramework zkClient;
+
+    /**
+     * 排队节点的名称前缀
+     */
+    private final String nodePrefix;
+
+    /**
+     * 每个线程在每个key上的排队、持有状态. 状态不放在锁实例里, 同一个key的多个锁实例共享,
+     * 锁实例被{@link ZookeeperLockFactory}的缓存回收后重新创建也不会丢失
+     */
+    private final static Map<Holder, LockData> LOCK_DATA = new ConcurrentHashMap<>();
+
+    /**
+     * 使用spring容器中共享的{@link CuratorFramework}
+     */
+    public ZookeeperLock(String key) {
+        this(key, SpringContextUtil.getBean(CuratorFramework.class));
+    }
+
+    /**
+     * @param key      分布式锁key
+     * @param zkClient 已启动的zookeeper客户端, 所有锁共用一个
+     */
+    public ZookeeperLock(String key, CuratorFramework zkClient) {
+        this(key, zkClient, NODE_PREFIX);
+    }
+
+    /**
+     * @param nodePrefix 排队节点的名称前缀, 同一个锁路径下不同前缀的节点按序号统一排队, 见{@link ZookeeperReadWriteLock}
+     */
+    protected ZookeeperLock(String key, CuratorFramework zkClient, String nodePrefix) {
+        super(LOCK_PREFIX + key, null);
+        this.zkClient = zkClient;
+        this.nodePrefix = nodePrefix;
+    }
+
+    /**
+     * 以节点的czxid作为防护令牌, 它是zookeeper集群全局递增的事务id, 后获得锁的节点一定创建得更晚
+     */
+    @Override
+    protected long tryRequire() {
+        Holder current = currentHolder(nodePrefix);
+        LockData data = LOCK_DATA.get(current);
+        if (data != null && data.count > 0) {
+            // 重入
+            data.count++;
+            return data.token;
+        }
         try {
-            init();
+            if (data == null) {
+                byte[] owner = ownerId().getBytes(charset);
+                String path = awaitCreate(zkClient, callback -> zkClient.create().creatingParentContainersIfNeeded()
+                        .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                        .inBackground(callback)
+                        .forPath(key + "/" + nodePrefix, owner));
+                data = new LockData(path, current.thread);
+                LOCK_DATA.put(current, data);
+            }
+            for (; ; ) {
+                List<String> children = sortedChildren();
+                int index = children.indexOf(data.nodeName);
+                if (index < 0) {
+                    // 会话过期, 节点已被删除, 下次重新排队
+                    log.warn("锁节点[{}]已不存在, 重新排队", data.path);
+                    forget(current, data);
+                    return NO_TOKEN;
+                }
+                String blocker = nodeToWatch(children, index);
+                if (blocker == null) {
+                    String path = data.path;
+                    Stat stat;
+                    try {
+                        stat = await(callback -> zkClient.checkExists().inBackground(callback).forPath(path)).getStat();
+                    } catch (KeeperException.NoNodeException e) {
+                        forget(current, data);
+                        return NO_TOKEN;
+                    }
+                    data.count = 1;
+                    data.token = stat.getCzxid();
+                    log.info("获取分布式锁, key:{}, node:{}", key, data.path);
+                    return data.token;
+                }
+                // 只监听挡住自己的那一个节点, 它被删除时唤醒当前线程; 同一个watcher对象重复注册只会触发一次
+                String previous = key + "/" + blocker;
+                Watcher watcher = data.watcher;
+                try {
+                    await(callback -> zkClient.getData().usingWatcher(watcher).inBackground(callback).forPath(previous));
+                    return NO_TOKEN;
+                } catch (KeeperException.NoNodeException e) {
+                    // 前一个节点刚好被删除, 立即重新检查
+                }
+            }
         } catch (Exception e) {
-            log.error("初始化Zookeeper失败, ", e);
-            System.exit(1);
+            log.warn("加锁异常, key:{}, ", key, e);
+            // 不确定节点和监听的状态(比如等待超时), 删除自己的节点, 下次重新排队
+            if (data != null && data.count <= 0) {
+                forget(current, data);
+                deleteNode(data.path);
+            }
+            return NO_TOKEN;
+        }
+    }
+
+    @Override
+    protected boolean tryRelease() {
+        Holder current = currentHolder(nodePrefix);
+        LockData data = LOCK_DATA.get(current);
+        if (data == null || data.count <= 0) {
+            log.warn("线程[{}]解锁[{}]失败, 未持有锁", current.thread.getName(), key);
+            if (data != null) {
+                // 还在排队, 放弃排队
+                forget(current, data);
+                deleteNode(data.path);
+            }
+            return false;
+        }
+        if (--data.count > 0) {
+            return false;
+        }
+        forget(current, data);
+        return deleteNode(data.path);
+    }
+
+    @Override
+    protected void cancelRequire() {
+        Holder current = currentHolder(nodePrefix);
+        LockData data = LOCK_DATA.get(current);
+        if (data != null && data.count <= 0) {
+            forget(current, data);
+            deleteNode(data.path);
         }
     }
 
     /**
-     * 初始化Zookeeper客户端, 原生的zk客户端不好用, 使用Curator替代
+     * 不再排队、持有: 删除状态, 之后前一个节点的watcher再触发也不会唤醒这个线程
      */
-    private static void init() {
-        // 获取zookeeper地址
-        String zkHost = env.getProperty(ZOOKEEPER_HOST_PROPERTIES, "localhost:2181");
-        // zk客户端与zk服务端的会话超时, 单位毫秒
-        int sessionTimeOut = 60 * 1000;
-        // zk客户端与zk服务端的连接超时, 单位毫秒
-        int connectionTimeOut = 30 * 1000;
-        // 重试策略
-        RetryPolicy retryPolicy = new ExponentialBackoffRetry(1000, 3);
-        // 获取建造器
-        CuratorFrameworkFactory.Builder builder = CuratorFrameworkFactory.builder();
-        builder.connectString(zkHost)
-                .sessionTimeoutMs(sessionTimeOut)
-                .connectionTimeoutMs(connectionTimeOut)
-                .retryPolicy(retryPolicy);
-        CuratorFramework framework = builder.build();
-        framework.start();
-        zkClient = framework;
+    private static void forget(Holder current, LockData data) {
+        data.active = false;
+        LOCK_DATA.remove(current, data);
     }
 
-    public ZookeeperLock(String key) {
-        super(LOCK_PREFIX + key, UUID.randomUUID().toString());
+    /**
+     * 需要等待它被删除的节点, 返回null表示已经获得锁. 默认互斥: 排在第一个时获得锁, 否则等待前一个节点
+     *
+     * @param children 按序号排好的所有排队节点
+     * @param index    自己的节点在其中的位置
+     */
+    protected String nodeToWatch(List<String> children, int index) {
+        return index == 0 ? null : children.get(index - 1);
     }
 
-    @Override
-    protected boolean tryRequire() {
+    /**
+     * 当前线程在这个锁路径下, 以指定前缀的节点持有着的锁节点名称
+     *
+     * @param prefix 节点名称前缀
+     * @return 未持有时为null
+     */
+    protected String heldNode(String prefix) {
+        LockData data = LOCK_DATA.get(currentHolder(prefix));
+        return data != null && data.count > 0 ? data.nodeName : null;
+    }
+
+    /**
+     * 当前线程在这个锁路径下, 以指定前缀的节点排队的状态标识
+     */
+    private Holder currentHolder(String prefix) {
+        return new Holder(key + "/" + prefix, Thread.currentThread());
+    }
+
+    /**
+     * 锁路径下所有排队节点, 按序号从小到大排列, 不同前缀的节点一起排队
+     */
+    private List<String> sortedChildren() throws Exception {
+        return await(callback -> zkClient.getChildren().inBackground(callback).forPath(key)).getChildren().stream()
+                .filter(name -> name.length() > SEQUENCE_LENGTH)
+                .sorted(Comparator.comparing(name -> name.substring(name.length() - SEQUENCE_LENGTH)))
+                .collect(Collectors.toList());
+    }
+
+    private boolean deleteNode(String path) {
         try {
-            String result = zkClient.create().creatingParentContainersIfNeeded()
-                    .withMode(CreateMode.EPHEMERAL)
-                    .forPath(key, threadId.getBytes(charset));
-            log.info("获取分布式锁, key:{}, info:{}", key, result);
+            // guaranteed: 网络异常时curator会在后台一直重试删除, 直到成功或者会话结束
+            await(callback -> zkClient.delete().guaranteed().inBackground(callback).forPath(path));
+            return true;
+        } catch (KeeperException.NoNodeException e) {
             return true;
         } catch (Exception e) {
+            log.warn("删除锁节点[{}]异常, ", path, e);
             return false;
         }
     }
 
-    @Override
-    protected boolean tryRelease() {
+    /**
+     * 发起一次后台调用并等待结果, 结果码不为OK时抛出对应的{@link KeeperException}, 超过{@link #AWAIT_MILLIS}没有响应时
+     * 抛出{@link KeeperException.OperationTimeoutException}.
+     * 等待不响应中断, 避免节点已创建而调用方不知道, 遗留的节点会一直挡住后面的等待者; 中断由{@link AbstractLock}在挂起后检查
+     */
+    static CuratorEvent await(BackgroundCall call) throws Exception {
+        return await(call, null);
+    }
+
+    /**
+     * 发起一次创建节点的后台调用并等待结果, 返回创建的节点路径.
+     * 等待超时后节点才创建出来时, 在后台删除它, 避免没人知道的节点一直挡住后面的等待者
+     */
+    static String awaitCreate(CuratorFramework zkClient, BackgroundCall call) throws Exception {
+        return await(call, event -> {
+            if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+                return;
+            }
+            try {
+                zkClient.delete().guaranteed().inBackground().forPath(event.getName());
+            } catch (Exception e) {
+                log.warn("删除超时后才创建的节点[{}]异常, ", event.getName(), e);
+            }
+        }).getName();
+    }
+
+    /**
+     * @param abandoned 等待超时后结果才返回时的回调, 可以为null
+     */
+    private static CuratorEvent await(BackgroundCall call, Consumer<CuratorEvent> abandoned) throws Exception {
+        CompletableFuture<CuratorEvent> future = new CompletableFuture<>();
+        call.call((client, event) -> future.complete(event));
+        CuratorEvent event = join(future);
+        if (event == null) {
+            if (abandoned != null) {
+                future.thenAccept(abandoned);
+            }
+            throw new KeeperException.OperationTimeoutException();
+        }
+        KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+        if (code != KeeperException.Code.OK) {
+            throw KeeperException.create(code, event.getPath());
+        }
+        return event;
+    }
+
+    /**
+     * 最多等待{@link #AWAIT_MILLIS}, 不响应中断, 等待期间被中断时在返回前恢复中断标记
+     *
+     * @return 超时返回null
+     */
+    private static CuratorEvent join(CompletableFuture<CuratorEvent> future) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AWAIT_MILLIS);
+        boolean interrupted = false;
         try {
-            byte[] data = zkClient.getData().forPath(key);
-            if (data != null && threadId.equals(new String(data, charset))) {
-                zkClient.delete().forPath(key);
-                return true;
+            for (; ; ) {
+                try {
+                    return future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (TimeoutException e) {
+                    return null;
+                } catch (ExecutionException e) {
+                    // future只会正常完成
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
-        } catch (Exception e) {
-            log.warn("异常, ", e);
         }
-        return false;
     }
 
+    /**
+     * 使用给定回调发起的一次curator后台调用
+     */
+    @FunctionalInterface
+    interface BackgroundCall {
+        void call(BackgroundCallback callback) throws Exception;
+    }
+
+    /**
+     * key+线程
+     */
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static class Holder {
+        private final String key;
+        private final Thread thread;
+    }
+
+    /**
+     * 一个线程在锁上的状态: 自己的顺序节点、重入次数、防护令牌
+     */
+    private static class LockData {
+        private final String path;
+        private final String nodeName;
+        private final Watcher watcher;
+
+        /**
+         * 状态被删除后置为false. zookeeper的watcher无法注销, 加锁失败或者放弃后, 之前注册在前一个节点上的watcher仍会触发,
+         * 这时不能再唤醒线程, 它可能正挂起在别的地方
+         */
+        private volatile boolean active = true;
 
+        /**
+         * 重入次数, 0表示还在排队. 只有所属线程会读写
+         */
+        private int count;
+        private long token;
+
+        private LockData(String path, Thread thread) {
+            this.path = path;
+            this.nodeName = path.substring(path.lastIndexOf('/') + 1);
+            this.watcher = event -> {
+                if (active) {
+                    LockSupport.unpark(thread);
+                }
+            };
+        }
+    }
 }
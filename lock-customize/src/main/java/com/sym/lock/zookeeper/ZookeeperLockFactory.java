@@ -0,0 +1,57 @@
+package com.sym.lock.zookeeper;
+
+import com.sym.enums.LockStrategy;
+import com.sym.lock.AbstractLock;
+import com.sym.lock.AbstractLockFactory;
+import com.sym.lock.ILock;
+import com.sym.lock.IReadWriteLock;
+import com.sym.lock.ISemaphore;
+import org.apache.curator.framework.CuratorFramework;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * zookeeper分布式锁工厂. 临时节点随会话存在, 租期会被忽略
+ *
+ * @author shenyanming
+ * Created on 2020/8/21 10:45
+ */
+public class ZookeeperLockFactory extends AbstractLockFactory {
+
+    private final CuratorFramework zkClient;
+
+    public ZookeeperLockFactory(CuratorFramework zkClient) {
+        this.zkClient = zkClient;
+    }
+
+    /**
+     * 租期对zookeeper锁没有意义, 同一个key只缓存一个实例
+     */
+    @Override
+    public ILock getLock(String key, long keepTime, TimeUnit timeUnit) {
+        return super.getLock(key, AbstractLock.RENEW_WHILE_HELD, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public IReadWriteLock getReadWriteLock(String key, long keepTime, TimeUnit timeUnit) {
+        return new ZookeeperReadWriteLock(key, zkClient);
+    }
+
+    /**
+     * 许可随会话存在, 租期会被忽略
+     */
+    @Override
+    public ISemaphore getSemaphore(String key, int permits, long keepTime, TimeUnit timeUnit) {
+        return new ZookeeperSemaphore(key, permits, zkClient);
+    }
+
+    @Override
+    protected ILock createLock(String key, long leaseMillis) {
+        return new ZookeeperLock(key, zkClient);
+    }
+
+    @Override
+    public LockStrategy strategy() {
+        return LockStrategy.ZOOKEEPER;
+    }
+}
@@ -0,0 +1,84 @@
+package com.sym.lock.zookeeper;
+
+import com.sym.lock.ILock;
+import com.sym.lock.IReadWriteLock;
+import com.sym.util.SpringContextUtil;
+import org.apache.curator.framework.CuratorFramework;
+
+import java.util.List;
+
+/**
+ * 自己实现的zookeeper读写锁, 读锁、写锁在同一个锁路径下创建不同前缀的临时顺序节点, 按序号统一排队.
+ * <p>
+ * 1)、写锁: 与{@link ZookeeperLock}相同, 排在第一个时获得锁, 否则监听前一个节点;
+ * 2)、读锁: 前面没有写锁节点时获得锁, 否则只监听离自己最近的那个写锁节点. 当前线程自己持有的写锁节点不算, 这样持有写锁时可以获取读锁,
+ * 再释放写锁, 完成降级.
+ * </p>
+ * <p>
+ * 读锁、写锁各自可重入, 状态同样按线程保存. 写锁节点之后排队的读锁会在写锁释放时一起被唤醒.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/25 11:20
+ */
+public class ZookeeperReadWriteLock implements IReadWriteLock {
+
+    private static String READ_PREFIX = "read-";
+    private static String WRITE_PREFIX = "write-";
+
+    private final ILock readLock;
+    private final ILock writeLock;
+
+    /**
+     * 使用spring容器中共享的{@link CuratorFramework}
+     */
+    public ZookeeperReadWriteLock(String key) {
+        this(key, SpringContextUtil.getBean(CuratorFramework.class));
+    }
+
+    /**
+     * @param key      分布式锁key
+     * @param zkClient 已启动的zookeeper客户端, 所有锁共用一个
+     */
+    public ZookeeperReadWriteLock(String key, CuratorFramework zkClient) {
+        this.readLock = new ReadLock(key, zkClient);
+        this.writeLock = new ZookeeperLock(key, zkClient, WRITE_PREFIX);
+    }
+
+    @Override
+    public ILock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public ILock writeLock() {
+        return writeLock;
+    }
+
+    /**
+     * 读锁, 只等待排在前面的写锁
+     */
+    private static class ReadLock extends ZookeeperLock {
+
+        private ReadLock(String key, CuratorFramework zkClient) {
+            super(key, zkClient, READ_PREFIX);
+        }
+
+        @Override
+        protected String nodeToWatch(List<String> children, int index) {
+            String ownWrite = heldNode(WRITE_PREFIX);
+            for (int i = index - 1; i >= 0; i--) {
+                String name = children.get(i);
+                if (name.startsWith(WRITE_PREFIX) && !name.equals(ownWrite)) {
+                    return name;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected boolean isShared() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.sym.lock.zookeeper;
+
+import com.sym.lock.AbstractLock;
+import com.sym.lock.AbstractSemaphore;
+import com.sym.util.SpringContextUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+/**
+ * 自己实现的zookeeper分布式信号量, 利用临时顺序节点排队.
+ * <p>
+ * 获取逻辑:
+ * 1)、在信号量路径下创建一个临时顺序节点, 节点名称带上本次申请的许可个数, 同一次获取的多次重试复用这个节点;
+ * 2)、排在自己前面(含自己)的所有节点申请的许可个数之和不超过许可总数时, 表示获取成功. 严格按排队顺序发放, 申请多个许可的节点不会饿死;
+ * 3)、否则监听信号量路径的子节点变化, 有节点被删除时watcher直接唤醒当前线程.
+ * </p>
+ * <p>
+ * 释放、超时、中断放弃获取时删除自己的节点. 持有者宕机后会话过期, 临时节点被自动删除, 许可随之回收, 不需要续期.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/26 11:10
+ */
+@Slf4j
+public class ZookeeperSemaphore extends AbstractSemaphore {
+
+    private static String SEMAPHORE_PREFIX = "/_semaphore_/";
+    private static String NODE_PREFIX = "permit-";
+    private static Charset charset = StandardCharsets.UTF_8;
+
+    /**
+     * 顺序节点名称末尾的序号长度
+     */
+    private static int SEQUENCE_LENGTH = 10;
+
+    /**
+     * 每个许可凭证对应的排队节点. 许可凭证可以在线程之间传递, 状态不放在信号量实例里
+     */
+    private final static Map<String, PermitData> PERMIT_DATA = new ConcurrentHashMap<>();
+
+    private final CuratorFramework zkClient;
+
+    /**
+     * 信号量的节点路径
+     */
+    private final String path;
+
+    /**
+     * 使用spring容器中共享的{@link CuratorFramework}
+     */
+    public ZookeeperSemaphore(String key, int permits) {
+        this(key, permits, SpringContextUtil.getBean(CuratorFramework.class));
+    }
+
+    /**
+     * @param key      信号量key
+     * @param permits  许可总数, 集群内所有节点必须一致
+     * @param zkClient 已启动的zookeeper客户端
+     */
+    public ZookeeperSemaphore(String key, int permits, CuratorFramework zkClient) {
+        super(key, permits, AbstractLock.RENEW_WHILE_HELD);
+        this.zkClient = zkClient;
+        this.path = SEMAPHORE_PREFIX + key;
+    }
+
+    @Override
+    protected long tryRequire(String permitId, int permits) {
+        PermitData data = PERMIT_DATA.get(permitId);
+        try {
+            if (data == null) {
+                String nodePath = ZookeeperLock.awaitCreate(zkClient, callback -> zkClient.create().creatingParentContainersIfNeeded()
+                        .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                        .inBackground(callback)
+                        .forPath(path + "/" + NODE_PREFIX + permits + "-", permitId.getBytes(charset)));
+                data = new PermitData(nodePath, Thread.currentThread());
+                PERMIT_DATA.put(permitId, data);
+            }
+            // 子节点变化时唤醒当前线程, 获取成功时多注册的一次watcher只会触发一次空唤醒
+            Watcher watcher = data.watcher;
+            List<String> children = sortedChildren(
+                    ZookeeperLock.await(callback -> zkClient.getChildren().usingWatcher(watcher).inBackground(callback).forPath(path)).getChildren());
+            int index = children.indexOf(data.nodeName);
+            if (index < 0) {
+                // 会话过期, 节点已被删除, 下次重新排队
+                log.warn("信号量节点[{}]已不存在, 重新排队", data.path);
+                PERMIT_DATA.remove(permitId);
+                return 0L;
+            }
+            int used = 0;
+            for (int i = 0; i <= index; i++) {
+                used += permitsOfNode(children.get(i));
+            }
+            if (used > this.permits) {
+                return 0L;
+            }
+            log.info("获取信号量[{}]的{}个许可, node:{}", key, permits, data.path);
+            return 1L;
+        } catch (Exception e) {
+            log.warn("获取信号量异常, key:{}, ", key, e);
+            return 0L;
+        }
+    }
+
+    @Override
+    protected boolean tryRelease(String permitId) {
+        PermitData data = PERMIT_DATA.remove(permitId);
+        if (data == null) {
+            log.warn("释放信号量[{}]的许可[{}]失败, 许可不存在或者已经释放", key, permitId);
+            return false;
+        }
+        return deleteNode(data.path);
+    }
+
+    @Override
+    protected void cancelRequire(String permitId) {
+        PermitData data = PERMIT_DATA.remove(permitId);
+        if (data != null) {
+            deleteNode(data.path);
+        }
+    }
+
+    /**
+     * 排在前面、已经获得许可的节点占用的许可之外, 剩下的就是可用许可
+     */
+    @Override
+    public int availablePermits() {
+        try {
+            List<String> children = sortedChildren(
+                    ZookeeperLock.await(callback -> zkClient.getChildren().inBackground(callback).forPath(path)).getChildren());
+            int used = 0;
+            for (String child : children) {
+                int n = permitsOfNode(child);
+                if (used + n > permits) {
+                    break;
+                }
+                used += n;
+            }
+            return permits - used;
+        } catch (KeeperException.NoNodeException e) {
+            return permits;
+        } catch (Exception e) {
+            throw new IllegalStateException("查询信号量[" + key + "]异常", e);
+        }
+    }
+
+    /**
+     * 所有排队节点, 按序号从小到大排列
+     */
+    private static List<String> sortedChildren(List<String> children) {
+        return children.stream()
+                .filter(name -> name.startsWith(NODE_PREFIX) && name.length() > SEQUENCE_LENGTH)
+                .sorted(Comparator.comparing(name -> name.substring(name.length() - SEQUENCE_LENGTH)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 从节点名称"permit-许可个数-序号"中解析出许可个数
+     */
+    private static int permitsOfNode(String name) {
+        return Integer.parseInt(name.substring(NODE_PREFIX.length(), name.length() - SEQUENCE_LENGTH - 1));
+    }
+
+    private boolean deleteNode(String nodePath) {
+        try {
+            // guaranteed: 网络异常时curator会在后台一直重试删除, 直到成功或者会话结束
+            ZookeeperLock.await(callback -> zkClient.delete().guaranteed().inBackground(callback).forPath(nodePath));
+            return true;
+        } catch (KeeperException.NoNodeException e) {
+            return true;
+        } catch (Exception e) {
+            log.warn("删除信号量节点[{}]异常, ", nodePath, e);
+            return false;
+        }
+    }
+
+    /**
+     * 一次获取的排队节点
+     */
+    private static class PermitData {
+        private final String path;
+        private final String nodeName;
+        private final Watcher watcher;
+
+        private PermitData(String path, Thread thread) {
+            this.path = path;
+            this.nodeName = path.substring(path.lastIndexOf('/') + 1);
+            this.watcher = event -> LockSupport.unpark(thread);
+        }
+    }
+}
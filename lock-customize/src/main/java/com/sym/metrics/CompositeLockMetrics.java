@@ -0,0 +1,53 @@
+package com.sym.metrics;
+
+import java.util.List;
+
+/**
+ * 多个{@link LockMetrics}的组合, 按顺序回调, 见{@link LockMetrics#of(List)}
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 16:00
+ */
+class CompositeLockMetrics implements LockMetrics {
+
+    private final LockMetrics[] delegates;
+
+    CompositeLockMetrics(List<LockMetrics> delegates) {
+        this.delegates = delegates.toArray(new LockMetrics[0]);
+    }
+
+    @Override
+    public void acquired(String key, long waitNanos, int attempts, boolean acquired) {
+        for (LockMetrics delegate : delegates) {
+            delegate.acquired(key, waitNanos, attempts, acquired);
+        }
+    }
+
+    @Override
+    public void released(String key, long holdNanos) {
+        for (LockMetrics delegate : delegates) {
+            delegate.released(key, holdNanos);
+        }
+    }
+
+    @Override
+    public void signalled(String key, boolean remote, boolean woken) {
+        for (LockMetrics delegate : delegates) {
+            delegate.signalled(key, remote, woken);
+        }
+    }
+
+    @Override
+    public void backendCall(String backend, String operation, long nanos, boolean success) {
+        for (LockMetrics delegate : delegates) {
+            delegate.backendCall(backend, operation, nanos, success);
+        }
+    }
+
+    @Override
+    public void scriptReloaded(String sha) {
+        for (LockMetrics delegate : delegates) {
+            delegate.scriptReloaded(sha);
+        }
+    }
+}
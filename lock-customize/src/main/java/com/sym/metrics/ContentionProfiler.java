@@ -0,0 +1,93 @@
+package com.sym.metrics;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 锁竞争分析, 找出竞争最激烈的key和key前缀, 用来定位需要拆分的热点key.
+ * <p>
+ * 每次加锁抢锁失败的次数作为竞争次数, 分别按完整的key和key前缀({@link LockMetrics#prefixOf(String)})记入{@link SpaceSaving}.
+ * key的基数可能非常大(比如按订单号加锁), 统计只占用固定的内存, 不会随key的数量增长; 没有竞争的加锁不记录.
+ * 结果通过actuator端点查看, 见{@link LockContentionEndpoint}.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 16:30
+ */
+public class ContentionProfiler implements LockMetrics {
+
+    /**
+     * 默认最多同时统计的key个数、key前缀个数
+     */
+    public final static int DEFAULT_KEY_CAPACITY = 1024;
+    public final static int DEFAULT_PREFIX_CAPACITY = 128;
+
+    private final SpaceSaving keys;
+    private final SpaceSaving prefixes;
+
+    public ContentionProfiler() {
+        this(DEFAULT_KEY_CAPACITY, DEFAULT_PREFIX_CAPACITY);
+    }
+
+    /**
+     * @param keyCapacity    最多同时统计的key个数, 竞争次数超过总数的 1/keyCapacity 的key一定能被找出来
+     * @param prefixCapacity 最多同时统计的key前缀个数
+     */
+    public ContentionProfiler(int keyCapacity, int prefixCapacity) {
+        this.keys = new SpaceSaving(keyCapacity);
+        this.prefixes = new SpaceSaving(prefixCapacity);
+    }
+
+    @Override
+    public void acquired(String key, long waitNanos, int attempts, boolean acquired) {
+        int contended = acquired ? attempts - 1 : attempts;
+        if (contended <= 0) {
+            return;
+        }
+        keys.add(key, contended);
+        prefixes.add(LockMetrics.prefixOf(key), contended);
+    }
+
+    /**
+     * 竞争最激烈的前n个key和key前缀
+     */
+    public Report report(int n) {
+        List<SpaceSaving.Item> topKeys = keys.top(n);
+        List<SpaceSaving.Item> topPrefixes = prefixes.top(n);
+        return new Report(keys.total(), keys.capacity(), topKeys, topPrefixes);
+    }
+
+    /**
+     * 清空统计, 重新开始
+     */
+    public void reset() {
+        keys.clear();
+        prefixes.clear();
+    }
+
+    /**
+     * 竞争分析结果
+     */
+    @Data
+    @AllArgsConstructor
+    public static class Report {
+        /**
+         * 开始统计以来的总竞争次数
+         */
+        private long totalContention;
+        /**
+         * 最多同时统计的key个数
+         */
+        private int keyCapacity;
+        /**
+         * 竞争最激烈的key, 按竞争次数从大到小排列
+         */
+        private List<SpaceSaving.Item> keys;
+        /**
+         * 竞争最激烈的key前缀, 按竞争次数从大到小排列
+         */
+        private List<SpaceSaving.Item> prefixes;
+    }
+}
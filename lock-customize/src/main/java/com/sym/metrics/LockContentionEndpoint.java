@@ -0,0 +1,41 @@
+package com.sym.metrics;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+
+/**
+ * 锁竞争分析的actuator端点.
+ * <p>
+ * GET /actuator/lockcontention?top=20 查看竞争最激烈的key和key前缀, DELETE 清空统计.
+ * 需要在 management.endpoints.web.exposure.include 中加上 lockcontention 才能通过http访问
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 16:50
+ */
+@Endpoint(id = "lockcontention")
+public class LockContentionEndpoint {
+
+    /**
+     * 默认返回的条数
+     */
+    private final static int DEFAULT_TOP = 20;
+
+    private final ContentionProfiler profiler;
+
+    public LockContentionEndpoint(ContentionProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    @ReadOperation
+    public ContentionProfiler.Report contention(@Nullable Integer top) {
+        return profiler.report(top == null || top <= 0 ? DEFAULT_TOP : top);
+    }
+
+    @DeleteOperation
+    public void reset() {
+        profiler.reset();
+    }
+}
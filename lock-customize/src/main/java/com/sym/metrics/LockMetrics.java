@@ -0,0 +1,107 @@
+package com.sym.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分布式锁的监控扩展点, 在锁的生命周期里被回调, 可以接入指标、链路追踪等.
+ * <p>
+ * 回调发生在加锁、解锁的线程里, 实现方必须足够轻量: 不能阻塞, 不能访问网络, 也不能抛出异常.
+ * 所有方法默认什么都不做, 实现方按需覆写. 通过{@link LockMetricsHolder#set(LockMetrics)}安装, spring环境下由
+ * {@link com.sym.config.LockConfig}把容器中的所有实现组合后安装, 见{@link MicrometerLockMetrics}、{@link ContentionProfiler}.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 14:00
+ */
+public interface LockMetrics {
+
+    /**
+     * 不做任何记录的默认实现
+     */
+    LockMetrics NOOP = new LockMetrics() {
+    };
+
+    /**
+     * 一次加锁结束, 包括阻塞加锁、限时加锁和tryLock()
+     *
+     * @param key       分布式锁key
+     * @param waitNanos 从开始加锁到结束的耗时(纳秒)
+     * @param attempts  访问中间件抢锁的次数, 大于1说明发生了竞争
+     * @param acquired  是否加锁成功, 超时、中断时为false
+     */
+    default void acquired(String key, long waitNanos, int attempts, boolean acquired) {
+    }
+
+    /**
+     * 锁被完全释放(重入次数减到0)
+     *
+     * @param key       分布式锁key
+     * @param holdNanos 从加锁成功到释放的持有时长(纳秒)
+     */
+    default void released(String key, long holdNanos) {
+    }
+
+    /**
+     * 收到一次锁释放信号
+     *
+     * @param key    分布式锁key
+     * @param remote true-来自其它节点的释放消息, false-本地解锁
+     * @param woken  是否唤醒了本地的等待线程
+     */
+    default void signalled(String key, boolean remote, boolean woken) {
+    }
+
+    /**
+     * 访问一次中间件
+     *
+     * @param backend   锁或者续期器的实现类名, 比如RedisLock、ZookeeperLock
+     * @param operation 操作: acquire、release、renew
+     * @param nanos     往返耗时(纳秒)
+     * @param success   是否正常返回, 抛出异常时为false
+     */
+    default void backendCall(String backend, String operation, long nanos, boolean success) {
+    }
+
+    /**
+     * redis上报NOSCRIPT, 改用eval重新加载了一次脚本
+     *
+     * @param sha 脚本的sha1
+     */
+    default void scriptReloaded(String sha) {
+    }
+
+    /**
+     * key的前缀, 用来按类别汇总: 去掉zookeeper锁的路径和hash tag的'{', 取第一个':'或'}'之前的部分, 比如"order:1001"取"order"
+     *
+     * @param key 分布式锁key
+     */
+    static String prefixOf(String key) {
+        int start = 0;
+        if (key.startsWith("/")) {
+            start = key.lastIndexOf('/') + 1;
+        }
+        if (start < key.length() && key.charAt(start) == '{') {
+            start++;
+        }
+        int end = start;
+        while (end < key.length() && key.charAt(end) != ':' && key.charAt(end) != '}') {
+            end++;
+        }
+        return start == 0 && end == key.length() ? key : key.substring(start, end);
+    }
+
+    /**
+     * 把多个实现组合成一个, 按顺序回调
+     *
+     * @param metrics 各个实现, 其中的{@link #NOOP}会被忽略
+     */
+    static LockMetrics of(List<LockMetrics> metrics) {
+        List<LockMetrics> effective = new ArrayList<>(metrics);
+        effective.removeIf(m -> m == null || m == NOOP);
+        if (effective.isEmpty()) {
+            return NOOP;
+        }
+        return effective.size() == 1 ? effective.get(0) : new CompositeLockMetrics(effective);
+    }
+}
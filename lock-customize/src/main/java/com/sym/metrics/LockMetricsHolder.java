@@ -0,0 +1,36 @@
+package com.sym.metrics;
+
+/**
+ * 全局的{@link LockMetrics}, 默认为{@link LockMetrics#NOOP}.
+ * 未安装实现时, 加锁路径只多一次volatile读, 持有时长等需要额外记录状态的指标也不会记录
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 14:10
+ */
+public class LockMetricsHolder {
+
+    private static volatile LockMetrics metrics = LockMetrics.NOOP;
+
+    private LockMetricsHolder() {
+    }
+
+    public static LockMetrics get() {
+        return metrics;
+    }
+
+    /**
+     * 安装监控实现
+     *
+     * @param lockMetrics 为null时恢复为{@link LockMetrics#NOOP}
+     */
+    public static void set(LockMetrics lockMetrics) {
+        metrics = lockMetrics == null ? LockMetrics.NOOP : lockMetrics;
+    }
+
+    /**
+     * 是否安装了监控实现
+     */
+    public static boolean isEnabled() {
+        return metrics != LockMetrics.NOOP;
+    }
+}
@@ -0,0 +1,233 @@
+package com.sym.metrics;
+
+import com.sym.bus.MessageBus;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 基于micrometer的{@link LockMetrics}实现.
+ * <p>
+ * 指标:
+ * 1)、lock.acquire: 加锁耗时的直方图, 按key前缀、结果(acquired、failed)区分; lock.acquire.attempts: 每次加锁抢锁的次数;
+ * 2)、lock.contention: 抢锁失败的次数, 按key前缀区分, 反映哪类key竞争激烈;
+ * 3)、lock.hold: 持有时长的直方图, 按key前缀区分;
+ * 4)、lock.release.signals: 锁释放信号, 按来源(local、remote)和是否唤醒了等待线程区分, 二者之比即每次释放的唤醒数;
+ * 5)、lock.backend: 访问中间件的往返耗时, 按实现类、操作、结果区分; lock.redis.script.reloads: NOSCRIPT重新加载脚本的次数;
+ * 6)、lock.bus.*: 消息总线的积压消息数、已处理消息数、溢出数和分发耗时, 拉取指标时才读取{@link MessageBus#stats()}.
+ * </p>
+ * <p>
+ * 按key前缀而不是完整的key打标签, 避免标签基数随key无限增长. 前缀默认见{@link LockMetrics#prefixOf(String)},
+ * 不同前缀超过上限后都归到{@link #OTHER_PREFIX}. 每个前缀的计量器只创建一次, 之后记录时不再分配对象.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 14:20
+ */
+public class MicrometerLockMetrics implements LockMetrics {
+
+    /**
+     * 默认最多区分的key前缀个数
+     */
+    public final static int DEFAULT_MAX_PREFIXES = 100;
+
+    /**
+     * 超出上限的key前缀统一使用的标签值
+     */
+    public final static String OTHER_PREFIX = "other";
+
+    private final MeterRegistry registry;
+    private final Function<String, String> prefixResolver;
+    private final int maxPrefixes;
+
+    /**
+     * key前缀 -> 计量器
+     */
+    private final Map<String, PrefixMeters> prefixMeters = new ConcurrentHashMap<>();
+
+    /**
+     * 实现类 -> 操作 -> 计量器
+     */
+    private final Map<String, Map<String, BackendMeters>> backendMeters = new ConcurrentHashMap<>();
+
+    private final Map<String, Counter> scriptReloads = new ConcurrentHashMap<>();
+
+    public MicrometerLockMetrics(MeterRegistry registry) {
+        this(registry, DEFAULT_MAX_PREFIXES);
+    }
+
+    public MicrometerLockMetrics(MeterRegistry registry, int maxPrefixes) {
+        this(registry, LockMetrics::prefixOf, maxPrefixes);
+    }
+
+    /**
+     * @param registry       指标注册中心
+     * @param prefixResolver 从key中提取前缀, 返回值作为标签, 基数必须有限
+     * @param maxPrefixes    最多区分的key前缀个数
+     */
+    public MicrometerLockMetrics(MeterRegistry registry, Function<String, String> prefixResolver, int maxPrefixes) {
+        this.registry = registry;
+        this.prefixResolver = prefixResolver;
+        this.maxPrefixes = maxPrefixes;
+        bindMessageBus();
+    }
+
+    @Override
+    public void acquired(String key, long waitNanos, int attempts, boolean acquired) {
+        PrefixMeters meters = meters(key);
+        (acquired ? meters.acquired : meters.failed).record(waitNanos, TimeUnit.NANOSECONDS);
+        meters.attempts.record(attempts);
+        int contended = acquired ? attempts - 1 : attempts;
+        if (contended > 0) {
+            meters.contention.increment(contended);
+        }
+    }
+
+    @Override
+    public void released(String key, long holdNanos) {
+        meters(key).hold.record(holdNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void signalled(String key, boolean remote, boolean woken) {
+        PrefixMeters meters = meters(key);
+        if (remote) {
+            (woken ? meters.remoteWoken : meters.remoteIdle).increment();
+        } else {
+            (woken ? meters.localWoken : meters.localIdle).increment();
+        }
+    }
+
+    @Override
+    public void backendCall(String backend, String operation, long nanos, boolean success) {
+        Map<String, BackendMeters> operations = backendMeters.get(backend);
+        if (operations == null) {
+            operations = backendMeters.computeIfAbsent(backend, k -> new ConcurrentHashMap<>());
+        }
+        BackendMeters meters = operations.get(operation);
+        if (meters == null) {
+            meters = operations.computeIfAbsent(operation, k -> new BackendMeters(backend, k));
+        }
+        (success ? meters.success : meters.error).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void scriptReloaded(String sha) {
+        scriptReloads.computeIfAbsent(sha, k -> Counter.builder("lock.redis.script.reloads")
+                .description("redis上报NOSCRIPT后重新加载脚本的次数")
+                .tag("script", k)
+                .register(registry)).increment();
+    }
+
+    private PrefixMeters meters(String key) {
+        String prefix = prefixResolver.apply(key);
+        PrefixMeters meters = prefixMeters.get(prefix);
+        if (meters != null) {
+            return meters;
+        }
+        if (prefixMeters.size() >= maxPrefixes) {
+            prefix = OTHER_PREFIX;
+        }
+        return prefixMeters.computeIfAbsent(prefix, PrefixMeters::new);
+    }
+
+    private void bindMessageBus() {
+        Gauge.builder("lock.bus.queue.depth", MessageBus.class, c -> MessageBus.stats().getQueueDepth())
+                .description("消息总线所有分片队列中积压的消息数")
+                .register(registry);
+        FunctionCounter.builder("lock.bus.dispatched", MessageBus.class, c -> MessageBus.stats().getDispatched())
+                .description("消息总线已处理的消息数")
+                .register(registry);
+        FunctionCounter.builder("lock.bus.overflowed", MessageBus.class, c -> MessageBus.stats().getOverflowed())
+                .description("分片队列满时由发布线程直接处理的消息数")
+                .register(registry);
+        FunctionTimer.builder("lock.bus.latency", MessageBus.class, c -> MessageBus.stats().getDispatched(),
+                c -> MessageBus.stats().getTotalLatencyNanos(), TimeUnit.NANOSECONDS)
+                .description("消息从发布到处理完成的耗时")
+                .register(registry);
+    }
+
+    /**
+     * 一个key前缀的计量器
+     */
+    private class PrefixMeters {
+
+        private final Timer acquired;
+        private final Timer failed;
+        private final DistributionSummary attempts;
+        private final Counter contention;
+        private final Timer hold;
+        private final Counter localWoken;
+        private final Counter localIdle;
+        private final Counter remoteWoken;
+        private final Counter remoteIdle;
+
+        private PrefixMeters(String prefix) {
+            this.acquired = acquireTimer(prefix, "acquired");
+            this.failed = acquireTimer(prefix, "failed");
+            this.attempts = DistributionSummary.builder("lock.acquire.attempts")
+                    .description("每次加锁访问中间件抢锁的次数")
+                    .tag("prefix", prefix)
+                    .register(registry);
+            this.contention = Counter.builder("lock.contention")
+                    .description("抢锁失败的次数")
+                    .tag("prefix", prefix)
+                    .register(registry);
+            this.hold = Timer.builder("lock.hold")
+                    .description("锁的持有时长")
+                    .tag("prefix", prefix)
+                    .publishPercentileHistogram()
+                    .register(registry);
+            this.localWoken = signalCounter(prefix, "local", true);
+            this.localIdle = signalCounter(prefix, "local", false);
+            this.remoteWoken = signalCounter(prefix, "remote", true);
+            this.remoteIdle = signalCounter(prefix, "remote", false);
+        }
+
+        private Timer acquireTimer(String prefix, String result) {
+            return Timer.builder("lock.acquire")
+                    .description("加锁耗时, 包括排队等待")
+                    .tags("prefix", prefix, "result", result)
+                    .publishPercentileHistogram()
+                    .register(registry);
+        }
+
+        private Counter signalCounter(String prefix, String source, boolean woken) {
+            return Counter.builder("lock.release.signals")
+                    .description("锁释放信号, woken表示是否唤醒了本地等待线程")
+                    .tags("prefix", prefix, "source", source, "woken", String.valueOf(woken))
+                    .register(registry);
+        }
+    }
+
+    /**
+     * 一个实现类的一种操作的计量器
+     */
+    private class BackendMeters {
+
+        private final Timer success;
+        private final Timer error;
+
+        private BackendMeters(String backend, String operation) {
+            this.success = backendTimer(backend, operation, "success");
+            this.error = backendTimer(backend, operation, "error");
+        }
+
+        private Timer backendTimer(String backend, String operation, String outcome) {
+            return Timer.builder("lock.backend")
+                    .description("访问中间件的往返耗时")
+                    .tags("backend", backend, "operation", operation, "outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(registry);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.sym.metrics;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Space-Saving算法的高频项统计, 在固定的内存里找出出现次数最多的前N项.
+ * <p>
+ * 最多同时统计capacity项, 计数按最小堆组织: 已统计的项直接累加; 统计满了以后, 新来的项替换掉计数最小的那一项,
+ * 继承它的计数并把它记为误差. 因此每一项的计数只会偏大, 偏大的部分不超过记录的误差, 计数减去误差是真实次数的下界;
+ * 真实次数超过 总数/capacity 的项一定在统计里.
+ * </p>
+ * <p>
+ * 每次记录都是O(log capacity), 用{@link ReentrantLock}互斥, 不使用synchronized, 不会钉住虚拟线程的载体线程.
+ * </p>
+ *
+ * @author shenyanming
+ * Created on 2020/8/28 16:10
+ */
+public class SpaceSaving {
+
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 最小堆: 第i项的内容、计数、误差, 堆顶为计数最小的项
+     */
+    private final String[] items;
+    private final long[] counts;
+    private final long[] errors;
+
+    /**
+     * 项 -> 在堆中的位置
+     */
+    private final Map<String, Integer> positions;
+
+    private int size;
+
+    /**
+     * 记录过的总次数
+     */
+    private long total;
+
+    /**
+     * @param capacity 最多同时统计的项数
+     */
+    public SpaceSaving(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.items = new String[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.positions = new HashMap<>(capacity * 4 / 3 + 1);
+    }
+
+    /**
+     * 记录一项出现的次数
+     *
+     * @param item   项
+     * @param weight 次数
+     */
+    public void add(String item, long weight) {
+        lock.lock();
+        try {
+            total += weight;
+            Integer position = positions.get(item);
+            if (position != null) {
+                counts[position] += weight;
+                siftDown(position);
+                return;
+            }
+            if (size < capacity) {
+                int index = size++;
+                set(index, item, weight, 0L);
+                siftUp(index);
+                return;
+            }
+            // 替换计数最小的一项, 它的计数算作新项的误差
+            long min = counts[0];
+            positions.remove(items[0]);
+            set(0, item, min + weight, min);
+            siftDown(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 计数最多的前n项, 按计数从大到小排列
+     */
+    public List<Item> top(int n) {
+        List<Item> result;
+        lock.lock();
+        try {
+            result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(new Item(items[i], counts[i], errors[i]));
+            }
+        } finally {
+            lock.unlock();
+        }
+        result.sort((a, b) -> Long.compare(b.count, a.count));
+        return result.size() > n ? new ArrayList<>(result.subList(0, n)) : result;
+    }
+
+    /**
+     * 记录过的总次数
+     */
+    public long total() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 清空统计
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (int i = 0; i < size; i++) {
+                items[i] = null;
+            }
+            positions.clear();
+            size = 0;
+            total = 0L;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void set(int index, String item, long count, long error) {
+        items[index] = item;
+        counts[index] = count;
+        errors[index] = error;
+        positions.put(item, index);
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (counts[parent] <= counts[index]) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        for (; ; ) {
+            int smallest = index;
+            int left = (index << 1) + 1;
+            int right = left + 1;
+            if (left < size && counts[left] < counts[smallest]) {
+                smallest = left;
+            }
+            if (right < size && counts[right] < counts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String item = items[i];
+        long count = counts[i];
+        long error = errors[i];
+        items[i] = items[j];
+        counts[i] = counts[j];
+        errors[i] = errors[j];
+        items[j] = item;
+        counts[j] = count;
+        errors[j] = error;
+        positions.put(items[i], i);
+        positions.put(items[j], j);
+    }
+
+    /**
+     * 统计结果中的一项
+     */
+    @Data
+    @AllArgsConstructor
+    public static class Item {
+        private String item;
+        /**
+         * 计数, 只会偏大
+         */
+        private long count;
+        /**
+         * 计数可能偏大的上限, count - error 是真实次数的下界
+         */
+        private long error;
+    }
+}
@@ -10,7 +10,9 @@ import java.lang.reflect.Parameter;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 反射工具类
@@ -20,10 +22,20 @@ import java.util.Objects;
  */
 public class ReflectionUtil {
 
-    private static Comparator<Pair<LockPrefixName, Object>> comparator =
+    private static Comparator<Pair<LockPrefixName, Integer>> comparator =
             (o1, o2) -> Integer.compare(o2.getLeft().position(), o1.getLeft().position());
     private static String delimiter = ":";
 
+    /**
+     * 每个方法预先解析好的key拼接计划, 注解和参数顺序只在第一次调用时读取
+     */
+    private static Map<Method, KeyPlan> keyPlans = new ConcurrentHashMap<>();
+
+    /**
+     * 是否给key加上hash tag, redis集群模式下开启
+     */
+    private static volatile boolean hashTag;
+
     /**
      * 通过{@link Method}获取到分布式锁的key
      *
@@ -31,48 +43,141 @@ public class ReflectionUtil {
      * @return 分布式锁key
      */
     public static String getLockKey(Method method, Object[] args) {
+        return getKeyPlan(method).build(args);
+    }
+
+    /**
+     * 开启或关闭hash tag. redis集群模式下, 锁key和它的令牌计数器等附属key需要在同一个槽位, 才能在同一个lua脚本里操作
+     *
+     * @param enabled 是否开启
+     */
+    public static void setHashTag(boolean enabled) {
+        hashTag = enabled;
+    }
+
+    /**
+     * 开启hash tag时, 把整个key用"{}"包起来作为hash tag, 附属key(如"{key}:fence")因此与它落在同一个槽位.
+     * key已经带有hash tag(比如"{order}:1")时原样返回, 使用方可以借此把多个key放到同一个槽位, 重复调用也不会再包一层
+     *
+     * @param key 分布式锁key
+     * @return 带hash tag的key
+     */
+    public static String hashTag(String key) {
+        if (!hashTag || hasHashTag(key)) {
+            return key;
+        }
+        return "{" + key + "}";
+    }
+
+    /**
+     * 与redis的槽位计算规则一致: 第一个"{"之后的第一个"}", 两者之间不为空时才是hash tag
+     */
+    private static boolean hasHashTag(String key) {
+        int start = key.indexOf('{');
+        if (start < 0) {
+            return false;
+        }
+        int end = key.indexOf('}', start + 1);
+        return end > start + 1;
+    }
+
+    /**
+     * 获取方法的key拼接计划, 不存在时解析并缓存
+     *
+     * @param method 标注了{@link DistributedLock}的方法
+     * @return key拼接计划
+     */
+    public static KeyPlan getKeyPlan(Method method) {
         if (Objects.isNull(method)) {
             throw new IllegalArgumentException("method is null");
         }
+        KeyPlan plan = keyPlans.get(method);
+        if (plan == null) {
+            plan = keyPlans.computeIfAbsent(method, ReflectionUtil::compile);
+        }
+        return plan;
+    }
+
+    /**
+     * 解析方法上的注解, 生成key拼接计划
+     */
+    private static KeyPlan compile(Method method) {
         DistributedLock distributedLock = method.getAnnotation(DistributedLock.class);
         if (Objects.isNull(distributedLock)) {
             throw new ReflectionException(LockEnum.METHOD_WITHOUT_ANNOTATION_LOCK);
         }
-        // 获取key前缀
-        String prefix = distributedLock.prefix();
-        // 获取key后缀
-        String suffix = getKeySuffixFromParameters(method.getParameters(), args);
-        return prefix.concat(suffix);
+        // 收集标注了@LockPrefixName的参数下标, 按position从大到小排序(稳定排序, 相同时按参数声明顺序)
+        Parameter[] parameters = method.getParameters();
+        List<Pair<LockPrefixName, Integer>> list = new ArrayList<>(parameters.length);
+        for (int i = 0; i < parameters.length; i++) {
+            LockPrefixName lockPrefixName = parameters[i].getAnnotation(LockPrefixName.class);
+            if (lockPrefixName != null) {
+                list.add(Pair.of(lockPrefixName, i));
+            }
+        }
+        list.sort(comparator);
+        int[] indexes = new int[list.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = list.get(i).getRight();
+        }
+        return new KeyPlan(distributedLock.prefix(), indexes);
     }
 
-
     /**
-     * 从方法参数中获取分布式锁的后缀
-     *
-     * @param parameters 参数集合
-     * @return key后缀
+     * key拼接计划: 前缀 + 按顺序取出的参数值, 参数值之间用":"分隔
      */
-    private static String getKeySuffixFromParameters(Parameter[] parameters, Object[] args) {
-        if (Objects.isNull(parameters) || parameters.length == 0) {
-            return "";
+    public static class KeyPlan {
+
+        private final String prefix;
+
+        /**
+         * 参与拼接的参数下标, 已按拼接顺序排列
+         */
+        private final int[] indexes;
+
+        private KeyPlan(String prefix, int[] indexes) {
+            this.prefix = prefix;
+            this.indexes = indexes;
+        }
+
+        /**
+         * 拼接分布式锁key, 开启hash tag时再加上hash tag, 见{@link #hashTag(String)}
+         *
+         * @param args 方法实参
+         * @return 分布式锁key
+         */
+        public String build(Object[] args) {
+            String key = concat(args);
+            return hashTag ? hashTag(key) : key;
         }
-        List<Pair<LockPrefixName, Object>> list = new ArrayList<>(parameters.length);
-        int index = 0;
-        for (Parameter parameter : parameters) {
-            LockPrefixName lockPrefixName = parameter.getAnnotation(LockPrefixName.class);
-            if (lockPrefixName == null) {
-                continue;
+
+        /**
+         * 拼接前缀和参数值. 参数值为String时不会额外分配内存, 最终只分配一次精确容量的缓冲区
+         */
+        private String concat(Object[] args) {
+            int[] idx = this.indexes;
+            switch (idx.length) {
+                case 0:
+                    return prefix;
+                case 1:
+                    return prefix.concat(String.valueOf(args[idx[0]]));
+                default:
+                    break;
+            }
+            String[] values = new String[idx.length];
+            int length = prefix.length() + idx.length - 1;
+            for (int i = 0; i < idx.length; i++) {
+                values[i] = String.valueOf(args[idx[i]]);
+                length += values[i].length();
             }
-            list.add(Pair.of(lockPrefixName, args[index++]));
+            StringBuilder sb = new StringBuilder(length).append(prefix).append(values[0]);
+            for (int i = 1; i < values.length; i++) {
+                sb.append(delimiter).append(values[i]);
+            }
+            return sb.toString();
         }
-        // 执行排序
-        list.sort(comparator);
-        StringBuilder sb = new StringBuilder();
-        list.stream().map(Pair::getRight).forEach(o -> sb.append(o).append(delimiter));
-        return sb.substring(0, sb.length() - 1);
     }
 
-
     private static class Pair<L, R> {
         L left;
         R right;
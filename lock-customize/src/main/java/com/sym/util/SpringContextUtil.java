@@ -3,15 +3,13 @@ package com.sym.util;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
-import org.springframework.stereotype.Component;
 
 /**
- * spring上下文工具类
+ * spring上下文工具类, 由{@link com.sym.config.LockConfig}导入
  *
  * @author shenyanming
  * Created on 2020/8/13 17:14
  */
-@Component
 public class SpringContextUtil implements ApplicationContextAware {
 
     private static ApplicationContext applicationContext = null;
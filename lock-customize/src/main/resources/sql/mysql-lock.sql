@@ -0,0 +1,11 @@
+-- mysql分布式锁的租约表, 一个key一行, 行创建后不再删除, 令牌在同一行上单调递增
+CREATE TABLE IF NOT EXISTS `distributed_lock`
+(
+    `lock_key`   VARCHAR(255) NOT NULL COMMENT '分布式锁key',
+    `owner`      VARCHAR(64)  NULL COMMENT '持有者标识, 未被持有时为NULL',
+    `hold_count` INT          NOT NULL DEFAULT 0 COMMENT '重入次数',
+    `token`      BIGINT       NOT NULL DEFAULT 0 COMMENT '防护令牌, 每次易主加1',
+    `expire_at`  BIGINT       NOT NULL DEFAULT 0 COMMENT '租约到期时间点(毫秒时间戳)',
+    PRIMARY KEY (`lock_key`)
+) ENGINE = InnoDB
+  DEFAULT CHARSET = utf8mb4 COMMENT ='分布式锁租约表';
@@ -0,0 +1,190 @@
+package com.sym.lock;
+
+import com.sym.holder.LocalLock;
+import com.sym.holder.LocalLockHolder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link CoalescingLock}: 唯一的排队线程没拿到本地锁就离开时, 分布式锁不能被遗留
+ *
+ * @author shenyanming
+ * Created on 2020/8/29 10:00
+ */
+public class CoalescingLockTest {
+
+    private final static int ROUNDS = 500;
+
+    private final static long JITTER_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final static AtomicInteger KEY_INDEX = new AtomicInteger();
+
+    @Test
+    public void queuedWaiterTimesOut() throws Exception {
+        for (int i = 0; i < ROUNDS; i++) {
+            String key = "coalescing-timeout-" + KEY_INDEX.incrementAndGet();
+            FakeRemoteLock remote = new FakeRemoteLock();
+            CoalescingLock lock = new CoalescingLock(key, k -> remote);
+            LocalLock localLock = LocalLockHolder.INSTANCE.get(key, k -> remote);
+            lock.lock();
+
+            long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(2);
+            AtomicLong deadline = new AtomicLong();
+            Thread waiter = new Thread(() -> {
+                try {
+                    deadline.set(System.nanoTime() + timeoutNanos);
+                    if (lock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                        lock.unlock();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            waiter.start();
+            awaitQueued(localLock, waiter);
+            // 持有者恰好在等待者超时的前后解锁, 两者竞争
+            long unlockAt = deadline.get() + ThreadLocalRandom.current().nextLong(-JITTER_NANOS, JITTER_NANOS);
+            while (System.nanoTime() - unlockAt < 0L) {
+                Thread.yield();
+            }
+            lock.unlock();
+            waiter.join();
+
+            Assert.assertFalse("round " + i + ": remote lock left held with no local owner", remote.held.get());
+            Assert.assertFalse(localLock.isRemoteHeld());
+        }
+    }
+
+    @Test
+    public void queuedWaiterInterrupted() throws Exception {
+        for (int i = 0; i < ROUNDS; i++) {
+            String key = "coalescing-interrupt-" + KEY_INDEX.incrementAndGet();
+            FakeRemoteLock remote = new FakeRemoteLock();
+            CoalescingLock lock = new CoalescingLock(key, k -> remote);
+            LocalLock localLock = LocalLockHolder.INSTANCE.get(key, k -> remote);
+            lock.lock();
+
+            Thread waiter = new Thread(() -> {
+                try {
+                    lock.lock();
+                    lock.unlock();
+                } catch (InterruptedException e) {
+                    // 期望之一: 没拿到本地锁就离开
+                }
+            });
+            waiter.start();
+            awaitQueued(localLock, waiter);
+            CountDownLatch start = new CountDownLatch(1);
+            Thread interrupter = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                waiter.interrupt();
+            });
+            interrupter.start();
+            // 中断与解锁同时发生
+            start.countDown();
+            lock.unlock();
+            interrupter.join();
+            waiter.join();
+
+            Assert.assertFalse("round " + i + ": remote lock left held with no local owner", remote.held.get());
+            Assert.assertFalse(localLock.isRemoteHeld());
+        }
+    }
+
+    @Test
+    public void remoteIsHandedOffToQueuedWaiter() throws Exception {
+        String key = "coalescing-handoff-" + KEY_INDEX.incrementAndGet();
+        FakeRemoteLock remote = new FakeRemoteLock();
+        CoalescingLock lock = new CoalescingLock(key, k -> remote);
+        LocalLock localLock = LocalLockHolder.INSTANCE.get(key, k -> remote);
+        long token = lock.lockWithToken();
+
+        AtomicLong inherited = new AtomicLong();
+        Thread waiter = new Thread(() -> {
+            try {
+                inherited.set(lock.lockWithToken());
+                lock.unlock();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        awaitQueued(localLock, waiter);
+        lock.unlock();
+        waiter.join();
+
+        Assert.assertEquals(token, inherited.get());
+        Assert.assertEquals(1, remote.acquisitions.get());
+        Assert.assertFalse(remote.held.get());
+    }
+
+    /**
+     * 等待线程进入本地锁的队列, 它已经结束(比如超时)时不再等待
+     */
+    private static void awaitQueued(LocalLock localLock, Thread waiter) throws InterruptedException {
+        while (!localLock.getLock().hasQueuedThreads() && waiter.isAlive()) {
+            TimeUnit.MICROSECONDS.sleep(50);
+        }
+    }
+
+    /**
+     * 内存中的分布式锁, 只记录是否被持有
+     */
+    private static class FakeRemoteLock implements ILock {
+
+        private final AtomicBoolean held = new AtomicBoolean();
+        private final AtomicInteger acquisitions = new AtomicInteger();
+        private final AtomicLong tokens = new AtomicLong();
+
+        @Override
+        public void lock() {
+            lockWithToken();
+        }
+
+        @Override
+        public boolean tryLock() {
+            return tryLockWithToken(0L, TimeUnit.NANOSECONDS) != NO_TOKEN;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit timeUnit) {
+            return tryLock();
+        }
+
+        @Override
+        public long lockWithToken() {
+            long token = tryLockWithToken(0L, TimeUnit.NANOSECONDS);
+            if (token == NO_TOKEN) {
+                throw new IllegalStateException("remote lock is already held by this JVM");
+            }
+            return token;
+        }
+
+        @Override
+        public long tryLockWithToken(long time, TimeUnit timeUnit) {
+            if (!held.compareAndSet(false, true)) {
+                return NO_TOKEN;
+            }
+            acquisitions.incrementAndGet();
+            return tokens.incrementAndGet();
+        }
+
+        @Override
+        public void unlock() {
+            if (!held.compareAndSet(true, false)) {
+                throw new IllegalStateException("remote lock is not held");
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.sym.lock.mysql;
+
+import com.sym.lock.Lease;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link MysqlLockRepository}的默认模式, 跑在MySQL兼容模式的H2内存库上, 建表语句即 sql/mysql-lock.sql
+ *
+ * @author shenyanming
+ * Created on 2020/8/29 11:00
+ */
+public class MysqlLockRepositoryTest {
+
+    private final static long TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private final static long POLL_MILLIS = 100;
+
+    private final static AtomicInteger DB_INDEX = new AtomicInteger();
+
+    private JdbcTemplate jdbcTemplate;
+    private MysqlLockRepository repository;
+
+    @Before
+    public void setUp() {
+        DataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:lock" + DB_INDEX.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+        new ResourceDatabasePopulator(new ClassPathResource("sql/mysql-lock.sql")).execute(dataSource);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        repository = newRepository(jdbcTemplate);
+    }
+
+    @Test
+    public void reentryKeepsToken() {
+        long token = repository.acquire("order:1", "a", TTL_MILLIS);
+        Assert.assertEquals(1L, token);
+        Assert.assertEquals(token, repository.acquire("order:1", "a", TTL_MILLIS));
+        Assert.assertEquals(2, holdCount("order:1"));
+
+        long other = repository.acquire("order:1", "b", TTL_MILLIS);
+        Assert.assertTrue(other < 0);
+        Assert.assertTrue(-other <= POLL_MILLIS);
+        Assert.assertEquals("a", owner("order:1"));
+    }
+
+    @Test
+    public void takeoverAfterExpiryIncrementsToken() throws InterruptedException {
+        Assert.assertEquals(1L, repository.acquire("order:1", "a", 1L));
+        TimeUnit.MILLISECONDS.sleep(10);
+
+        Assert.assertEquals(2L, repository.acquire("order:1", "b", TTL_MILLIS));
+        Assert.assertEquals("b", owner("order:1"));
+        Assert.assertEquals(1, holdCount("order:1"));
+        // 过期的持有者不能再重入
+        Assert.assertTrue(repository.acquire("order:1", "a", TTL_MILLIS) < 0);
+    }
+
+    @Test
+    public void releaseReportsRemainingHolds() {
+        repository.acquire("order:1", "a", TTL_MILLIS);
+        repository.acquire("order:1", "a", TTL_MILLIS);
+
+        Assert.assertEquals(-1, repository.release("order:1", "b"));
+        Assert.assertEquals(0, repository.release("order:1", "a"));
+        Assert.assertEquals(1, repository.release("order:1", "a"));
+        Assert.assertEquals(-1, repository.release("order:1", "a"));
+        Assert.assertNull(owner("order:1"));
+
+        // 释放后行还在, 下一个持有者的令牌继续递增
+        Assert.assertEquals(2L, repository.acquire("order:1", "b", TTL_MILLIS));
+    }
+
+    @Test
+    public void concurrentFirstInsertFails() {
+        // 读到行不存在之后、插入之前, 另一个节点抢先插入了这一行
+        JdbcTemplate racing = new JdbcTemplate(jdbcTemplate.getDataSource()) {
+            @Override
+            public <T> List<T> queryForList(String sql, Class<T> elementType, Object... args) {
+                List<T> result = super.queryForList(sql, elementType, args);
+                if (sql.startsWith("SELECT expire_at") && result.isEmpty()) {
+                    newRepository(jdbcTemplate).acquire((String) args[0], "b", TTL_MILLIS);
+                }
+                return result;
+            }
+        };
+
+        long token = newRepository(racing).acquire("order:1", "a", TTL_MILLIS);
+        Assert.assertTrue(token < 0);
+        Assert.assertTrue(-token <= POLL_MILLIS);
+        Assert.assertEquals("b", owner("order:1"));
+    }
+
+    @Test
+    public void renewReportsLostLeases() throws InterruptedException {
+        repository.acquire("order:1", "a", TTL_MILLIS);
+        repository.acquire("order:2", "a", 1L);
+        repository.acquire("order:3", "a", TTL_MILLIS);
+        TimeUnit.MILLISECONDS.sleep(10);
+        // order:2 过期后被b接手, order:3 已经释放
+        repository.acquire("order:2", "b", TTL_MILLIS);
+        repository.release("order:3", "a");
+
+        Lease kept = new Lease("order:1", "a", TTL_MILLIS, repository);
+        Lease takenOver = new Lease("order:2", "a", TTL_MILLIS, repository);
+        Lease released = new Lease("order:3", "a", TTL_MILLIS, repository);
+        long before = expireAt("order:1");
+        TimeUnit.MILLISECONDS.sleep(10);
+        Collection<Lease> lost = repository.renew(Arrays.asList(kept, takenOver, released));
+
+        Assert.assertEquals(2, lost.size());
+        Assert.assertTrue(lost.containsAll(Arrays.asList(takenOver, released)));
+        Assert.assertTrue(expireAt("order:1") > before);
+        Assert.assertEquals(Collections.emptyList(), repository.renew(Collections.singletonList(kept)));
+    }
+
+    private static MysqlLockRepository newRepository(JdbcTemplate jdbcTemplate) {
+        return new MysqlLockRepository(jdbcTemplate, new DataSourceTransactionManager(jdbcTemplate.getDataSource()),
+                MysqlLockRepository.DEFAULT_TABLE, false, POLL_MILLIS);
+    }
+
+    private String owner(String key) {
+        return jdbcTemplate.queryForObject("SELECT owner FROM distributed_lock WHERE lock_key = ?", String.class, key);
+    }
+
+    private int holdCount(String key) {
+        return jdbcTemplate.queryForObject("SELECT hold_count FROM distributed_lock WHERE lock_key = ?", Integer.class, key);
+    }
+
+    private long expireAt(String key) {
+        return jdbcTemplate.queryForObject("SELECT expire_at FROM distributed_lock WHERE lock_key = ?", Long.class, key);
+    }
+}
@@ -0,0 +1,170 @@
+package com.sym.lock.redis;
+
+import com.sym.lock.Lease;
+import com.sym.lock.LeaseRenewer;
+import com.sym.lock.LockOwner;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RedisRedLock}在3个内嵌redis主节点上的多数派加锁、失败后的清理和多数派续期
+ *
+ * @author shenyanming
+ * Created on 2020/8/29 14:00
+ */
+public class RedisRedLockTest {
+
+    private final static String KEY = "redLock:order:1";
+    private final static long TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static List<RedisServer> servers = new ArrayList<>();
+    private static List<LettuceConnectionFactory> connectionFactories = new ArrayList<>();
+    private static List<StringRedisTemplate> nodes = new ArrayList<>();
+
+    /**
+     * 端口上没有redis, 模拟宕机的节点
+     */
+    private static StringRedisTemplate downNode;
+
+    /**
+     * 其它持有者在自己的线程里加锁、解锁
+     */
+    private static ExecutorService otherOwner = Executors.newSingleThreadExecutor();
+
+    @BeforeClass
+    public static void startServers() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            int port = freePort();
+            RedisServer server = new RedisServer(port);
+            server.start();
+            servers.add(server);
+            nodes.add(template(port));
+        }
+        downNode = template(freePort());
+    }
+
+    @AfterClass
+    public static void stopServers() {
+        otherOwner.shutdownNow();
+        connectionFactories.forEach(LettuceConnectionFactory::destroy);
+        servers.forEach(RedisServer::stop);
+    }
+
+    @Before
+    public void flush() {
+        for (StringRedisTemplate node : nodes) {
+            node.execute((RedisCallback<Void>) conn -> {
+                conn.flushAll();
+                return null;
+            });
+        }
+    }
+
+    @Test
+    public void acquiresWithOneNodeDown() {
+        RedisRedLock lock = new RedisRedLock(KEY, Arrays.asList(nodes.get(0), nodes.get(1), downNode), TTL_MILLIS, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(lock.tryLock());
+        Assert.assertTrue(nodes.get(0).hasKey(KEY));
+        Assert.assertTrue(nodes.get(1).hasKey(KEY));
+
+        lock.unlock();
+        awaitReleased(nodes.get(0), nodes.get(1));
+    }
+
+    @Test
+    public void minorityFailsAndReleasesPartialLocks() throws Exception {
+        // 其它持有者占住了前两个节点
+        RedisRedLock other = new RedisRedLock(KEY, nodes.subList(0, 2), TTL_MILLIS, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(otherOwner.submit(() -> other.tryLock()).get());
+
+        RedisRedLock lock = new RedisRedLock(KEY, nodes, TTL_MILLIS, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(lock.tryLock());
+
+        // 只在第三个节点上加锁成功, 失败后释放掉; 其它持有者的锁不受影响
+        awaitReleased(nodes.get(2));
+        Assert.assertTrue(nodes.get(0).hasKey(KEY));
+        Assert.assertTrue(nodes.get(1).hasKey(KEY));
+
+        otherOwner.submit(other::unlock).get();
+        awaitReleased(nodes.toArray(new StringRedisTemplate[0]));
+        Assert.assertTrue(lock.tryLock());
+        lock.unlock();
+        awaitReleased(nodes.toArray(new StringRedisTemplate[0]));
+    }
+
+    @Test
+    public void renewalNeedsQuorum() {
+        RedisRedLock lock = new RedisRedLock(KEY, nodes, TTL_MILLIS, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(lock.tryLock());
+        LeaseRenewer renewer = lock.leaseRenewer();
+        List<Lease> leases = Collections.singletonList(new Lease(KEY, LockOwner.current(), TTL_MILLIS, renewer));
+
+        // 一个节点上的锁丢了, 仍有多数派
+        nodes.get(0).delete(KEY);
+        Assert.assertTrue(renewer.renew(leases).isEmpty());
+
+        // 两个节点上的锁丢了, 续期失败
+        nodes.get(1).delete(KEY);
+        Collection<Lease> lost = renewer.renew(leases);
+        Assert.assertEquals(leases, new ArrayList<>(lost));
+
+        lock.unlock();
+        awaitReleased(nodes.get(2));
+    }
+
+    /**
+     * 释放是异步的, 等待锁从这些节点上消失
+     */
+    private static void awaitReleased(StringRedisTemplate... templates) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (StringRedisTemplate template : templates) {
+            while (template.hasKey(KEY)) {
+                if (System.nanoTime() - deadline > 0L) {
+                    Assert.fail("lock was not released on every node");
+                }
+                Thread.yield();
+            }
+        }
+    }
+
+    private static StringRedisTemplate template(int port) {
+        LettuceClientConfiguration clientConfiguration = LettuceClientConfiguration.builder()
+                .commandTimeout(Duration.ofSeconds(1)).build();
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(
+                new RedisStandaloneConfiguration("127.0.0.1", port), clientConfiguration);
+        connectionFactory.afterPropertiesSet();
+        connectionFactories.add(connectionFactory);
+        return new StringRedisTemplate(connectionFactory);
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.sym.lock.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link ZookeeperLock}放弃加锁后的清理, 以及后台调用的等待上限
+ *
+ * @author shenyanming
+ * Created on 2020/8/29 16:00
+ */
+public class ZookeeperLockTest {
+
+    private static TestingServer server;
+    private static CuratorFramework zkClient;
+
+    /**
+     * 其它持有者在自己的线程里加锁、解锁
+     */
+    private static ExecutorService otherOwner = Executors.newSingleThreadExecutor();
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new TestingServer(true);
+        zkClient = newClient(5000);
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        otherOwner.shutdownNow();
+        zkClient.close();
+        server.close();
+    }
+
+    @Test
+    public void failedTryLockLeavesNoWatcherBehind() throws Exception {
+        ZookeeperLock other = new ZookeeperLock("order:1", zkClient);
+        Assert.assertTrue(otherOwner.submit(() -> other.tryLock()).get());
+
+        ZookeeperLock lock = new ZookeeperLock("order:1", zkClient);
+        Assert.assertFalse(lock.tryLock());
+        // 放弃加锁后自己的节点已被删除
+        Assert.assertEquals(1, zkClient.getChildren().forPath("/_lock_/order:1").size());
+
+        // 后台调用完成时可能给当前线程留下许可, 先等它们落定并消耗掉, 只观察持有者释放之后的唤醒
+        TimeUnit.MILLISECONDS.sleep(100);
+        LockSupport.parkNanos(1L);
+
+        // 持有者释放时, 之前注册在它节点上的watcher会触发, 但不能唤醒当前线程别处的挂起
+        long parkNanos = TimeUnit.MILLISECONDS.toNanos(500);
+        long start = System.nanoTime();
+        otherOwner.submit(other::unlock);
+        LockSupport.parkNanos(parkNanos);
+        Assert.assertTrue("parked thread was woken by a stale watcher", System.nanoTime() - start >= parkNanos);
+
+        Assert.assertTrue(lock.tryLock());
+        lock.unlock();
+        Assert.assertTrue(zkClient.getChildren().forPath("/_lock_/order:1").isEmpty());
+    }
+
+    @Test
+    public void backgroundCallsAreBounded() throws Exception {
+        // 连接超时远大于等待上限, 断开后的后台调用要等连接超时才会失败
+        CuratorFramework client = newClient(30000);
+        long awaitMillis = ZookeeperLock.AWAIT_MILLIS;
+        ZookeeperLock.AWAIT_MILLIS = 300;
+        server.stop();
+        try {
+            long start = System.nanoTime();
+            Assert.assertFalse(new ZookeeperLock("order:2", client).tryLock());
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        } finally {
+            ZookeeperLock.AWAIT_MILLIS = awaitMillis;
+            server.restart();
+            client.close();
+        }
+    }
+
+    private static CuratorFramework newClient(int connectionTimeoutMs) {
+        CuratorFramework client = CuratorFrameworkFactory.builder()
+                .connectString(server.getConnectString())
+                .sessionTimeoutMs(60 * 1000)
+                .connectionTimeoutMs(connectionTimeoutMs)
+                .retryPolicy(new ExponentialBackoffRetry(1000, 3))
+                .build();
+        client.start();
+        return client;
+    }
+}